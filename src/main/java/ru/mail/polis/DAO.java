@@ -22,8 +22,14 @@ import org.jetbrains.annotations.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.NavigableMap;
 import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  * Storage interface.
@@ -64,6 +70,25 @@ public interface DAO extends Closeable {
         return Iters.until(iterator(from), bound);
     }
 
+    /**
+     * Provides iterator (possibly empty) over {@link Record}s with keys not greater than "from" key (inclusive)
+     * in <b>descending</b> order, null "from" starts at the largest key.
+     * Implementations may read tables backwards, this one buffers all records up to "from" key.
+     */
+    @NotNull
+    default Iterator<Record> descendingIterator(@Nullable ByteBuffer from) throws IOException {
+        final Deque<Record> records = new ArrayDeque<>();
+        final Iterator<Record> iterator = iterator(ByteBuffer.allocate(0));
+        while (iterator.hasNext()) {
+            final Record record = iterator.next();
+            if (from != null && record.getKey().compareTo(from) > 0) {
+                break;
+            }
+            records.push(record);
+        }
+        return records.iterator();
+    }
+
     /**
      * Obtains {@link Record} corresponding to given key.
      *
@@ -96,6 +121,94 @@ public interface DAO extends Closeable {
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Obtains values of the given keys, absent keys are skipped.
+     * Implementations may look the keys up together, this one calls {@link #get(ByteBuffer)} for each key.
+     *
+     * @return values by keys in ascending order of keys
+     */
+    @NotNull
+    default SortedMap<ByteBuffer, ByteBuffer> getAll(@NotNull Collection<ByteBuffer> keys) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> result = new TreeMap<>();
+        for (final ByteBuffer key : keys) {
+            try {
+                result.put(key, get(key));
+            } catch (NoSuchElementException e) {
+                // Absent keys are skipped
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Applies upserts and removals of the batch.
+     * Implementations may apply the batch atomically, this one applies operations one by one.
+     * Even an atomic batch may be partly visible to concurrent reads while it is being applied,
+     * see the implementation for the guarantees it gives.
+     */
+    default void write(@NotNull WriteBatch batch) throws IOException {
+        batch.iterate(new WriteBatch.Handler() {
+            @Override
+            public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+                DAO.this.upsert(key, value);
+            }
+
+            @Override
+            public void remove(@NotNull final ByteBuffer key) throws IOException {
+                DAO.this.remove(key);
+            }
+        });
+    }
+
+    /**
+     * Takes a read-only view of the current records, which must be closed after use.
+     * Implementations may share data with the view, this one copies all records.
+     * Taking a view may cost more than a read even when it shares data, see the implementation.
+     */
+    @NotNull
+    default Snapshot snapshot() throws IOException {
+        final NavigableMap<ByteBuffer, Record> records = new TreeMap<>();
+        final Iterator<Record> iterator = iterator(ByteBuffer.allocate(0));
+        while (iterator.hasNext()) {
+            final Record record = iterator.next();
+            records.put(record.getKey(), record);
+        }
+        return new Snapshot() {
+            @NotNull
+            @Override
+            public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
+                return records.tailMap(from, true).values().iterator();
+            }
+
+            @NotNull
+            @Override
+            public Iterator<Record> range(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+                if (to == null) {
+                    return iterator(from);
+                }
+                if (from.compareTo(to) > 0) {
+                    return Iters.empty();
+                }
+                return records.subMap(from, true, to, false).values().iterator();
+            }
+
+            @NotNull
+            @Override
+            public ByteBuffer get(@NotNull final ByteBuffer key) {
+                final Record record = records.get(key);
+                if (record == null) {
+                    throw new NoSuchElementException("Not found");
+                }
+                return record.getValue();
+            }
+
+            @Override
+            public void close() {
+                // The copy is dropped with the view
+            }
+        };
+    }
+
     /**
      * Perform compaction
      */
@@ -0,0 +1,98 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Upserts and removals applied together by {@link DAO#write(WriteBatch)}.
+ * Operations are applied in the order they were added, so the last one wins for a repeated key.
+ * Keys and values are not copied, they must not be modified until the batch is written.
+ */
+public final class WriteBatch {
+    private final List<ByteBuffer> keys = new ArrayList<>();
+    // null for a removal
+    private final List<ByteBuffer> values = new ArrayList<>();
+    private long sizeInBytes;
+
+    /**
+     * Add an upsert.
+     *
+     * @param key   key to insert or update
+     * @param value new value
+     * @return this
+     */
+    public WriteBatch upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) {
+        return add(key.duplicate(), value.duplicate());
+    }
+
+    /**
+     * Add a removal.
+     *
+     * @param key key to remove
+     * @return this
+     */
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        return add(key.duplicate(), null);
+    }
+
+    private WriteBatch add(final ByteBuffer key, final ByteBuffer value) {
+        keys.add(key);
+        values.add(value);
+        sizeInBytes += key.remaining() + (value == null ? 0 : value.remaining());
+        return this;
+    }
+
+    /**
+     * Count of operations.
+     *
+     * @return count of upserts and removals
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    /**
+     * Size of keys and values of the batch.
+     *
+     * @return size in bytes
+     */
+    public long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Pass the operations to the handler in order.
+     *
+     * @param handler receiver of the operations
+     * @throws IOException If the handler fails
+     */
+    public void iterate(@NotNull final Handler handler) throws IOException {
+        for (int i = 0; i < keys.size(); i++) {
+            final ByteBuffer value = values.get(i);
+            if (value == null) {
+                handler.remove(keys.get(i).duplicate());
+            } else {
+                handler.upsert(keys.get(i).duplicate(), value.duplicate());
+            }
+        }
+    }
+
+    /**
+     * Receiver of the operations of a batch.
+     */
+    public interface Handler {
+        void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer value) throws IOException;
+
+        void remove(@NotNull ByteBuffer key) throws IOException;
+    }
+}
@@ -0,0 +1,289 @@
+package ru.mail.polis.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Sorted run of cells read from an SSTable.
+ * Keys are delta encoded against the previous key, every {@link #RESTART_INTERVAL} cells
+ * a restart point stores the full key, so a search is a binary search over restart points
+ * followed by a short scan.
+ * List of Cells
+ * -Cell
+ * shared - VarInt, length of the prefix shared with the previous key, 0 at restart points
+ * unshared - VarInt, length of the rest of the key
+ * valueTag - VarLong, 0 for a tombstone, twice the size of the value plus one
+ * or plus two for a pointer to the {@link ValueLog}
+ * timestamp - zigzag VarLong, difference with the timestamp of the previous cell, full if shared is 0
+ * key - ByteBuffer, the rest of the key
+ * value - ByteBuffer
+ * -offsets of restart points from the beginning of the block IntBuffer
+ * -count restart points Integer
+ */
+final class Block {
+    static final int RESTART_INTERVAL = 16;
+    private final ByteBuffer data;
+    private final int restarts;
+    private final int beginRestarts;
+
+    /**
+     * Wrap contents of the block, values are slices of it.
+     *
+     * @param data block starting at position 0
+     */
+    Block(@NotNull final ByteBuffer data) {
+        this.data = data;
+        this.restarts = data.getInt(data.limit() - Integer.BYTES);
+        this.beginRestarts = data.limit() - Integer.BYTES - restarts * Integer.BYTES;
+    }
+
+    /**
+     * Size of the plain encoding of a single cell.
+     *
+     * @param cell cell to encode
+     * @return count of bytes {@link #write} puts
+     */
+    static int sizeOf(@NotNull final Cell cell) {
+        final Value value = cell.getValue();
+        return Integer.BYTES
+                + cell.getKey().remaining()
+                + Long.BYTES
+                + (value.isRemoved() ? 0 : Integer.BYTES + value.getData().remaining());
+    }
+
+    /**
+     * Plain encoding of a single cell, used by the write-ahead log:
+     * keySize - Integer, key, timestamp - Long, negative for a tombstone,
+     * then valueSize - Integer and value for live cells.
+     *
+     * @param to   destination
+     * @param cell cell to encode
+     */
+    static void write(@NotNull final ByteBuffer to, @NotNull final Cell cell) {
+        final ByteBuffer key = cell.getKey();
+        to.putInt(key.remaining()).put(key.duplicate());
+
+        final Value value = cell.getValue();
+        assert !value.isIndirect();
+        if (value.isRemoved()) {
+            to.putLong(-value.getTimeStamp());
+        } else {
+            final ByteBuffer valueData = value.getData();
+            to.putLong(value.getTimeStamp());
+            to.putInt(valueData.remaining()).put(valueData);
+        }
+    }
+
+    /**
+     * Decode the cell at the position of the buffer and move the position past it.
+     *
+     * @param buffer cells encoded by {@link #write}
+     * @return cell with key and value sliced from the buffer
+     */
+    @NotNull
+    static Cell read(@NotNull final ByteBuffer buffer) {
+        final int keySize = buffer.getInt();
+        final ByteBuffer key = buffer.slice().limit(keySize);
+        buffer.position(buffer.position() + keySize);
+
+        final long timeStamp = buffer.getLong();
+        if (timeStamp < 0) {
+            return new Cell(key, Value.tombstone(-timeStamp));
+        }
+
+        final int valueSize = buffer.getInt();
+        final ByteBuffer value = buffer.slice().limit(valueSize);
+        buffer.position(buffer.position() + valueSize);
+        return new Cell(key, Value.of(timeStamp, value));
+    }
+
+    static void putVarLong(@NotNull final ByteBuffer to, final long value) {
+        long rest = value;
+        while ((rest & ~0x7FL) != 0) {
+            to.put((byte) ((rest & 0x7F) | 0x80));
+            rest >>>= 7;
+        }
+        to.put((byte) rest);
+    }
+
+    static long getVarLong(@NotNull final ByteBuffer from) {
+        long result = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte next = from.get();
+            result |= (long) (next & 0x7F) << shift;
+            if (next >= 0) {
+                return result;
+            }
+        }
+    }
+
+    static int getVarInt(@NotNull final ByteBuffer from) {
+        return (int) getVarLong(from);
+    }
+
+    static long zigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Encode the kind and the size of a value into one number.
+     *
+     * @param value value of a cell
+     * @return tag of the value
+     */
+    static long valueTag(@NotNull final Value value) {
+        if (value.isRemoved()) {
+            return 0;
+        }
+        return 2L * value.getData().remaining() + (value.isIndirect() ? 2 : 1);
+    }
+
+    private int restartOffset(final int restart) {
+        return data.getInt(beginRestarts + restart * Integer.BYTES);
+    }
+
+    private ByteBuffer restartKey(final int restart) {
+        final ByteBuffer in = data.duplicate().position(restartOffset(restart));
+        final int shared = getVarInt(in);
+        assert shared == 0;
+        final int unshared = getVarInt(in);
+        getVarInt(in);
+        getVarLong(in);
+        return in.slice().limit(unshared);
+    }
+
+    /**
+     * Cursor at the first cell of the block.
+     *
+     * @return cursor over all cells
+     */
+    @NotNull
+    Cursor cursor() {
+        return new Cursor(0);
+    }
+
+    /**
+     * Cursor at the first cell with key not less than the given one.
+     *
+     * @param from key to look for
+     * @return cursor, which is exhausted if all keys are less
+     */
+    @NotNull
+    Cursor seek(@NotNull final ByteBuffer from) {
+        // Last restart point with key not greater than the given one
+        int left = 0;
+        int right = restarts - 1;
+        while (left <= right) {
+            final int mid = left + ((right - left) >> 1);
+            final int cmp = from.compareTo(restartKey(mid));
+            if (cmp < 0) {
+                right = mid - 1;
+            } else if (cmp > 0) {
+                left = mid + 1;
+            } else {
+                return new Cursor(mid);
+            }
+        }
+        final Cursor cursor = new Cursor(Math.max(0, left - 1));
+        while (cursor.hasNext() && cursor.compareKey(from) < 0) {
+            cursor.skip();
+        }
+        return cursor;
+    }
+
+    /**
+     * Decodes cells one by one, keys are rebuilt into fresh buffers, values are slices of the block.
+     */
+    final class Cursor implements Iterator<Cell> {
+        private final ByteBuffer in;
+        private byte[] key = new byte[32];
+        private int keySize;
+        private long timeStamp;
+        private int valueSize;
+        private boolean indirect;
+        private boolean valid;
+
+        private Cursor(final int restart) {
+            this.in = data.duplicate().position(restarts == 0 ? beginRestarts : restartOffset(restart));
+            decode();
+        }
+
+        private void decode() {
+            if (in.position() >= beginRestarts) {
+                valid = false;
+                return;
+            }
+            final int shared = getVarInt(in);
+            final int unshared = getVarInt(in);
+            final long valueTag = getVarLong(in);
+            valueSize = valueTag == 0 ? -1 : (int) ((valueTag - 1) >>> 1);
+            indirect = valueTag != 0 && (valueTag & 1) == 0;
+            if (shared == 0) {
+                timeStamp = 0;
+            }
+            timeStamp += unZigZag(getVarLong(in));
+            keySize = shared + unshared;
+            if (keySize > key.length) {
+                key = Arrays.copyOf(key, Math.max(keySize, key.length * 2));
+            }
+            in.get(key, shared, unshared);
+            valid = true;
+        }
+
+        /**
+         * Compare the key of the next cell with the given one like {@link ByteBuffer#compareTo} does.
+         *
+         * @param other key to compare with
+         * @return negative, zero or positive if the next key is less, equal or greater
+         */
+        int compareKey(@NotNull final ByteBuffer other) {
+            assert valid;
+            final int length = Math.min(keySize, other.remaining());
+            for (int i = 0; i < length; i++) {
+                final int cmp = Byte.compare(key[i], other.get(other.position() + i));
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return keySize - other.remaining();
+        }
+
+        private void skip() {
+            if (valueSize > 0) {
+                in.position(in.position() + valueSize);
+            }
+            decode();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return valid;
+        }
+
+        @Override
+        public Cell next() {
+            if (!valid) {
+                throw new NoSuchElementException("Block is over");
+            }
+            final ByteBuffer cellKey = ByteBuffer.wrap(Arrays.copyOf(key, keySize));
+            final Cell cell;
+            if (valueSize < 0) {
+                cell = new Cell(cellKey, Value.tombstone(timeStamp));
+            } else if (indirect) {
+                cell = new Cell(cellKey, Value.indirect(timeStamp, in.slice().limit(valueSize)));
+            } else {
+                cell = new Cell(cellKey, Value.of(timeStamp, in.slice().limit(valueSize)));
+            }
+            skip();
+            return cell;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package ru.mail.polis.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Accumulates cells of one {@link Block} before it is written to an SSTable.
+ */
+final class BlockBuilder {
+    private static final int MAX_HEADER_SIZE = 5 + 5 + 5 + 10;
+    private final int blockSize;
+    private ByteBuffer buffer;
+    private int[] restarts = new int[16];
+    private int restartCount;
+    private int cells;
+    private ByteBuffer firstKey;
+    private ByteBuffer lastKey;
+    private long lastTimeStamp;
+
+    BlockBuilder(final int blockSize) {
+        assert blockSize > 0;
+        this.blockSize = blockSize;
+        this.buffer = ByteBuffer.allocate(blockSize);
+    }
+
+    /**
+     * Shortest prefix of the first key of a block, which is still greater
+     * than the last key of the previous block, so the index stays small even for huge keys.
+     *
+     * @param previous last key of the previous block or null for the first block
+     * @param first    first key of the block
+     * @return key to store in the index
+     */
+    @NotNull
+    static ByteBuffer indexKey(final ByteBuffer previous, @NotNull final ByteBuffer first) {
+        if (previous == null) {
+            return ByteBuffer.allocate(0);
+        }
+        final int common = commonPrefix(previous, first);
+        assert common < first.remaining();
+        return first.duplicate().limit(first.position() + common + 1).slice();
+    }
+
+    private static int commonPrefix(final ByteBuffer a, final ByteBuffer b) {
+        final int length = Math.min(a.remaining(), b.remaining());
+        int common = 0;
+        while (common < length && a.get(a.position() + common) == b.get(b.position() + common)) {
+            common++;
+        }
+        return common;
+    }
+
+    void add(@NotNull final Cell cell) {
+        final ByteBuffer key = cell.getKey();
+        final Value value = cell.getValue();
+        final ByteBuffer valueData = value.isRemoved() ? null : value.getData();
+        final boolean restart = cells % Block.RESTART_INTERVAL == 0;
+        final int shared = restart ? 0 : commonPrefix(lastKey, key);
+        final int unshared = key.remaining() - shared;
+
+        final int maxSize = MAX_HEADER_SIZE + unshared + (valueData == null ? 0 : valueData.remaining());
+        if (buffer.remaining() < maxSize) {
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + maxSize));
+            buffer.flip();
+            buffer = grown.put(buffer);
+        }
+        if (restart) {
+            if (restartCount == restarts.length) {
+                restarts = Arrays.copyOf(restarts, restartCount * 2);
+            }
+            restarts[restartCount++] = buffer.position();
+        }
+        if (cells == 0) {
+            firstKey = key;
+        }
+
+        // Timestamps are delta encoded only along with keys
+        final long base = shared == 0 ? 0 : lastTimeStamp;
+        Block.putVarLong(buffer, shared);
+        Block.putVarLong(buffer, unshared);
+        Block.putVarLong(buffer, Block.valueTag(value));
+        Block.putVarLong(buffer, Block.zigZag(value.getTimeStamp() - base));
+        buffer.put(key.duplicate().position(key.position() + shared));
+        if (valueData != null) {
+            buffer.put(valueData.duplicate());
+        }
+        lastKey = key;
+        lastTimeStamp = value.getTimeStamp();
+        cells++;
+    }
+
+    boolean isEmpty() {
+        return cells == 0;
+    }
+
+    boolean isFull() {
+        return finishedSize() >= blockSize;
+    }
+
+    ByteBuffer firstKey() {
+        return firstKey;
+    }
+
+    /**
+     * Complete the block and get ready for the next one.
+     *
+     * @param to destination of the block contents
+     */
+    void finish(@NotNull final ByteBuffer to) {
+        buffer.flip();
+        to.put(buffer);
+        for (int i = 0; i < restartCount; i++) {
+            to.putInt(restarts[i]);
+        }
+        to.putInt(restartCount);
+
+        if (buffer.capacity() > blockSize) {
+            buffer = ByteBuffer.allocate(blockSize);
+        }
+        buffer.clear();
+        restartCount = 0;
+        cells = 0;
+        firstKey = null;
+        lastKey = null;
+    }
+
+    int finishedSize() {
+        return buffer.position() + (restartCount + 1) * Integer.BYTES;
+    }
+}
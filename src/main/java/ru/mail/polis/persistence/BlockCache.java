@@ -0,0 +1,290 @@
+package ru.mail.polis.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Shared cache of SSTable blocks living in a single off-heap arena.
+ * The arena is split into shards of fixed-size pages, each shard has its own lock and CLOCK hand
+ * and allocates its part of the arena on the first miss.
+ * A page returned to a reader is pinned and can't be evicted until it is closed.
+ * Blocks are cached decompressed, blocks larger than a page are not cached.
+ */
+public final class BlockCache {
+    private static final int SHARDS = 16;
+    private static final long EMPTY = -1L;
+    private final int pageSize;
+    private final Shard[] shards;
+    // Direct buffers to read stored blocks into, at most one per shard, more readers at once get heap buffers
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final AtomicInteger allocatedBuffers = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Allocate the arena.
+     *
+     * @param capacity size of the arena in bytes, 0 disables caching
+     * @param pageSize size of a page in bytes
+     */
+    BlockCache(final long capacity, final int pageSize) {
+        assert pageSize > 0;
+        this.pageSize = pageSize;
+        final long pages = capacity / pageSize;
+        final int shardCount = (int) Math.max(1, Math.min(SHARDS, pages));
+        final int pagesPerShard = (int) Math.min(Integer.MAX_VALUE / pageSize, pages / shardCount);
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(pagesPerShard);
+        }
+        this.buffers = new ArrayBlockingQueue<>(shardCount);
+    }
+
+    /**
+     * Get the block from the cache or load it into the cache.
+     * Blocks are cached decompressed, so nearby reads of a compressed block inflate it only once.
+     *
+     * @param generation generation of the table
+     * @param offset     offset of the block in the table
+     * @param size       size of the stored block
+     * @param loader     reader of the block on a miss
+     * @return page with the block, the caller must close it
+     * @throws IOException If an I/O error occurs
+     */
+    @NotNull
+    Page get(final int generation, final long offset, final int size, @NotNull final Loader loader)
+            throws IOException {
+        if (size > pageSize) {
+            misses.increment();
+            return new Page(loader.load(ByteBuffer.allocate(size)));
+        }
+
+        final long key = ((long) generation << 40) | offset;
+        assert offset < 1L << 40;
+        final Shard shard = shards[(int) (mix(key) % shards.length)];
+        final Page cached = shard.pin(key);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+
+        misses.increment();
+        final ByteBuffer buffer = acquireBuffer();
+        try {
+            final ByteBuffer block = loader.load(buffer.clear().limit(size));
+            if (block.remaining() > pageSize) {
+                // Decompressed into a buffer of its own
+                return new Page(block);
+            }
+            final Page loaded = shard.insert(key, block);
+            if (loaded != null) {
+                return loaded;
+            }
+
+            // Everything is pinned, serve the block from the heap
+            return new Page(ByteBuffer.allocate(block.remaining()).put(block).flip());
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Check whether blocks of the stored size are cached, larger blocks are read past the cache.
+     *
+     * @param size size of the stored block
+     * @return true if the block takes a page
+     */
+    boolean caches(final int size) {
+        return size <= pageSize;
+    }
+
+    private ByteBuffer acquireBuffer() {
+        final ByteBuffer pooled = buffers.poll();
+        if (pooled != null) {
+            return pooled;
+        }
+        if (allocatedBuffers.incrementAndGet() <= shards.length) {
+            return ByteBuffer.allocateDirect(pageSize);
+        }
+        allocatedBuffers.decrementAndGet();
+        return ByteBuffer.allocate(pageSize);
+    }
+
+    private void releaseBuffer(final ByteBuffer buffer) {
+        if (buffer.isDirect()) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Drop the pooled read buffers, the arena goes away with the cache.
+     */
+    void close() {
+        buffers.clear();
+    }
+
+    private static long mix(final long key) {
+        final long mixed = key * 0x9E37_79B9_7F4A_7C15L;
+        return (mixed ^ (mixed >>> 32)) & Long.MAX_VALUE;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Reads a block from the file and decodes it.
+     */
+    @FunctionalInterface
+    interface Loader {
+        /**
+         * Load the block.
+         *
+         * @param buffer buffer with the limit at the stored size to read the block into,
+         *               it is reused once the block is cached, so it must not be returned
+         * @return contents of the block between position and limit
+         * @throws IOException If an I/O error occurs
+         */
+        @NotNull
+        ByteBuffer load(@NotNull ByteBuffer buffer) throws IOException;
+    }
+
+    /**
+     * Contents of a block, pinned in the cache until closed.
+     */
+    static final class Page implements Closeable {
+        private final ByteBuffer data;
+        private final Shard shard;
+        private final int slot;
+        private boolean closed;
+
+        /**
+         * Page which doesn't belong to any cache.
+         *
+         * @param data contents of the block
+         */
+        Page(@NotNull final ByteBuffer data) {
+            this(data, null, -1);
+        }
+
+        private Page(final ByteBuffer data, final Shard shard, final int slot) {
+            this.data = data;
+            this.shard = shard;
+            this.slot = slot;
+        }
+
+        ByteBuffer data() {
+            return data;
+        }
+
+        /**
+         * Whether the contents may be reused by another block once the page is closed.
+         *
+         * @return true if anything read from the page must be copied to outlive it
+         */
+        boolean isPinned() {
+            return shard != null;
+        }
+
+        @Override
+        public void close() {
+            if (shard != null && !closed) {
+                closed = true;
+                shard.unpin(slot);
+            }
+        }
+    }
+
+    private final class Shard {
+        private ByteBuffer arena;
+        private final long[] keys;
+        private final int[] sizes;
+        private final int[] pins;
+        private final boolean[] referenced;
+        private final Map<Long, Integer> slots;
+        private int hand;
+
+        Shard(final int pages) {
+            this.keys = new long[pages];
+            Arrays.fill(keys, EMPTY);
+            this.sizes = new int[pages];
+            this.pins = new int[pages];
+            this.referenced = new boolean[pages];
+            this.slots = new HashMap<>(pages);
+        }
+
+        private ByteBuffer slice(final int slot, final int size) {
+            final int offset = slot * pageSize;
+            return arena.duplicate()
+                    .position(offset)
+                    .limit(offset + size)
+                    .slice()
+                    .asReadOnlyBuffer();
+        }
+
+        synchronized Page pin(final long key) {
+            final Integer slot = slots.get(key);
+            if (slot == null) {
+                return null;
+            }
+            pins[slot]++;
+            referenced[slot] = true;
+            return new Page(slice(slot, sizes[slot]), this, slot);
+        }
+
+        synchronized Page insert(final long key, final ByteBuffer block) {
+            final Integer present = slots.get(key);
+            if (present != null) {
+                pins[present]++;
+                referenced[present] = true;
+                return new Page(slice(present, sizes[present]), this, present);
+            }
+
+            for (int scanned = 0; scanned < 2 * keys.length; scanned++) {
+                final int slot = hand;
+                hand = (hand + 1) % keys.length;
+                if (pins[slot] > 0) {
+                    continue;
+                }
+                if (referenced[slot]) {
+                    referenced[slot] = false;
+                    continue;
+                }
+
+                if (keys[slot] != EMPTY) {
+                    slots.remove(keys[slot]);
+                }
+                if (arena == null) {
+                    arena = ByteBuffer.allocateDirect(keys.length * pageSize);
+                }
+                keys[slot] = key;
+                slots.put(key, slot);
+                pins[slot] = 1;
+                referenced[slot] = true;
+                sizes[slot] = block.remaining();
+                arena.duplicate().position(slot * pageSize).put(block);
+                return new Page(slice(slot, sizes[slot]), this, slot);
+            }
+            return null;
+        }
+
+        synchronized void unpin(final int slot) {
+            assert pins[slot] > 0;
+            pins[slot]--;
+        }
+    }
+}
@@ -1,58 +1,136 @@
 package ru.mail.polis.persistence;
 
 import java.nio.ByteBuffer;
-import java.util.BitSet;
+import java.nio.ByteOrder;
 
 import org.jetbrains.annotations.NotNull;
 
+/**
+ * Bloom filter of the keys of an SSTable.
+ * A key is hashed once into 64 bits, the halves of the hash derive all probes by double hashing.
+ * Serialized form:
+ * hashCount - Integer
+ * bits - LongBuffer
+ */
 final class BloomFilter {
-    private static final int[] PRIMES = new int[]{29, 31, 37, 43, 47, 113, 211, 61, 89, 91, 87, 73, 13};
+    private static final long SEED = 0x2545_F491_4F6C_DD1DL;
+    private static final long M = 0xC6A4_A793_5BD1_E995L;
+    private static final int R = 47;
+    private static final int MAX_HASH_COUNT = 30;
+    private final long[] bits;
+    private final long bitCount;
+    private final int hashCount;
 
-    private BloomFilter() {
+    private BloomFilter(final long[] bits, final int hashCount) {
+        this.bits = bits;
+        this.bitCount = (long) bits.length * Long.SIZE;
+        this.hashCount = hashCount;
     }
 
-    static void setKeyToFilter(final BitSet bitSet, final ByteBuffer key) {
-        bitSet.or(myHashFunction(key));
+    /**
+     * Empty filter sized for the given count of keys.
+     *
+     * @param keys       count of keys, which will be added
+     * @param bitsPerKey bits of the filter per key, more bits give less false positives
+     * @return empty filter
+     */
+    @NotNull
+    static BloomFilter create(final long keys, final int bitsPerKey) {
+        assert keys >= 0 && bitsPerKey > 0;
+        final long words = Math.max(1L, (keys * bitsPerKey + Long.SIZE - 1) / Long.SIZE);
+        if (words > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many keys for a filter: " + keys);
+        }
+        final int hashCount = (int) Math.max(1L, Math.min(MAX_HASH_COUNT, Math.round(bitsPerKey * Math.log(2))));
+        return new BloomFilter(new long[(int) words], hashCount);
     }
 
     /**
-     * This function solve the hashCode for each of the primes
-     * and after each do << for this BitSet.
+     * Read the serialized filter.
      *
-     * @param key ByteBuffer.
-     * @return BitSet of this key.
+     * @param buffer serialized filter between position and limit
+     * @return filter
      */
-    static BitSet myHashFunction(@NotNull final ByteBuffer key) {
-        final BitSet bitSet = new BitSet();
-        int bit = 0;
-
-        for (final int prime : PRIMES) {
-            int hashCode = 1;
-            final int p = key.position();
-            for (int i = key.limit() - 1; i >= p; i--) {
-                hashCode = prime * hashCode + (int) key.get(i);
-            }
+    @NotNull
+    static BloomFilter read(@NotNull final ByteBuffer buffer) {
+        final int hashCount = buffer.getInt();
+        final long[] bits = new long[buffer.remaining() / Long.BYTES];
+        buffer.asLongBuffer().get(bits);
+        return new BloomFilter(bits, hashCount);
+    }
 
-            final String s = Integer.toBinaryString(hashCode);
-            for (int i = 0; i < s.length(); i++, bit++) {
-                if (s.charAt(i) == '1') {
-                    bitSet.set(bit);
-                }
+    int serializedSize() {
+        return Integer.BYTES + bits.length * Long.BYTES;
+    }
+
+    void write(@NotNull final ByteBuffer to) {
+        to.putInt(hashCount);
+        to.asLongBuffer().put(bits);
+        to.position(to.position() + bits.length * Long.BYTES);
+    }
+
+    /**
+     * 64-bit MurmurHash2 of the bytes between position and limit, the buffer is not modified.
+     *
+     * @param key bytes to hash
+     * @return hash of the key
+     */
+    static long hash(@NotNull final ByteBuffer key) {
+        final int from = key.position();
+        final int to = key.limit();
+        final boolean swap = key.order() != ByteOrder.BIG_ENDIAN;
+        long result = SEED ^ ((to - from) * M);
+
+        int offset = from;
+        for (; offset + Long.BYTES <= to; offset += Long.BYTES) {
+            long word = swap ? Long.reverseBytes(key.getLong(offset)) : key.getLong(offset);
+            word *= M;
+            word ^= word >>> R;
+            word *= M;
+            result ^= word;
+            result *= M;
+        }
+        if (offset < to) {
+            long tail = 0;
+            for (; offset < to; offset++) {
+                tail = (tail << Byte.SIZE) | (key.get(offset) & 0xFF);
             }
+            result ^= tail;
+            result *= M;
+        }
+
+        result ^= result >>> R;
+        result *= M;
+        result ^= result >>> R;
+        return result;
+    }
+
+    void add(final long hash) {
+        long combined = hash;
+        final long step = (hash >>> Integer.SIZE) | 1L;
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = (combined & Long.MAX_VALUE) % bitCount;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+            combined += step;
         }
-        return bitSet;
     }
 
     /**
-     * check this key in BloomFilter.
+     * Check the key without allocating anything.
      *
-     * @param bloomFilter - BitSet of key in table.
-     * @param key         ByteBuffer.
-     * @return false, if bloomFilter has't at least one bit of the key.
+     * @param key key to look for
+     * @return false if the key was definitely not added
      */
-    static boolean canContains(final BitSet bloomFilter, final ByteBuffer key) {
-        final BitSet hashKey = myHashFunction(key);
-        hashKey.or(bloomFilter);
-        return bloomFilter.equals(hashKey);
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        long combined = hash(key);
+        final long step = (combined >>> Integer.SIZE) | 1L;
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = (combined & Long.MAX_VALUE) % bitCount;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+            combined += step;
+        }
+        return true;
     }
 }
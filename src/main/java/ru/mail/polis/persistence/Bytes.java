@@ -15,4 +15,27 @@ public final class Bytes {
         final ByteBuffer result = ByteBuffer.allocate(Long.BYTES);
         return result.putLong(value).rewind();
     }
+
+    public static ByteBuffer copyOf(final ByteBuffer buffer) {
+        final ByteBuffer result = ByteBuffer.allocate(buffer.remaining());
+        return result.put(buffer.duplicate()).flip();
+    }
+
+    /**
+     * Smallest key which is greater than all keys starting with the prefix
+     * in the order of {@link ByteBuffer#compareTo}, which compares signed bytes.
+     *
+     * @param prefix leading bytes of keys
+     * @return the successor or null if every greater key starts with the prefix
+     */
+    public static ByteBuffer successor(final ByteBuffer prefix) {
+        for (int i = prefix.limit() - 1; i >= prefix.position(); i--) {
+            final byte last = prefix.get(i);
+            if (last != Byte.MAX_VALUE) {
+                final ByteBuffer result = copyOf(prefix.duplicate().limit(i + 1));
+                return result.put(result.limit() - 1, (byte) (last + 1));
+            }
+        }
+        return null;
+    }
 }
@@ -6,6 +6,11 @@ import java.util.Comparator;
 public class Cell {
     public static final Comparator<Cell> COMPARATOR =
             Comparator.comparing(Cell::getKey).thenComparing(Cell::getValue);
+    /**
+     * Keys in descending order, the newest value of a key still goes first.
+     */
+    public static final Comparator<Cell> DESCENDING =
+            Comparator.comparing(Cell::getKey, Comparator.reverseOrder()).thenComparing(Cell::getValue);
 
     private final ByteBuffer key;
     private final Value value;
@@ -0,0 +1,58 @@
+package ru.mail.polis.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Tables to merge and the shape of the result.
+ */
+public final class Compaction {
+    private final List<FileTable> tables;
+    private final int level;
+    private final long maxFileSize;
+
+    /**
+     * Merge tables into a single table.
+     *
+     * @param tables tables to merge
+     * @param level  level of the result
+     */
+    public Compaction(@NotNull final Collection<FileTable> tables, final int level) {
+        this(tables, level, Long.MAX_VALUE);
+    }
+
+    /**
+     * Merge tables into a run of tables with disjoint key ranges.
+     *
+     * @param tables      tables to merge
+     * @param level       level of the result
+     * @param maxFileSize size a table of the result is filled up to before the next one is started
+     */
+    public Compaction(@NotNull final Collection<FileTable> tables, final int level, final long maxFileSize) {
+        if (level < 0) {
+            throw new IllegalArgumentException("Negative level: " + level);
+        }
+        if (maxFileSize <= 0L) {
+            throw new IllegalArgumentException("Non-positive max file size: " + maxFileSize);
+        }
+        this.tables = Collections.unmodifiableList(new ArrayList<>(tables));
+        this.level = level;
+        this.maxFileSize = maxFileSize;
+    }
+
+    List<FileTable> getTables() {
+        return tables;
+    }
+
+    int getLevel() {
+        return level;
+    }
+
+    long getMaxFileSize() {
+        return maxFileSize;
+    }
+}
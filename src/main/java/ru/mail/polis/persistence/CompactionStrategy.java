@@ -0,0 +1,35 @@
+package ru.mail.polis.persistence;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Policy deciding which SSTables {@link LSMDao} merges in the background.
+ */
+public interface CompactionStrategy {
+    /**
+     * Pick the next compaction, called on a background thread whenever tables change.
+     * The call is made outside the lock of the Dao, so it may read the tables,
+     * the Dao drops the choice if the tables have changed meanwhile and asks again.
+     *
+     * @param tables     current SSTables
+     * @param compacting tables, which are already being merged by another compaction
+     * @return compaction of tables, which are not compacted yet, or null if there is nothing to do
+     * @throws IOException If an I/O error occurs
+     */
+    @Nullable
+    Compaction pick(@NotNull List<FileTable> tables, @NotNull Set<FileTable> compacting) throws IOException;
+
+    /**
+     * Compaction of all tables requested by {@link LSMDao#compact()}.
+     *
+     * @param tables current SSTables
+     * @return compaction of the given tables
+     */
+    @NotNull
+    Compaction all(@NotNull List<FileTable> tables);
+}
@@ -0,0 +1,194 @@
+package ru.mail.polis.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Codec of SSTable blocks, every block records its own codec, so tables written with different settings coexist.
+ * Stored block:
+ * payload - ByteBuffer, contents of the {@link Block} as is or compressed
+ * rawSize - Integer, size of the decompressed contents, only for compressed payloads
+ * codec - Byte, id of the codec
+ * A block is stored as is when compression saves less than an eighth of it.
+ */
+public enum Compression {
+    /**
+     * Blocks are stored as is.
+     */
+    NONE(0) {
+        @Override
+        int maxCompressedSize(final int size) {
+            return size;
+        }
+
+        @Override
+        int compress(@NotNull final byte[] src, final int length, @NotNull final byte[] dst) {
+            System.arraycopy(src, 0, dst, 0, length);
+            return length;
+        }
+
+        @Override
+        void decompress(@NotNull final ByteBuffer src, @NotNull final byte[] dst) throws IOException {
+            if (src.remaining() != dst.length) {
+                throw new IOException("Stored block is " + src.remaining() + " bytes instead of " + dst.length);
+            }
+            src.duplicate().get(dst);
+        }
+    },
+
+    /**
+     * LZ4 block format, fast on both sides with a moderate ratio, see {@link Lz4}.
+     */
+    LZ4(1) {
+        @Override
+        int maxCompressedSize(final int size) {
+            return Lz4.maxCompressedSize(size);
+        }
+
+        @Override
+        int compress(@NotNull final byte[] src, final int length, @NotNull final byte[] dst) {
+            return Lz4.compress(src, length, dst);
+        }
+
+        @Override
+        void decompress(@NotNull final ByteBuffer src, @NotNull final byte[] dst) throws IOException {
+            Lz4.decompress(src, dst);
+        }
+    },
+
+    /**
+     * {@link Deflater} with the default level, better ratio for colder levels at the cost of CPU.
+     */
+    DEFLATE(2) {
+        @Override
+        int maxCompressedSize(final int size) {
+            // Incompressible input is not worth storing compressed anyway
+            return size;
+        }
+
+        @Override
+        int compress(@NotNull final byte[] src, final int length, @NotNull final byte[] dst) {
+            final Deflater deflater = DEFLATERS.get();
+            deflater.reset();
+            deflater.setInput(src, 0, length);
+            deflater.finish();
+            final int size = deflater.deflate(dst);
+            return deflater.finished() ? size : -1;
+        }
+
+        @Override
+        void decompress(@NotNull final ByteBuffer src, @NotNull final byte[] dst) throws IOException {
+            final Inflater inflater = INFLATERS.get();
+            inflater.reset();
+            inflater.setInput(src);
+            try {
+                int size = 0;
+                while (!inflater.finished()) {
+                    final int inflated = inflater.inflate(dst, size, dst.length - size);
+                    if (inflated == 0
+                            && (inflater.needsInput() || inflater.needsDictionary() || size == dst.length)) {
+                        throw new IOException("Truncated deflated block");
+                    }
+                    size += inflated;
+                }
+                if (size != dst.length) {
+                    throw new IOException("Deflated block is " + size + " bytes instead of " + dst.length);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted deflated block", e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+    private static final Compression[] BY_ID = {NONE, LZ4, DEFLATE};
+    private final byte id;
+
+    Compression(final int id) {
+        this.id = (byte) id;
+    }
+
+    abstract int maxCompressedSize(int size);
+
+    /**
+     * Compress the bytes.
+     *
+     * @param src    source array
+     * @param length count of bytes from the beginning of the source
+     * @param dst    destination of {@link #maxCompressedSize} bytes
+     * @return count of bytes written to the destination or -1 if they don't fit
+     */
+    abstract int compress(@NotNull byte[] src, int length, @NotNull byte[] dst);
+
+    /**
+     * Decompress the bytes.
+     *
+     * @param src compressed bytes between position and limit
+     * @param dst destination, which must be filled exactly
+     * @throws IOException If the bytes are corrupted
+     */
+    abstract void decompress(@NotNull ByteBuffer src, @NotNull byte[] dst) throws IOException;
+
+    /**
+     * Frame contents of a block for the file.
+     *
+     * @param raw contents of the block from position 0 to the limit in a heap buffer with room for one more byte
+     * @return stored block
+     */
+    @NotNull
+    ByteBuffer encode(@NotNull final ByteBuffer raw) {
+        assert raw.hasArray() && raw.position() == 0 && raw.capacity() > raw.limit();
+        final int size = raw.limit();
+        if (this != NONE) {
+            final byte[] compressed = new byte[maxCompressedSize(size) + Integer.BYTES + Byte.BYTES];
+            final int compressedSize = compress(raw.array(), size, compressed);
+            if (compressedSize >= 0 && compressedSize < size - size / 8) {
+                return ByteBuffer.wrap(compressed, 0, compressedSize + Integer.BYTES + Byte.BYTES)
+                        .putInt(compressedSize, size)
+                        .put(compressedSize + Integer.BYTES, id);
+            }
+        }
+        return raw.limit(size + Byte.BYTES).put(size, NONE.id);
+    }
+
+    /**
+     * Codec of a stored block.
+     *
+     * @param stored stored block between position 0 and limit
+     * @return codec the block was written with
+     * @throws IOException If the codec is unknown
+     */
+    @NotNull
+    static Compression of(@NotNull final ByteBuffer stored) throws IOException {
+        final int id = stored.get(stored.limit() - Byte.BYTES);
+        if (id < 0 || id >= BY_ID.length) {
+            throw new IOException("Unknown block compression: " + id);
+        }
+        return BY_ID[id];
+    }
+
+    /**
+     * Contents of a stored block.
+     *
+     * @param stored stored block between position 0 and limit, which is not modified
+     * @return slice of the stored block or a new buffer with decompressed contents
+     * @throws IOException If the block is corrupted
+     */
+    @NotNull
+    static ByteBuffer decode(@NotNull final ByteBuffer stored) throws IOException {
+        final Compression compression = of(stored);
+        final int end = stored.limit() - Byte.BYTES;
+        if (compression == NONE) {
+            return stored.duplicate().limit(end).slice();
+        }
+        final byte[] raw = new byte[stored.getInt(end - Integer.BYTES)];
+        compression.decompress(stored.duplicate().limit(end - Integer.BYTES), raw);
+        return ByteBuffer.wrap(raw);
+    }
+}
@@ -0,0 +1,21 @@
+package ru.mail.polis.persistence;
+
+/**
+ * When records of the write-ahead log are forced to the disk.
+ */
+public enum Durability {
+    /**
+     * Records are handed to the OS and never forced, a crash of the machine may lose them.
+     */
+    NO_SYNC,
+
+    /**
+     * The log is forced in the background every {@link WriteAheadLog#SYNC_PERIOD_MS} milliseconds.
+     */
+    PERIODIC,
+
+    /**
+     * Every group of records is forced before the writers are acknowledged.
+     */
+    BATCH
+}
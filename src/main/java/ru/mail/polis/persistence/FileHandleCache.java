@@ -0,0 +1,166 @@
+package ru.mail.polis.persistence;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Bounded LRU cache of open read channels of SSTables keyed by generation.
+ * A handle is closed when it is evicted or invalidated and no reader holds it anymore.
+ */
+final class FileHandleCache implements Closeable {
+    private final int capacity;
+    private final Map<Integer, Handle> handles;
+    // Count of invalidations, a channel opened across one is not cached
+    private long invalidations;
+
+    FileHandleCache(final int capacity) {
+        assert capacity > 0;
+        this.capacity = capacity;
+        this.handles = new LinkedHashMap<>(capacity, 0.75f, true);
+    }
+
+    /**
+     * Get open channel of the table, the caller must close the returned handle.
+     *
+     * @param generation generation of the table
+     * @param file       file of the table
+     * @return acquired handle
+     * @throws IOException If an I/O error occurs
+     */
+    @NotNull
+    Handle acquire(final int generation, @NotNull final File file) throws IOException {
+        final long stamp;
+        synchronized (this) {
+            final Handle cached = handles.get(generation);
+            if (cached != null) {
+                cached.refs++;
+                return cached;
+            }
+            stamp = invalidations;
+        }
+        // A slow open doesn't block lookups of other tables
+        final Handle opened = new Handle(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+        final Handle result;
+        final List<Handle> evicted;
+        synchronized (this) {
+            final Handle cached = handles.get(generation);
+            if (cached != null) {
+                // Another reader has opened the table first
+                cached.refs++;
+                result = cached;
+                evicted = Collections.singletonList(opened);
+            } else if (stamp == invalidations) {
+                opened.refs++;
+                handles.put(generation, opened);
+                result = opened;
+                evicted = evictEldest();
+            } else {
+                // The table may have been deleted meanwhile, so the channel is closed after this read
+                opened.refs++;
+                opened.retired = true;
+                result = opened;
+                evicted = Collections.emptyList();
+            }
+        }
+        closeAll(evicted);
+        return result;
+    }
+
+    /**
+     * Forget the table, its channel is closed as soon as the last reader releases it.
+     *
+     * @param generation generation of the table
+     * @throws IOException If an I/O error occurs
+     */
+    void invalidate(final int generation) throws IOException {
+        final Handle handle;
+        synchronized (this) {
+            invalidations++;
+            handle = handles.remove(generation);
+            if (handle == null || !handle.retire()) {
+                return;
+            }
+        }
+        handle.channel.close();
+    }
+
+    private List<Handle> evictEldest() {
+        final List<Handle> evicted = new ArrayList<>();
+        final Iterator<Handle> iterator = handles.values().iterator();
+        while (handles.size() > capacity && iterator.hasNext()) {
+            final Handle eldest = iterator.next();
+            iterator.remove();
+            if (eldest.retire()) {
+                evicted.add(eldest);
+            }
+        }
+        return evicted;
+    }
+
+    private static void closeAll(final List<Handle> handles) throws IOException {
+        for (final Handle handle : handles) {
+            handle.channel.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        final List<Handle> evicted = new ArrayList<>(handles.size());
+        synchronized (this) {
+            for (final Handle handle : handles.values()) {
+                if (handle.retire()) {
+                    evicted.add(handle);
+                }
+            }
+            handles.clear();
+        }
+        closeAll(evicted);
+    }
+
+    final class Handle implements Closeable {
+        private final FileChannel channel;
+        private int refs;
+        private boolean retired;
+
+        private Handle(final FileChannel channel) {
+            this.channel = channel;
+        }
+
+        FileChannel channel() {
+            return channel;
+        }
+
+        /**
+         * Called under the cache lock when the handle leaves the cache.
+         *
+         * @return true if nobody holds the handle and the channel may be closed
+         */
+        private boolean retire() {
+            retired = true;
+            return refs == 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (FileHandleCache.this) {
+                assert refs > 0;
+                refs--;
+                if (refs > 0 || !retired) {
+                    return;
+                }
+            }
+            channel.close();
+        }
+    }
+}
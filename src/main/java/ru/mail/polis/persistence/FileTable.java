@@ -0,0 +1,695 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ru.mail.polis.Iters;
+
+/**
+ * Immutable Sorted String Table stored in a file, see {@link TableWriter} for the format.
+ * Only the footer and the references to the value log are read on open, the sparse index of blocks
+ * and the BloomFilters are read on the first access and kept in memory.
+ * Subclasses decide how bytes are read from the file.
+ */
+public abstract class FileTable implements Table {
+    static final long MAGIC = 0x5353_5461_626c_6538L;
+    static final int FOOTER_SIZE =
+            Long.BYTES + 4 * Integer.BYTES + Long.BYTES + Long.BYTES + Integer.BYTES + Long.BYTES;
+    /**
+     * Longer boundary keys are read from the blocks on every call instead of being kept in memory.
+     */
+    static final int MAX_CACHED_KEY_SIZE = 1024;
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final String UNSUPPORTED_EXCEPTION_MESSAGE = "FileTable has not access to update!";
+    private final File file;
+    private final int generation;
+    private final Reader reader;
+    private final long rows;
+    private final long maxTimeStamp;
+    private final int level;
+    private final long indexOffset;
+    private final int indexSize;
+    private final int bloomFilterSize;
+    private final int prefixFilterSize;
+    private final Map<Integer, Long> valueLogRefs;
+    private volatile Index index;
+    private final AtomicInteger refs = new AtomicInteger();
+    private volatile Runnable onDelete;
+    private volatile ByteBuffer firstKey;
+    private volatile ByteBuffer lastKey;
+
+    /**
+     * Read the footer and the references to the value log of the table.
+     *
+     * @param file     of this table
+     * @param fileSize size of the file in bytes
+     * @param reader   source of the file contents
+     * @throws IOException If an I/O error occurs or the file is not an SSTable
+     */
+    FileTable(final File file, final long fileSize, final Reader reader) throws IOException {
+        this.file = file;
+        this.generation = getGenerationByName(file.getName());
+        this.reader = reader;
+
+        // Footer
+        if (fileSize < FOOTER_SIZE) {
+            throw new IOException("Too short for SSTable: " + file);
+        }
+        final ByteBuffer footer = reader.read(fileSize - FOOTER_SIZE, FOOTER_SIZE);
+        this.indexOffset = footer.getLong();
+        this.indexSize = footer.getInt();
+        this.bloomFilterSize = footer.getInt();
+        this.prefixFilterSize = footer.getInt();
+        final int valueLogRefsSize = footer.getInt();
+        this.rows = footer.getLong();
+        this.maxTimeStamp = footer.getLong();
+        this.level = footer.getInt();
+        if (footer.getLong() != MAGIC) {
+            throw new IOException("Not an SSTable: " + file);
+        }
+
+        // References to the value log
+        final ByteBuffer refs = reader.read(
+                indexOffset + indexSize + bloomFilterSize + prefixFilterSize,
+                valueLogRefsSize);
+        final Map<Integer, Long> segments = new HashMap<>();
+        for (int i = refs.getInt(); i > 0; i--) {
+            segments.put(refs.getInt(), refs.getLong());
+        }
+        this.valueLogRefs = Collections.unmodifiableMap(segments);
+    }
+
+    /**
+     * Index and BloomFilters of the table, read on the first call.
+     *
+     * @return loaded index
+     * @throws IOException If an I/O error occurs
+     */
+    @NotNull
+    private Index index() throws IOException {
+        Index result = index;
+        if (result == null) {
+            synchronized (this) {
+                result = index;
+                if (result == null) {
+                    result = readIndex();
+                    index = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    private Index readIndex() throws IOException {
+        // Index
+        final ByteBuffer buffer = reader.read(indexOffset, indexSize);
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final List<Long> offsets = new ArrayList<>();
+        final List<Integer> sizes = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            final int keySize = buffer.getInt();
+            keys.add(buffer.slice().limit(keySize));
+            buffer.position(buffer.position() + keySize);
+            offsets.add(buffer.getLong());
+            sizes.add(buffer.getInt());
+        }
+
+        // BloomFilter
+        final BloomFilter bloomFilter = bloomFilterSize == 0
+                ? null
+                : BloomFilter.read(reader.read(indexOffset + indexSize, bloomFilterSize));
+        String prefixExtractorName = null;
+        BloomFilter prefixFilter = null;
+        if (prefixFilterSize != 0) {
+            final ByteBuffer prefixes = reader.read(indexOffset + indexSize + bloomFilterSize, prefixFilterSize);
+            final byte[] name = new byte[prefixes.getInt()];
+            prefixes.get(name);
+            prefixExtractorName = new String(name, StandardCharsets.UTF_8);
+            prefixFilter = BloomFilter.read(prefixes);
+        }
+        return new Index(
+                keys.toArray(new ByteBuffer[0]),
+                offsets.stream().mapToLong(Long::longValue).toArray(),
+                sizes.stream().mapToInt(Integer::intValue).toArray(),
+                bloomFilter,
+                prefixExtractorName,
+                prefixFilter);
+    }
+
+    /**
+     * Read the index and the BloomFilters ahead of the first request.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    void warmUp() throws IOException {
+        index();
+    }
+
+    /**
+     * Merge list of SSTables.
+     *
+     * @param tables list of SSTables
+     * @return MergedIterator with latest versions of key-value
+     * @throws IOException If an I/O error occurs, e.g. the index of a table can't be read
+     */
+    public static Iterator<Cell> merge(@NotNull final List<Table> tables) throws IOException {
+        final List<Iterator<Cell>> list = new ArrayList<>(tables.size());
+        for (final Table table : tables) {
+            list.add(table.iterator(ByteBuffer.allocate(0)));
+        }
+        return new MergeIterator(list, Cell.COMPARATOR, false);
+    }
+
+    static int getGenerationByName(final String name) {
+        for (int index = 0; index < Math.min(9, name.length()); index++) {
+            if (!Character.isDigit(name.charAt(index))) {
+                return index == 0 ? 0 : Integer.parseInt(name.substring(0, index));
+            }
+        }
+        return -1;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    long rows() {
+        return rows;
+    }
+
+    /**
+     * Newest timestamp of the table, a cell found in a table is final if no remaining table is newer.
+     *
+     * @return the largest timestamp of a cell or Long.MIN_VALUE if the table is empty
+     */
+    long maxTimeStamp() {
+        return maxTimeStamp;
+    }
+
+    /**
+     * Level of the table in the LSM tree, flushed memTables are at level 0.
+     *
+     * @return level the table was written to by compaction
+     */
+    int getLevel() {
+        return level;
+    }
+
+    /**
+     * Smallest key of the table, read from the first block on the first call.
+     *
+     * @return copy of the first key
+     * @throws IOException If an I/O error occurs
+     */
+    @NotNull
+    ByteBuffer firstKey() throws IOException {
+        ByteBuffer key = firstKey;
+        if (key == null) {
+            try (BlockCache.Page page = page(index(), 0)) {
+                key = new Block(page.data()).cursor().next().getKey();
+            }
+            if (key.remaining() <= MAX_CACHED_KEY_SIZE) {
+                firstKey = key;
+            }
+        }
+        return key.duplicate();
+    }
+
+    /**
+     * Largest key of the table, read from the last block on the first call.
+     *
+     * @return copy of the last key
+     * @throws IOException If an I/O error occurs
+     */
+    @NotNull
+    ByteBuffer lastKey() throws IOException {
+        ByteBuffer key = lastKey;
+        if (key == null) {
+            final Index loaded = index();
+            try (BlockCache.Page page = page(loaded, loaded.keys.length - 1)) {
+                final Block.Cursor cursor = new Block(page.data()).cursor();
+                while (cursor.hasNext()) {
+                    key = cursor.next().getKey();
+                }
+            }
+            if (key.remaining() <= MAX_CACHED_KEY_SIZE) {
+                lastKey = key;
+            }
+        }
+        return key.duplicate();
+    }
+
+    /**
+     * Sizes of values of the table stored in the {@link ValueLog}.
+     *
+     * @return total size of referenced values by generation of the segment
+     */
+    @NotNull
+    Map<Integer, Long> getValueLogRefs() {
+        return valueLogRefs;
+    }
+
+    /**
+     * Remember the key range known from the manifest, so it is not read from blocks.
+     *
+     * @param firstKey smallest key of the table or null if it is too long to keep
+     * @param lastKey  largest key of the table or null if it is too long to keep
+     */
+    void setKeyRange(@Nullable final ByteBuffer firstKey, @Nullable final ByteBuffer lastKey) {
+        this.firstKey = firstKey;
+        this.lastKey = lastKey;
+    }
+
+    void retain() {
+        refs.incrementAndGet();
+    }
+
+    /**
+     * Drop a reference, the file of an obsolete table is deleted with the last one.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    void release() throws IOException {
+        final int left = refs.decrementAndGet();
+        assert left >= 0;
+        final Runnable action = onDelete;
+        if (left == 0 && action != null) {
+            delete();
+            action.run();
+        }
+    }
+
+    /**
+     * Mark the table as replaced by compaction, must be called while the table is still referenced.
+     *
+     * @param onDelete action to run after the file is deleted
+     */
+    void markObsolete(@NotNull final Runnable onDelete) {
+        assert refs.get() > 0;
+        this.onDelete = onDelete;
+    }
+
+    void delete() throws IOException {
+        Files.delete(file.toPath());
+    }
+
+    @NotNull
+    private BlockCache.Page page(final Index loaded, final int i) throws IOException {
+        return reader.readBlock(loaded.offsets[i], loaded.sizes[i]);
+    }
+
+    /**
+     * Copy the value out of a block, keys are rebuilt by the block anyway.
+     *
+     * @param cell cell read from a pinned page
+     * @return cell, which outlives the page
+     */
+    @NotNull
+    private static Cell copyOf(@NotNull final Cell cell) {
+        final Value value = cell.getValue();
+        if (value.isRemoved()) {
+            return cell;
+        }
+        final ByteBuffer data = Bytes.copyOf(value.getData());
+        return new Cell(cell.getKey(), value.isIndirect()
+                ? Value.indirect(value.getTimeStamp(), data)
+                : Value.of(value.getTimeStamp(), data));
+    }
+
+    /**
+     * Find the only block which may contain the key.
+     *
+     * @param loaded index of the table
+     * @param key    key to look for
+     * @param from   first block to consider
+     * @return index of the last block starting not after the key
+     */
+    private static int blockFor(@NotNull final Index loaded, @NotNull final ByteBuffer key, final int from) {
+        final ByteBuffer[] indexKeys = loaded.keys;
+        int left = from;
+        int right = indexKeys.length - 1;
+        while (left <= right) {
+            final int mid = left + ((right - left) >> 1);
+            final int cmp = key.compareTo(indexKeys[mid]);
+            if (cmp < 0) {
+                right = mid - 1;
+            } else if (cmp > 0) {
+                left = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return left - 1;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        final Index loaded = index();
+        if (loaded.keys.length == 0) {
+            return Iters.empty();
+        }
+        final int blockIndex = blockFor(loaded, from, 0);
+        return new CellIterator(loaded, blockIndex, page(loaded, blockIndex), from, to);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(@Nullable final ByteBuffer from) throws IOException {
+        final Index loaded = index();
+        final int blockIndex = from == null ? loaded.keys.length - 1 : blockFor(loaded, from, 0);
+        return new DescendingCellIterator(loaded, blockIndex, from);
+    }
+
+    /**
+     * Check whether the table has keys below the bound, the index is not loaded if the key range is known.
+     *
+     * @param to exclusive bound
+     * @return false if all keys of the table are not less than the bound
+     * @throws IOException If an I/O error occurs
+     */
+    boolean startsBefore(@NotNull final ByteBuffer to) throws IOException {
+        return rows > 0 && firstKey().compareTo(to) < 0;
+    }
+
+    /**
+     * Check whether the table may have keys with the prefix.
+     *
+     * @param extractor extractor the prefix was obtained with
+     * @param prefix    prefix of keys
+     * @return false if the table definitely has no key with the prefix
+     * @throws IOException If an I/O error occurs
+     */
+    boolean mightContainPrefix(@NotNull final PrefixExtractor extractor, @NotNull final ByteBuffer prefix)
+            throws IOException {
+        final Index loaded = index();
+        return loaded.prefixFilter == null
+                || !extractor.name().equals(loaded.prefixExtractorName)
+                || loaded.prefixFilter.mightContain(prefix);
+    }
+
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) throws IOException {
+        final Index loaded = index();
+        if (loaded.keys.length == 0 || (loaded.bloomFilter != null && !loaded.bloomFilter.mightContain(key))) {
+            return null;
+        }
+        try (BlockCache.Page page = page(loaded, blockFor(loaded, key, 0))) {
+            final Block.Cursor cursor = new Block(page.data()).seek(key);
+            if (!cursor.hasNext() || cursor.compareKey(key) != 0) {
+                return null;
+            }
+            final Cell cell = cursor.next();
+            return page.isPinned() ? copyOf(cell) : cell;
+        }
+    }
+
+    /**
+     * Look sorted keys up in a single forward pass, so keys sharing a block read and search it once.
+     *
+     * @param keys distinct keys in ascending order
+     * @return cells by index of the key, null for keys the table doesn't have
+     * @throws IOException If an I/O error occurs
+     */
+    @NotNull
+    Cell[] getAll(@NotNull final List<ByteBuffer> keys) throws IOException {
+        final Cell[] found = new Cell[keys.size()];
+        final Index loaded = index();
+        if (loaded.keys.length == 0) {
+            return found;
+        }
+        BlockCache.Page page = null;
+        Block block = null;
+        int blockIndex = 0;
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                final ByteBuffer key = keys.get(i);
+                if (loaded.bloomFilter != null && !loaded.bloomFilter.mightContain(key)) {
+                    continue;
+                }
+                // Blocks before the current one can't have the following keys
+                final int next = blockFor(loaded, key, blockIndex);
+                if (next < 0) {
+                    continue;
+                }
+                if (page == null || next != blockIndex) {
+                    if (page != null) {
+                        page.close();
+                    }
+                    page = page(loaded, next);
+                    block = new Block(page.data());
+                    blockIndex = next;
+                }
+                final Block.Cursor cursor = block.seek(key);
+                if (cursor.hasNext() && cursor.compareKey(key) == 0) {
+                    final Cell cell = cursor.next();
+                    found[i] = page.isPinned() ? copyOf(cell) : cell;
+                }
+            }
+        } finally {
+            if (page != null) {
+                page.close();
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+        throw new UnsupportedOperationException(UNSUPPORTED_EXCEPTION_MESSAGE);
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) {
+        throw new UnsupportedOperationException(UNSUPPORTED_EXCEPTION_MESSAGE);
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException(UNSUPPORTED_EXCEPTION_MESSAGE);
+    }
+
+    /**
+     * Source of the file contents.
+     */
+    @FunctionalInterface
+    interface Reader {
+        /**
+         * Read a range of the file.
+         *
+         * @param offset position in the file
+         * @param size   count of bytes
+         * @return buffer with the range between position 0 and limit
+         * @throws IOException If an I/O error occurs
+         */
+        @NotNull
+        ByteBuffer read(long offset, int size) throws IOException;
+
+        /**
+         * Read a block of the table.
+         *
+         * @param offset position of the stored block in the file
+         * @param size   size of the stored block
+         * @return page with decompressed contents of the block, the caller must close it
+         * @throws IOException If an I/O error occurs
+         */
+        @NotNull
+        default BlockCache.Page readBlock(final long offset, final int size) throws IOException {
+            return new BlockCache.Page(Compression.decode(read(offset, size)));
+        }
+    }
+
+    /**
+     * Sparse index of blocks and BloomFilters of keys and of their prefixes.
+     */
+    private static final class Index {
+        private final ByteBuffer[] keys;
+        private final long[] offsets;
+        private final int[] sizes;
+        private final BloomFilter bloomFilter;
+        private final String prefixExtractorName;
+        private final BloomFilter prefixFilter;
+
+        Index(final ByteBuffer[] keys,
+                final long[] offsets,
+                final int[] sizes,
+                final BloomFilter bloomFilter,
+                final String prefixExtractorName,
+                final BloomFilter prefixFilter) {
+            this.keys = keys;
+            this.offsets = offsets;
+            this.sizes = sizes;
+            this.bloomFilter = bloomFilter;
+            this.prefixExtractorName = prefixExtractorName;
+            this.prefixFilter = prefixFilter;
+        }
+    }
+
+    /**
+     * Page an iterator currently reads, released when the iterator moves on or is collected.
+     */
+    private static final class Pin implements Runnable {
+        private BlockCache.Page page;
+
+        synchronized void set(final BlockCache.Page page) {
+            if (this.page != null) {
+                this.page.close();
+            }
+            this.page = page;
+        }
+
+        @Override
+        public void run() {
+            set(null);
+        }
+    }
+
+    private final class CellIterator implements Iterator<Cell> {
+        private final Pin pin = new Pin();
+        private final Index loaded;
+        // Exclusive, null for no bound
+        private final ByteBuffer to;
+        private Cleaner.Cleanable cleanable;
+        private int blockIndex;
+        private Block.Cursor cursor;
+        private boolean copy;
+        private boolean done;
+
+        CellIterator(
+                final Index loaded,
+                final int blockIndex,
+                final BlockCache.Page page,
+                final ByteBuffer from,
+                final ByteBuffer to) {
+            this.loaded = loaded;
+            this.to = to;
+            this.blockIndex = blockIndex;
+            this.cursor = load(page).seek(from);
+        }
+
+        private Block load(final BlockCache.Page page) {
+            if (page.isPinned() && cleanable == null) {
+                cleanable = CLEANER.register(this, pin);
+            }
+            pin.set(page);
+            copy = page.isPinned();
+            return new Block(page.data());
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (done) {
+                return false;
+            }
+            while (!cursor.hasNext()) {
+                // An index key is not greater than the keys of its block, so blocks past the bound are not read
+                if (blockIndex + 1 == loaded.keys.length
+                        || to != null && loaded.keys[blockIndex + 1].compareTo(to) >= 0) {
+                    return finish();
+                }
+                try {
+                    cursor = load(page(loaded, ++blockIndex)).cursor();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            if (to != null && cursor.compareKey(to) >= 0) {
+                return finish();
+            }
+            return true;
+        }
+
+        private boolean finish() {
+            done = true;
+            if (cleanable != null) {
+                cleanable.clean();
+            }
+            return false;
+        }
+
+        @Override
+        public Cell next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("Iterator is empty");
+            }
+            final Cell cell = cursor.next();
+            return copy ? copyOf(cell) : cell;
+        }
+    }
+
+    /**
+     * Reads blocks from the last one, cells of a block can only be decoded forward,
+     * so each block is decoded as a whole and its cells are returned from the end.
+     */
+    private final class DescendingCellIterator implements Iterator<Cell> {
+        private final Index loaded;
+        // Inclusive, null for no bound
+        private final ByteBuffer from;
+        private final List<Cell> cells = new ArrayList<>();
+        private int blockIndex;
+        private int position;
+
+        DescendingCellIterator(final Index loaded, final int blockIndex, final ByteBuffer from) {
+            this.loaded = loaded;
+            this.blockIndex = blockIndex;
+            this.from = from;
+        }
+
+        private void read(final int block) throws IOException {
+            cells.clear();
+            try (BlockCache.Page page = page(loaded, block)) {
+                final Block.Cursor cursor = new Block(page.data()).cursor();
+                // Only the first block read may have keys above the bound
+                while (cursor.hasNext() && (from == null || cursor.compareKey(from) <= 0)) {
+                    final Cell cell = cursor.next();
+                    cells.add(page.isPinned() ? copyOf(cell) : cell);
+                }
+            }
+            position = cells.size();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (position == 0) {
+                if (blockIndex < 0) {
+                    return false;
+                }
+                try {
+                    read(blockIndex--);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Cell next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("Iterator is empty");
+            }
+            return cells.get(--position);
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package ru.mail.polis.persistence;
+
+import java.util.Arrays;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Settings of {@link LSMDao}.
+ */
+public final class LSMConfig {
+    private long flushThreshold;
+    private TableMode tableMode = TableMode.FILE_CHANNEL;
+    private int openFilesLimit = 64;
+    private int blockSize = 4 * 1024;
+    private long blockCacheSize = 16 * 1024 * 1024;
+    private long rowCacheSize;
+    private Durability durability = Durability.NO_SYNC;
+    private int compactionThreads = 2;
+    private int openThreads = 4;
+    private boolean warmUp;
+    private int bloomFilterBitsPerKey = 10;
+    private PrefixExtractor prefixExtractor;
+    private Compression[] compression = {Compression.NONE};
+    private int valueLogThreshold;
+    private double valueLogGarbageRatio = 0.5;
+    private long valueLogSegmentSize = 64 * 1024 * 1024;
+    private CompactionStrategy compactionStrategy = new OlderHalfCompactionStrategy();
+
+    /**
+     * Settings with the given memTable flush threshold and defaults for everything else.
+     *
+     * @param flushThreshold maxsize of memTable in bytes
+     */
+    public LSMConfig(final long flushThreshold) {
+        flushThreshold(flushThreshold);
+    }
+
+    /**
+     * Set maxsize of memTable.
+     *
+     * @param flushThreshold maxsize of memTable in bytes
+     * @return this
+     */
+    public LSMConfig flushThreshold(final long flushThreshold) {
+        if (flushThreshold < 0L) {
+            throw new IllegalArgumentException("Negative flush threshold: " + flushThreshold);
+        }
+        this.flushThreshold = flushThreshold;
+        return this;
+    }
+
+    /**
+     * Set the way SSTables are read.
+     *
+     * @param tableMode reader of SSTable files
+     * @return this
+     */
+    public LSMConfig tableMode(@NotNull final TableMode tableMode) {
+        this.tableMode = tableMode;
+        return this;
+    }
+
+    /**
+     * Set how many SSTable channels may be kept open at once.
+     *
+     * @param openFilesLimit capacity of the open file handle cache
+     * @return this
+     */
+    public LSMConfig openFilesLimit(final int openFilesLimit) {
+        if (openFilesLimit <= 0) {
+            throw new IllegalArgumentException("Non-positive open files limit: " + openFilesLimit);
+        }
+        this.openFilesLimit = openFilesLimit;
+        return this;
+    }
+
+    /**
+     * Set the size SSTable blocks are filled up to, larger cells get a block of their own.
+     *
+     * @param blockSize size of a block in bytes
+     * @return this
+     */
+    public LSMConfig blockSize(final int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Non-positive block size: " + blockSize);
+        }
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    /**
+     * Set size of the off-heap cache of blocks read through {@link TableMode#FILE_CHANNEL}
+     * and of decompressed blocks of {@link TableMode#MAPPED} tables.
+     * Pages of the cache are twice the block size, so larger blocks are always read from the file.
+     *
+     * @param blockCacheSize size of the cache in bytes, 0 disables it
+     * @return this
+     */
+    public LSMConfig blockCacheSize(final long blockCacheSize) {
+        if (blockCacheSize < 0L) {
+            throw new IllegalArgumentException("Negative block cache size: " + blockCacheSize);
+        }
+        this.blockCacheSize = blockCacheSize;
+        return this;
+    }
+
+    /**
+     * Set size of the on-heap cache of point lookups, see {@link RowCache}.
+     * Iterators don't use it, so it pays off only for repeated reads of the same keys.
+     * The cache and the memTables are kept within half of the heap, so a larger size is reduced.
+     *
+     * @param rowCacheSize bound of the heap used by cached rows in bytes, 0 disables the cache
+     * @return this
+     */
+    public LSMConfig rowCacheSize(final long rowCacheSize) {
+        if (rowCacheSize < 0L) {
+            throw new IllegalArgumentException("Negative row cache size: " + rowCacheSize);
+        }
+        this.rowCacheSize = rowCacheSize;
+        return this;
+    }
+
+    /**
+     * Set when the write-ahead log is forced to the disk.
+     *
+     * @param durability sync mode of the write-ahead log
+     * @return this
+     */
+    public LSMConfig durability(@NotNull final Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+
+    /**
+     * Set how many compactions may run in the background at once.
+     *
+     * @param compactionThreads size of the compaction thread pool
+     * @return this
+     */
+    public LSMConfig compactionThreads(final int compactionThreads) {
+        if (compactionThreads <= 0) {
+            throw new IllegalArgumentException("Non-positive compaction threads: " + compactionThreads);
+        }
+        this.compactionThreads = compactionThreads;
+        return this;
+    }
+
+    /**
+     * Set how many SSTables are opened at once on start.
+     *
+     * @param openThreads size of the thread pool opening tables
+     * @return this
+     */
+    public LSMConfig openThreads(final int openThreads) {
+        if (openThreads <= 0) {
+            throw new IllegalArgumentException("Non-positive open threads: " + openThreads);
+        }
+        this.openThreads = openThreads;
+        return this;
+    }
+
+    /**
+     * Set whether indexes and BloomFilters of SSTables are read in the background right after start,
+     * otherwise each table reads them on its first request.
+     *
+     * @param warmUp true to read them ahead of requests
+     * @return this
+     */
+    public LSMConfig warmUp(final boolean warmUp) {
+        this.warmUp = warmUp;
+        return this;
+    }
+
+    /**
+     * Set the policy picking SSTables to merge in the background,
+     * {@link OlderHalfCompactionStrategy} by default.
+     * {@link LeveledCompactionStrategy} reads fewer tables per key,
+     * {@link SizeTieredCompactionStrategy} rewrites every row fewer times.
+     *
+     * @param compactionStrategy policy of compactions
+     * @return this
+     */
+    public LSMConfig compactionStrategy(@NotNull final CompactionStrategy compactionStrategy) {
+        this.compactionStrategy = compactionStrategy;
+        return this;
+    }
+
+    /**
+     * Set size of the BloomFilter of every SSTable, 10 bits per key give about 1% of false positives.
+     *
+     * @param bloomFilterBitsPerKey bits per key, 0 disables filters of new tables
+     * @return this
+     */
+    public LSMConfig bloomFilterBitsPerKey(final int bloomFilterBitsPerKey) {
+        if (bloomFilterBitsPerKey < 0) {
+            throw new IllegalArgumentException("Negative bits per key: " + bloomFilterBitsPerKey);
+        }
+        this.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+        return this;
+    }
+
+    /**
+     * Set the extractor of key prefixes, every new SSTable gets a BloomFilter of the prefixes,
+     * so that {@link LSMDao#range} inside a single prefix skips tables without it.
+     *
+     * @param prefixExtractor extractor of prefixes or null for no prefix filters
+     * @return this
+     */
+    public LSMConfig prefixExtractor(@Nullable final PrefixExtractor prefixExtractor) {
+        this.prefixExtractor = prefixExtractor;
+        return this;
+    }
+
+    /**
+     * Set the codec of SSTable blocks per level of the LSM tree, the last one applies to all deeper levels,
+     * e.g. {@code compression(NONE, LZ4, DEFLATE)} keeps flushed tables uncompressed
+     * and compresses the coldest levels hardest.
+     * Only {@link LeveledCompactionStrategy} moves tables below level 0.
+     * Tables keep the codec they were written with, so the setting may change between runs.
+     *
+     * @param perLevel codecs starting from level 0
+     * @return this
+     */
+    public LSMConfig compression(@NotNull final Compression... perLevel) {
+        if (perLevel.length == 0) {
+            throw new IllegalArgumentException("No compression given");
+        }
+        for (final Compression codec : perLevel) {
+            if (codec == null) {
+                throw new IllegalArgumentException("Null compression in " + Arrays.toString(perLevel));
+            }
+        }
+        this.compression = perLevel.clone();
+        return this;
+    }
+
+    /**
+     * Set the size values are moved from SSTables to the value log from,
+     * so compactions rewrite only small pointers to them instead of the values.
+     * Reading such a value costs one more read from the disk.
+     *
+     * @param valueLogThreshold size of a value in bytes, 0 keeps all values in SSTables
+     * @return this
+     */
+    public LSMConfig valueLogThreshold(final int valueLogThreshold) {
+        if (valueLogThreshold < 0) {
+            throw new IllegalArgumentException("Negative value log threshold: " + valueLogThreshold);
+        }
+        this.valueLogThreshold = valueLogThreshold;
+        return this;
+    }
+
+    /**
+     * Set the share of overwritten and removed values in a segment of the value log,
+     * which makes the live values relocated and the segment deleted.
+     * Lower ratios save disk space at the cost of more rewrites.
+     *
+     * @param valueLogGarbageRatio ratio between 0 exclusive and 1 inclusive
+     * @return this
+     */
+    public LSMConfig valueLogGarbageRatio(final double valueLogGarbageRatio) {
+        if (!(valueLogGarbageRatio > 0.0 && valueLogGarbageRatio <= 1.0)) {
+            throw new IllegalArgumentException("Garbage ratio is not in (0, 1]: " + valueLogGarbageRatio);
+        }
+        this.valueLogGarbageRatio = valueLogGarbageRatio;
+        return this;
+    }
+
+    /**
+     * Set the size a segment of the value log is closed at, values of all flushes and compactions
+     * are appended to the same segment until then, so smaller segments are relocated sooner at the cost of more files.
+     *
+     * @param valueLogSegmentSize size of a segment in bytes
+     * @return this
+     */
+    public LSMConfig valueLogSegmentSize(final long valueLogSegmentSize) {
+        if (valueLogSegmentSize <= 0L) {
+            throw new IllegalArgumentException("Non-positive value log segment size: " + valueLogSegmentSize);
+        }
+        this.valueLogSegmentSize = valueLogSegmentSize;
+        return this;
+    }
+
+    long getFlushThreshold() {
+        return flushThreshold;
+    }
+
+    TableMode getTableMode() {
+        return tableMode;
+    }
+
+    int getOpenFilesLimit() {
+        return openFilesLimit;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    long getBlockCacheSize() {
+        return blockCacheSize;
+    }
+
+    long getRowCacheSize() {
+        return rowCacheSize;
+    }
+
+    Durability getDurability() {
+        return durability;
+    }
+
+    int getCompactionThreads() {
+        return compactionThreads;
+    }
+
+    int getOpenThreads() {
+        return openThreads;
+    }
+
+    boolean isWarmUp() {
+        return warmUp;
+    }
+
+    CompactionStrategy getCompactionStrategy() {
+        return compactionStrategy;
+    }
+
+    int getBloomFilterBitsPerKey() {
+        return bloomFilterBitsPerKey;
+    }
+
+    PrefixExtractor getPrefixExtractor() {
+        return prefixExtractor;
+    }
+
+    Compression[] getCompression() {
+        return compression.clone();
+    }
+
+    int getValueLogThreshold() {
+        return valueLogThreshold;
+    }
+
+    double getValueLogGarbageRatio() {
+        return valueLogGarbageRatio;
+    }
+
+    long getValueLogSegmentSize() {
+        return valueLogSegmentSize;
+    }
+}
@@ -1,37 +1,94 @@
 package ru.mail.polis.persistence;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import ru.mail.polis.DAO;
 import ru.mail.polis.Iters;
 import ru.mail.polis.Record;
+import ru.mail.polis.Snapshot;
+import ru.mail.polis.WriteBatch;
 
 public class LSMDao implements DAO {
+    private static final Logger log = LoggerFactory.getLogger(LSMDao.class);
     private static final String TABLE_NAME = "SSTable";
     private static final String SUFFIX = ".dat";
     private static final String TEMP = ".tmp";
-    private static final int DANGER_COUNT_FILES = 5;
-    private final Table memTable = new MemTable();
+    private static final String WAL_NAME = "WAL";
+    private static final String LOG = ".log";
+    private static final int MAX_FLUSHING_TABLES = 2;
+    private static final long FLUSH_RETRY_MIN_MS = 100;
+    private static final long FLUSH_RETRY_MAX_MS = 10_000;
     private final long flushThreshold;
+    private final TableMode tableMode;
+    private final TableWriter tableWriter;
+    private final PrefixExtractor prefixExtractor;
+    private final FileHandleCache fileHandles;
+    private final BlockCache blockCache;
+    private final RowCache rowCache;
+    private final ValueLog valueLog;
+    private final Manifest manifest;
+    private final Durability durability;
+    private final CompactionStrategy compactionStrategy;
+    private final ScheduledExecutorService walSyncer;
+    private final ExecutorService flusher;
+    private final ExecutorService compactor;
+    private final ExecutorService opener;
+    private final Semaphore flushPermits = new Semaphore(MAX_FLUSHING_TABLES);
     private final File base;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Condition compactionDone = lock.writeLock().newCondition();
+    private final Set<FileTable> compacting = new HashSet<>();
+    // Open snapshots, guarded by the write lock
+    private final Set<TableSnapshot> snapshots = new HashSet<>();
     private int currentGeneration;
-    private List<Table> fileTables;
+    private int memTableGeneration;
+    private volatile WriteAheadLog wal;
+    private volatile TableSet tables;
+    private volatile IOException flushFailure;
+    private volatile boolean closing;
+    private volatile boolean closed;
 
     /**
      * NoSql Dao.
@@ -41,152 +98,1363 @@ public class LSMDao implements DAO {
      * @throws IOException If an I/O error occurs
      */
     public LSMDao(final File base, final long flushThreshold) throws IOException {
+        this(base, new LSMConfig(flushThreshold));
+    }
+
+    /**
+     * NoSql Dao.
+     *
+     * @param base   directory of DB
+     * @param config settings of this Dao
+     * @throws IOException If an I/O error occurs
+     */
+    public LSMDao(final File base, final LSMConfig config) throws IOException {
         this.base = base;
-        assert flushThreshold >= 0L;
-        this.flushThreshold = flushThreshold;
-        readFiles();
-    }
-
-    private void readFiles() throws IOException {
-        try (Stream<Path> stream = Files.walk(base.toPath(), 1)
-                .filter(path -> {
-                    final String fileName = path.getFileName().toString();
-                    return fileName.endsWith(SUFFIX) && fileName.contains(TABLE_NAME);
-                })) {
-            final List<Path> files = stream.collect(Collectors.toList());
-            fileTables = new ArrayList<>(files.size());
-            currentGeneration = -1;
-            files.forEach(path -> {
-                final File file = path.toFile();
-                try {
-                    final FileChannelTable fileChannelTable = new FileChannelTable(file);
-                    fileTables.add(fileChannelTable);
-                    currentGeneration = Math.max(currentGeneration,
-                            FileChannelTable.getGenerationByName(file.getName()));
-                } catch (IOException e) {
-                    e.printStackTrace();
+        this.flushThreshold = config.getFlushThreshold();
+        this.tableMode = config.getTableMode();
+        final int blockSize = config.getBlockSize();
+        this.prefixExtractor = config.getPrefixExtractor();
+        this.tableWriter = new TableWriter(
+                blockSize,
+                config.getBloomFilterBitsPerKey(),
+                prefixExtractor,
+                config.getCompression());
+        this.fileHandles = new FileHandleCache(config.getOpenFilesLimit());
+        // Mapped tables put only decompressed blocks into the cache, the arena is allocated on the first miss
+        this.blockCache = new BlockCache(config.getBlockCacheSize(), 2 * blockSize);
+        this.rowCache = new RowCache(rowCacheCapacity(config.getRowCacheSize()));
+        this.valueLog = new ValueLog(base, fileHandles,
+                config.getValueLogThreshold(), config.getValueLogGarbageRatio(), config.getValueLogSegmentSize());
+        this.durability = config.getDurability();
+        this.compactionStrategy = config.getCompactionStrategy();
+        this.opener = Executors.newFixedThreadPool(config.getOpenThreads(),
+                new ThreadFactoryBuilder().setNameFormat("open-%d").setDaemon(true).build());
+        final List<File> existing = listFiles();
+        currentGeneration = -1;
+        for (final File file : existing) {
+            currentGeneration = Math.max(currentGeneration, FileTable.getGenerationByName(file.getName()));
+        }
+        valueLog.open(existing);
+        Manifest committed = null;
+        try {
+            committed = Manifest.read(base);
+            final List<FileTable> files;
+            if (committed == null) {
+                files = readFiles(existing);
+                committed = Manifest.create(base, files);
+            } else {
+                files = openTables(committed.tables());
+            }
+            this.manifest = committed;
+            final List<File> unknown = deleteUncommitted(existing);
+            replayLogs(existing, files);
+            for (final FileTable table : files) {
+                Value.observe(table.maxTimeStamp());
+            }
+            if (retainValues(unknown)) {
+                valueLog.deleteUnused();
+            } else {
+                log.warn("Unused value log segments in {} are kept along with unreadable SSTables", base);
+            }
+            this.tables = new TableSet(new MemTable(), Collections.emptyList(), files);
+            this.wal = openLog();
+        } catch (IOException | RuntimeException e) {
+            // Nothing is deleted, the directory is left for the next attempt
+            opener.shutdownNow();
+            if (committed != null) {
+                committed.close();
+            }
+            fileHandles.close();
+            throw e;
+        }
+        this.flusher = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("flush-%d").setDaemon(true).build());
+        this.compactor = Executors.newFixedThreadPool(config.getCompactionThreads(),
+                new ThreadFactoryBuilder().setNameFormat("compaction-%d").setDaemon(true).build());
+        if (durability == Durability.PERIODIC) {
+            this.walSyncer = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("wal-sync-%d").setDaemon(true).build());
+            walSyncer.scheduleAtFixedRate(this::syncLog,
+                    WriteAheadLog.SYNC_PERIOD_MS, WriteAheadLog.SYNC_PERIOD_MS, TimeUnit.MILLISECONDS);
+        } else {
+            this.walSyncer = null;
+        }
+        if (config.isWarmUp()) {
+            opener.execute(this::warmUp);
+        }
+        opener.shutdown();
+        scheduleCompaction();
+    }
+
+    /**
+     * Bound the row cache, so it leaves half of the heap to memTables, which take up to a flush threshold each.
+     *
+     * @param requested configured size of the cache
+     * @return size of the cache in bytes
+     */
+    private long rowCacheCapacity(final long requested) {
+        final long memTables = (MAX_FLUSHING_TABLES + 1) * flushThreshold;
+        final long available = Math.max(0L, Runtime.getRuntime().maxMemory() / 2 - memTables);
+        if (requested > available) {
+            log.warn("Row cache is limited to {} bytes of the heap instead of {}", available, requested);
+            return available;
+        }
+        return requested;
+    }
+
+    private List<File> listFiles() throws IOException {
+        try (Stream<Path> stream = Files.walk(base.toPath(), 1)) {
+            return stream
+                    .filter(path -> !path.equals(base.toPath()))
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Find SSTables in the directory, which has no manifest yet, all of them become committed.
+     *
+     * @param existing files of the directory
+     * @return opened tables
+     * @throws IOException If an I/O error occurs or a file is not a readable SSTable
+     */
+    private List<FileTable> readFiles(final List<File> existing) throws IOException {
+        final List<Future<FileTable>> opened = new ArrayList<>();
+        for (final File file : existing) {
+            if (file.getName().endsWith(TABLE_NAME + SUFFIX)) {
+                opened.add(opener.submit(() -> tableMode.open(upgraded(file), fileHandles, blockCache)));
+            }
+        }
+        final List<FileTable> files = new ArrayList<>(opened.size());
+        for (final Future<FileTable> future : opened) {
+            final FileTable table = await(future);
+            valueLog.retain(table);
+            files.add(table);
+        }
+        return files;
+    }
+
+    /**
+     * Rewrite the SSTable in place if it is in the format used before blocks, see {@link LegacyTable}.
+     * A directory in that format has no manifest, so only tables found without one are checked.
+     *
+     * @param file SSTable
+     * @return the same file in the current format
+     * @throws IOException If an I/O error occurs or the file is not an SSTable
+     */
+    private File upgraded(final File file) throws IOException {
+        if (!LegacyTable.isLegacy(file)) {
+            return file;
+        }
+        final File tmp = new File(base, FileTable.getGenerationByName(file.getName()) + TABLE_NAME + TEMP);
+        try {
+            LegacyTable.rewrite(file, tmp, tableWriter);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    /**
+     * Open the committed SSTables, their key ranges are taken from the manifest.
+     *
+     * @param committed descriptions of the tables
+     * @return opened tables
+     * @throws IOException If an I/O error occurs or a file doesn't match its description
+     */
+    private List<FileTable> openTables(final List<Manifest.TableMeta> committed) throws IOException {
+        final List<Future<FileTable>> opened = new ArrayList<>(committed.size());
+        for (final Manifest.TableMeta meta : committed) {
+            final File file = new File(base, meta.generation + TABLE_NAME + SUFFIX);
+            opened.add(opener.submit(() -> {
+                final FileTable table = tableMode.open(file, fileHandles, blockCache);
+                if (table.getLevel() != meta.level || table.sizeInBytes() != meta.size || table.rows() != meta.rows) {
+                    throw new IOException("SSTable doesn't match the manifest: " + file);
                 }
-            });
-            currentGeneration++;
+                table.setKeyRange(meta.firstKey, meta.lastKey);
+                return table;
+            }));
+        }
+        final List<FileTable> files = new ArrayList<>(opened.size());
+        for (final Future<FileTable> future : opened) {
+            final FileTable table = await(future);
+            valueLog.retain(table);
+            files.add(table);
+        }
+        return files;
+    }
+
+    private static FileTable await(final Future<FileTable> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while opening tables");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Read indexes and BloomFilters of the tables in the background, stops when the Dao is closed.
+     */
+    private void warmUp() {
+        final TableSet set = retainTables();
+        try {
+            for (final FileTable table : set.files) {
+                if (closed) {
+                    return;
+                }
+                table.warmUp();
+            }
+        } catch (IOException e) {
+            log.error("Warm-up of SSTables in {} has failed", base, e);
+        } finally {
+            release(set);
+        }
+    }
+
+    /**
+     * Delete SSTables left by flushes and compactions, which were not committed to the manifest before a crash,
+     * and inputs of committed compactions, which were not deleted yet.
+     * Other SSTables missing from the manifest, e.g. copied into the directory, are kept as they are and never read.
+     *
+     * @param existing files of the directory
+     * @return such unknown SSTables
+     * @throws IOException If an I/O error occurs
+     */
+    private List<File> deleteUncommitted(final List<File> existing) throws IOException {
+        final Set<Integer> logs = new HashSet<>();
+        for (final File file : existing) {
+            if (file.getName().endsWith(WAL_NAME + LOG)) {
+                logs.add(FileTable.getGenerationByName(file.getName()));
+            }
+        }
+        final List<File> unknown = new ArrayList<>();
+        for (final File file : existing) {
+            final String name = file.getName();
+            if (name.endsWith(TABLE_NAME + TEMP)) {
+                Files.delete(file.toPath());
+            } else if (name.endsWith(TABLE_NAME + SUFFIX)) {
+                final int generation = FileTable.getGenerationByName(name);
+                if (manifest.contains(generation)) {
+                    continue;
+                }
+                // A table with a log is flushed again from the log, outputs of compactions are recorded as obsolete
+                if (manifest.isObsolete(generation) || logs.contains(generation)) {
+                    Files.delete(file.toPath());
+                    manifest.deleted(generation);
+                } else {
+                    log.warn("SSTable {} is not in the manifest, it is kept but not read", file);
+                    unknown.add(file);
+                }
+            }
+        }
+        return unknown;
+    }
+
+    /**
+     * Count values of unknown SSTables as live, so segments of the value log they point to are kept.
+     *
+     * @param unknown SSTables missing from the manifest
+     * @return true if all of them are counted and unused segments may be deleted
+     */
+    private boolean retainValues(final List<File> unknown) {
+        for (final File file : unknown) {
+            try {
+                valueLog.retain(tableMode.open(file, fileHandles, blockCache));
+            } catch (IOException e) {
+                log.warn("SSTable {} can't be read", file, e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Turn write-ahead logs of memTables, which were not flushed before a crash, into SSTables.
+     *
+     * @param existing files of the directory
+     * @param files    SSTables to add the replayed tables to
+     * @throws IOException If an I/O error occurs
+     */
+    private void replayLogs(final List<File> existing, final List<FileTable> files) throws IOException {
+        final List<File> logs = existing.stream()
+                .filter(file -> file.getName().endsWith(WAL_NAME + LOG))
+                .sorted(Comparator.comparingInt(file -> FileTable.getGenerationByName(file.getName())))
+                .collect(Collectors.toList());
+        for (final File log : logs) {
+            final int generation = FileTable.getGenerationByName(log.getName());
+            if (!manifest.contains(generation)) {
+                final MemTable replayed = new MemTable();
+                WriteAheadLog.replay(log, replayed);
+                if (replayed.sizeInBytes() > 0) {
+                    final FileTable table = flush(replayed.iterator(ByteBuffer.allocate(0)), generation, 0);
+                    manifest.commit(Collections.emptyList(), Collections.singletonList(table));
+                    files.add(table);
+                }
+            }
+            Files.delete(log.toPath());
+        }
+    }
+
+    private WriteAheadLog openLog() throws IOException {
+        memTableGeneration = ++currentGeneration;
+        return new WriteAheadLog(new File(base, memTableGeneration + WAL_NAME + LOG), durability);
+    }
+
+    private static void closeLog(final WriteAheadLog log) throws IOException {
+        log.close();
+        Files.delete(log.getFile().toPath());
+    }
+
+    private void syncLog() {
+        try {
+            wal.sync();
+        } catch (ClosedChannelException e) {
+            // The log has just been flushed and deleted
+        } catch (IOException e) {
+            log.error("Sync of the write-ahead log has failed", e);
+        }
+    }
+
+    /**
+     * Reference the current tables, the caller must release them.
+     *
+     * @return retained set of tables
+     */
+    private TableSet retainTables() {
+        while (true) {
+            final TableSet current = tables;
+            if (current.tryRetain()) {
+                return current;
+            }
+        }
+    }
+
+    private static void release(final TableSet set) {
+        try {
+            set.release();
+        } catch (IOException e) {
+            log.error("Release of SSTables has failed", e);
         }
     }
 
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
-        final List<Iterator<Cell>> list = new ArrayList<>(fileTables.size() + 1);
-        for (final Table fileChannelTable : fileTables) {
-            list.add(fileChannelTable.iterator(from));
+        return iterator(retainTables(), from, null, null);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> range(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        if (to == null) {
+            return iterator(from);
+        }
+        if (from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+        return iterator(retainTables(), from, to, prefixOf(from, to));
+    }
+
+    /**
+     * Find the prefix all keys of the range start with.
+     *
+     * @param from inclusive
+     * @param to   exclusive
+     * @return the prefix or null if there is no prefix extractor or the range spans several prefixes
+     */
+    private ByteBuffer prefixOf(final ByteBuffer from, final ByteBuffer to) {
+        if (prefixExtractor == null) {
+            return null;
+        }
+        final ByteBuffer prefix = prefixExtractor.prefix(from);
+        if (prefix == null) {
+            return null;
+        }
+        final ByteBuffer end = Bytes.successor(prefix);
+        return end == null || to.compareTo(end) <= 0 ? prefix : null;
+    }
+
+    /**
+     * Merge the tables over the range of keys, every table stops reading at the bound by itself.
+     *
+     * @param set    retained tables, released when the result is exhausted
+     * @param from   inclusive
+     * @param to     exclusive or null
+     * @param prefix prefix of all requested keys, SSTables without it are skipped, or null
+     * @return iterator over live records
+     * @throws IOException If an I/O error occurs
+     */
+    private Iterator<Record> iterator(
+            final TableSet set,
+            final ByteBuffer from,
+            final ByteBuffer to,
+            final ByteBuffer prefix) throws IOException {
+        final List<Iterator<Cell>> list = new ArrayList<>(set.files.size() + set.flushing.size() + 1);
+        try {
+            for (final FileTable fileTable : set.files) {
+                if ((to == null || fileTable.startsBefore(to))
+                        && (prefix == null || fileTable.mightContainPrefix(prefixExtractor, prefix))) {
+                    list.add(fileTable.iterator(from, to));
+                }
+            }
+        } catch (IOException e) {
+            set.release();
+            throw e;
         }
-        final Iterator<Cell> memoryIterator = memTable.iterator(from);
-        list.add(memoryIterator);
-        final Iterator<Cell> iterator = Iters.collapseEquals(Iterators.mergeSorted(list, Cell.COMPARATOR),
-                Cell::getKey);
+        for (final MemTable frozen : set.flushing) {
+            list.add(frozen.iterator(from, to));
+        }
+        list.add(set.memTable.iterator(from, to));
+        return live(set, list, Cell.COMPARATOR);
+    }
 
-        final Iterator<Cell> alive =
-                Iterators.filter(
-                        iterator,
-                        cell -> !cell.getValue().isRemoved());
+    @NotNull
+    @Override
+    public Iterator<Record> descendingIterator(@Nullable final ByteBuffer from) throws IOException {
+        return descendingIterator(retainTables(), from);
+    }
 
-        return Iterators.transform(
-                alive,
-                cell -> Record.of(cell.getKey(), cell.getValue().getData()));
+    private Iterator<Record> descendingIterator(final TableSet set, final ByteBuffer from) throws IOException {
+        final List<Iterator<Cell>> list = new ArrayList<>(set.files.size() + set.flushing.size() + 1);
+        try {
+            for (final FileTable fileTable : set.files) {
+                list.add(fileTable.descendingIterator(from));
+            }
+        } catch (IOException e) {
+            set.release();
+            throw e;
+        }
+        for (final MemTable frozen : set.flushing) {
+            list.add(frozen.descendingIterator(from));
+        }
+        list.add(set.memTable.descendingIterator(from));
+        return live(set, list, Cell.DESCENDING);
     }
 
+    /**
+     * Merge sorted iterators of the tables keeping the newest cell of each key.
+     *
+     * @param set   retained tables, released when the result is exhausted
+     * @param list  iterators of the tables
+     * @param order order of keys of the iterators
+     * @return iterator over live records
+     */
+    private Iterator<Record> live(final TableSet set, final List<Iterator<Cell>> list, final Comparator<Cell> order) {
+        return new ReleasingIterator<>(
+                Iterators.transform(
+                        new MergeIterator(list, order, true),
+                        cell -> Record.of(cell.getKey(), dataOf(cell.getValue()))),
+                () -> release(set));
+    }
+
+    private ByteBuffer dataOf(final Value value) {
+        try {
+            return valueLog.dataOf(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Hand the memTable over to the flusher once it is full.
+     * Writers wait here only if too many memTables are already waiting for their flush,
+     * e.g. while a failed flush is being retried.
+     *
+     * @throws IOException If an I/O error occurs
+     */
     private void updateData() throws IOException {
-        if (memTable.sizeInBytes() > flushThreshold) {
-            flush();
-            if (fileTables.size() > DANGER_COUNT_FILES) {
-                mergeTables(0, fileTables.size() / 2);
+        if (tables.memTable.sizeInBytes() <= flushThreshold) {
+            return;
+        }
+        acquireFlushPermit();
+        boolean submitted = false;
+        lock.writeLock().lock();
+        try {
+            // Another writer may have switched it already
+            if (tables.memTable.sizeInBytes() > flushThreshold) {
+                freeze();
+                submitted = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+            if (!submitted) {
+                flushPermits.release();
             }
         }
     }
 
+    private void acquireFlushPermit() throws InterruptedIOException {
+        try {
+            flushPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a flush");
+        }
+    }
+
+    /**
+     * Hand the memTable over to the flusher and switch writes to a new one,
+     * called under the write lock with a flush permit, which the flusher releases.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    private void freeze() throws IOException {
+        final MemTable frozen = tables.memTable;
+        final WriteAheadLog frozenLog = wal;
+        final int generation = memTableGeneration;
+        wal = openLog();
+        publish(tables.frozen(new MemTable()));
+        flusher.execute(() -> flushInBackground(frozen, frozenLog, generation));
+    }
+
+    /**
+     * Take a view of the current tables without copying them.
+     * The memTable receiving writes is frozen and handed over to the flusher like a full one,
+     * so the view consists of immutable tables only, which it retains until it is closed.
+     * Snapshots taken without writes in between share the same tables and freeze nothing,
+     * a view moves from a frozen memTable to its SSTable once it is flushed, so the memTable is not kept on heap.
+     * The memTable keeps only the newest cell of a key, so it can't be shared with later writes:
+     * a snapshot taken after writes costs a flush of a possibly small SSTable on level 0,
+     * which compaction merges later, and waits for a flush permit if too many memTables are being flushed.
+     * Snapshots are meant to be taken once per batch of reads, rather than once per read under steady writes.
+     *
+     * @return view, which must be closed
+     * @throws IOException If an I/O error occurs
+     */
+    @NotNull
+    @Override
+    public Snapshot snapshot() throws IOException {
+        // Writes made after this check are concurrent with the snapshot and may be left out of it
+        final boolean freezing = tables.memTable.sizeInBytes() > 0;
+        if (freezing) {
+            acquireFlushPermit();
+        }
+        boolean submitted = false;
+        lock.writeLock().lock();
+        try {
+            // Another writer may have switched it already
+            if (freezing && tables.memTable.sizeInBytes() > 0) {
+                freeze();
+                submitted = true;
+            }
+            final TableSnapshot snapshot =
+                    new TableSnapshot(new TableSet(new MemTable(), tables.flushing, tables.files));
+            snapshots.add(snapshot);
+            return snapshot;
+        } finally {
+            lock.writeLock().unlock();
+            if (freezing && !submitted) {
+                flushPermits.release();
+            }
+        }
+    }
+
+    private void checkFlushFailure() throws IOException {
+        final IOException failure = flushFailure;
+        if (failure != null) {
+            throw new IOException("Background flush has failed", failure);
+        }
+    }
+
+    /**
+     * Health of background flushes, a failed flush is retried until it succeeds or the Dao is closed.
+     *
+     * @return the last failure of a flush, which is still being retried, or null if flushes succeed
+     */
+    @Nullable
+    public IOException getFlushFailure() {
+        return flushFailure;
+    }
+
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
-        memTable.upsert(key.duplicate(), value);
+        apply(Collections.singletonList(key.duplicate()), Collections.singletonList(value));
+    }
+
+    /**
+     * Apply the batch of writes atomically and durably at once.
+     * The batch is appended to the write-ahead log as a single record, which is replayed as a whole or not at all,
+     * and the memTable is checked for the flush once per batch.
+     * Cells get a range of successive timestamps reserved under the lock, so the last write of a repeated key wins
+     * and no other write falls in between.
+     * Visibility is atomic for snapshots only: {@link #snapshot()} waits for the batch to be applied,
+     * while concurrent {@link #get}, {@link #getAll} and iterators of the Dao may observe a part of the batch
+     * until it is applied, since they read the memTable without the lock.
+     *
+     * @param batch upserts and removals
+     * @throws IOException If an I/O error occurs
+     */
+    @Override
+    public void write(@NotNull final WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final List<ByteBuffer> keys = new ArrayList<>(batch.size());
+        final List<ByteBuffer> values = new ArrayList<>(batch.size());
+        batch.iterate(new WriteBatch.Handler() {
+            @Override
+            public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+                keys.add(key);
+                values.add(value);
+            }
+
+            @Override
+            public void remove(@NotNull final ByteBuffer key) {
+                keys.add(key);
+                values.add(null);
+            }
+        });
+        apply(keys, values);
+    }
+
+    /**
+     * Log the writes and put them into the memTable.
+     * Timestamps are taken under the lock, so every cell of a memTable is older than the cells of the next one,
+     * which lets lookups stop at the newest memTable with the key.
+     *
+     * @param keys   keys of the writes
+     * @param values values of the writes by index of the key, null for removals
+     * @throws IOException If an I/O error occurs
+     */
+    private void apply(final List<ByteBuffer> keys, final List<ByteBuffer> values) throws IOException {
+        final List<Cell> cells = new ArrayList<>(keys.size());
+        lock.readLock().lock();
+        try {
+            final long first = Value.reserve(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                final ByteBuffer value = values.get(i);
+                cells.add(new Cell(keys.get(i),
+                        value == null ? Value.tombstone(first + i) : Value.of(first + i, value)));
+            }
+            wal.append(cells);
+            for (final Cell cell : cells) {
+                tables.memTable.put(cell.getKey(), cell.getValue());
+                rowCache.invalidate(cell.getKey());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
         updateData();
     }
 
-    private void flush() throws IOException {
-        flush(memTable.iterator(ByteBuffer.allocate(0)), ++currentGeneration, memTable.getBloomFilter());
-        memTable.clear();
+    private void flushInBackground(final MemTable frozen, final WriteAheadLog frozenLog, final int generation) {
+        try {
+            long backoff = FLUSH_RETRY_MIN_MS;
+            while (true) {
+                try {
+                    flushFrozen(frozen, frozenLog, generation);
+                    flushFailure = null;
+                    scheduleCompaction();
+                    return;
+                } catch (IOException e) {
+                    // The memTable stays readable meanwhile, its log is replayed on the next start if the Dao is closed
+                    flushFailure = e;
+                    log.error("Flush of generation {} has failed, it is retried", generation, e);
+                }
+                if (closing) {
+                    return;
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoff = Math.min(2 * backoff, FLUSH_RETRY_MAX_MS);
+            }
+        } finally {
+            flushPermits.release();
+        }
     }
 
-    private void flush(final Iterator<Cell> iterator,
+    /**
+     * Write the full memTable to its SSTable and replace it in the set of tables.
+     *
+     * @param frozen     memTable, which is not written anymore
+     * @param log        write-ahead log of the memTable, deleted after the flush
+     * @param generation generation of the SSTable
+     * @throws IOException If an I/O error occurs
+     */
+    private void flushFrozen(final MemTable frozen, final WriteAheadLog log, final int generation)
+            throws IOException {
+        final FileTable flushed =
+                flush(frozen.iterator(ByteBuffer.allocate(0)), generation, 0);
+        try {
+            manifest.commit(Collections.emptyList(), Collections.singletonList(flushed));
+        } catch (IOException e) {
+            // The flush is retried with the same generation
+            flushed.delete();
+            valueLog.release(flushed);
+            throw e;
+        }
+        lock.writeLock().lock();
+        try {
+            publish(tables.flushed(frozen, flushed));
+            for (final TableSnapshot snapshot : snapshots) {
+                snapshot.flushed(frozen, flushed);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        closeLog(log);
+    }
+
+    /**
+     * Wait until all memTables handed over to the flusher are flushed.
+     *
+     * @throws IOException If the current thread is interrupted
+     */
+    private void awaitFlushes() throws IOException {
+        try {
+            flusher.submit(() -> {
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a flush");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private FileTable flush(final Iterator<Cell> iterator,
             final int generation,
-            final BitSet bloomFilter)
+            final int level)
             throws IOException {
         final File tmp = new File(base, generation + TABLE_NAME + TEMP);
-        Table.write(iterator, tmp, bloomFilter);
+        final ValueLog.Writer values = valueLog.writer(this::nextGeneration);
+        try {
+            tableWriter.write(iterator, tmp, level, values);
+        } catch (IOException | UncheckedIOException e) {
+            if (values != null) {
+                values.abort();
+            }
+            Files.deleteIfExists(tmp.toPath());
+            // Iterators relocating values can't throw IOException
+            throw e instanceof UncheckedIOException ? ((UncheckedIOException) e).getCause() : (IOException) e;
+        }
         final File dest = new File(base, generation + TABLE_NAME + SUFFIX);
-        Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
-        fileTables.add(new FileChannelTable(dest));
+        try {
+            if (values != null) {
+                values.finish();
+            }
+            Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            // Values are already counted as live by the writer
+            return tableMode.open(dest, fileHandles, blockCache);
+        } catch (IOException e) {
+            if (values != null) {
+                values.abort();
+            }
+            Files.deleteIfExists(tmp.toPath());
+            Files.deleteIfExists(dest.toPath());
+            throw e;
+        }
+    }
+
+    /**
+     * Make the new set visible to readers and drop the reference of the Dao to the previous one,
+     * called under the write lock.
+     *
+     * @param next new set of tables
+     * @throws IOException If an I/O error occurs
+     */
+    private void publish(final TableSet next) throws IOException {
+        final TableSet previous = tables;
+        tables = next;
+        previous.release();
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
-        memTable.remove(key);
-        updateData();
+        apply(Collections.singletonList(key.duplicate()), Collections.singletonList(null));
     }
 
     @NotNull
     @Override
     public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
-        Cell actualCell = memTable.get(key);
-        for (final Table table : fileTables) {
-            final Cell cell = table.get(key);
-            if (cell == null) {
-                continue;
+        final ByteBuffer cached = rowCache.get(key);
+        if (cached == RowCache.ABSENT) {
+            throw new NoSuchElementException("");
+        }
+        if (cached != null) {
+            return cached;
+        }
+        final long version = rowCache.version(key);
+        final TableSet set = retainTables();
+        try {
+            final Cell actualCell = newest(set, key);
+            if (actualCell == null || actualCell.getValue().isRemoved()) {
+                rowCache.put(key, RowCache.ABSENT, version);
+                throw new NoSuchElementException("");
+            }
+            // Segments of the value log live as long as the retained tables
+            final Record record = Record.of(actualCell.getKey(), valueLog.dataOf(actualCell.getValue()));
+            rowCache.put(key, record.getValue(), version);
+            return record.getValue();
+        } finally {
+            set.release();
+        }
+    }
+
+    /**
+     * Look the key up from the newest table to the oldest one, stop as soon as no remaining table is newer
+     * than the cell found, which is usually the first hit.
+     *
+     * @param set retained tables
+     * @param key key to look for
+     * @return the newest cell of the key including a tombstone or null if there is none
+     * @throws IOException If an I/O error occurs
+     */
+    @Nullable
+    private static Cell newest(final TableSet set, final ByteBuffer key) throws IOException {
+        final Cell inMemory = newestInMemory(set, key);
+        if (inMemory != null) {
+            return inMemory;
+        }
+        // Compaction keeps timestamps, so the time ranges of SSTables may overlap
+        Cell actualCell = null;
+        for (final FileTable table : set.newestFirst) {
+            if (actualCell != null && actualCell.getValue().getTimeStamp() >= table.maxTimeStamp()) {
+                break;
             }
-            if (actualCell == null || Cell.COMPARATOR.compare(cell, actualCell) < 0) {
+            final Cell cell = table.get(key);
+            if (cell != null && (actualCell == null || Cell.COMPARATOR.compare(cell, actualCell) < 0)) {
                 actualCell = cell;
             }
         }
-        if (actualCell == null || actualCell.getValue().isRemoved()) {
-            throw new NoSuchElementException("");
+        return actualCell;
+    }
+
+    @Nullable
+    private static Cell newestInMemory(final TableSet set, final ByteBuffer key) {
+        // Writes take timestamps under the lock, which a switch of memTables excludes,
+        // so every cell of a memTable is newer than the cells of the tables frozen before it
+        final Cell inMemory = set.memTable.get(key);
+        if (inMemory != null) {
+            return inMemory;
+        }
+        for (int i = set.flushing.size() - 1; i >= 0; i--) {
+            final Cell cell = set.flushing.get(i).get(key);
+            if (cell != null) {
+                return cell;
+            }
         }
-        final Record record = Record.of(actualCell.getKey(), actualCell.getValue().getData());
-        return record.getValue();
+        return null;
     }
 
     /**
-     * merge tables.
+     * Look sorted keys up like {@link #newest(TableSet, ByteBuffer)} does, but pass every SSTable once
+     * with all keys, which may still have a newer cell in it.
      *
-     * @param from inclusive
-     * @param to   exclusive
+     * @param set  retained tables
+     * @param keys distinct keys in ascending order
+     * @return the newest cells by index of the key including tombstones, null for keys there are no cells of
      * @throws IOException If an I/O error occurs
      */
-    private void mergeTables(final int from, final int to) throws IOException {
-        final List<Table> mergeFiles = new ArrayList<>(fileTables.subList(from, to));
-        final Iterator<Cell> mergeIterator = FileChannelTable.merge(mergeFiles);
-        final BitSet mergeBloomFilter = new BitSet();
-        for (final Table table : mergeFiles) {
-            mergeBloomFilter.or(table.getBloomFilter());
+    @NotNull
+    private static Cell[] newest(final TableSet set, final List<ByteBuffer> keys) throws IOException {
+        final Cell[] found = new Cell[keys.size()];
+        final boolean[] inMemory = new boolean[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            found[i] = newestInMemory(set, keys.get(i));
+            inMemory[i] = found[i] != null;
+        }
+        final List<ByteBuffer> pending = new ArrayList<>(keys.size());
+        final int[] indexes = new int[keys.size()];
+        for (final FileTable table : set.newestFirst) {
+            pending.clear();
+            for (int i = 0; i < keys.size(); i++) {
+                if (!inMemory[i] && (found[i] == null || found[i].getValue().getTimeStamp() < table.maxTimeStamp())) {
+                    indexes[pending.size()] = i;
+                    pending.add(keys.get(i));
+                }
+            }
+            if (pending.isEmpty()) {
+                break;
+            }
+            final Cell[] cells = table.getAll(pending);
+            for (int j = 0; j < cells.length; j++) {
+                final int index = indexes[j];
+                if (cells[j] != null
+                        && (found[index] == null || Cell.COMPARATOR.compare(cells[j], found[index]) < 0)) {
+                    found[index] = cells[j];
+                }
+            }
         }
+        return found;
+    }
 
-        final List<Table> rightTables = new ArrayList<>(fileTables.subList(to, fileTables.size()));
-        fileTables = new ArrayList<>(fileTables.subList(0, from));
-        fileTables.addAll(rightTables);
+    /**
+     * Get values of many keys at once: keys are sorted, every SSTable is passed once with the keys,
+     * which may have newer cells in it, and reads each of its blocks at most once.
+     *
+     * @param keys keys to look for, repeated keys are looked up once
+     * @return values of found keys in ascending order of keys
+     * @throws IOException If an I/O error occurs
+     */
+    @NotNull
+    @Override
+    public SortedMap<ByteBuffer, ByteBuffer> getAll(@NotNull final Collection<ByteBuffer> keys) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> result = new TreeMap<>();
+        final List<ByteBuffer> missed = new ArrayList<>(keys.size());
+        for (final ByteBuffer key : new TreeSet<>(keys)) {
+            final ByteBuffer cached = rowCache.get(key);
+            if (cached == null) {
+                missed.add(key);
+            } else if (cached != RowCache.ABSENT) {
+                result.put(key, cached);
+            }
+        }
+        if (missed.isEmpty()) {
+            return result;
+        }
+        final long[] versions = new long[missed.size()];
+        for (int i = 0; i < versions.length; i++) {
+            versions[i] = rowCache.version(missed.get(i));
+        }
+        final TableSet set = retainTables();
+        try {
+            final Cell[] found = newest(set, missed);
+            for (int i = 0; i < found.length; i++) {
+                final ByteBuffer key = missed.get(i);
+                if (found[i] == null || found[i].getValue().isRemoved()) {
+                    rowCache.put(key, RowCache.ABSENT, versions[i]);
+                } else {
+                    // Segments of the value log live as long as the retained tables
+                    final ByteBuffer value = valueLog.dataOf(found[i].getValue());
+                    rowCache.put(key, value, versions[i]);
+                    result.put(key, value);
+                }
+            }
+        } finally {
+            set.release();
+        }
+        return result;
+    }
+
+    private void scheduleCompaction() {
+        if (!closed) {
+            compactor.execute(this::compactInBackground);
+        }
+    }
+
+    /**
+     * Run compactions on the compactor until there is nothing to do, never on the request path.
+     */
+    private void compactInBackground() {
+        while (!closed) {
+            final Compaction compaction;
+            try {
+                compaction = pickCompaction();
+            } catch (IOException e) {
+                log.error("Compaction can't be picked", e);
+                return;
+            }
+            if (compaction == null) {
+                return;
+            }
+            try {
+                mergeTables(compaction);
+            } catch (IOException e) {
+                // The tables stay as they are
+                log.error("Compaction has failed", e);
+                return;
+            } finally {
+                releaseCompaction(compaction);
+            }
+        }
+    }
 
-        flush(mergeIterator, ++currentGeneration, mergeBloomFilter);
-        for (final Table table : mergeFiles) {
-            if (table instanceof FileChannelTable) {
-                final FileChannelTable fileTable = (FileChannelTable) table;
-                Files.delete(fileTable.getFile().toPath());
+    /**
+     * Pick the next compaction and mark its tables as compacting.
+     * The strategy reads key ranges of tables, so it runs outside the lock on retained tables,
+     * and its choice is checked against the tables, which might have changed meanwhile, under the lock.
+     *
+     * @return compaction to run or null if there is nothing to do
+     * @throws IOException If an I/O error occurs
+     */
+    @Nullable
+    private Compaction pickCompaction() throws IOException {
+        while (!closed) {
+            final TableSet set = retainTables();
+            try {
+                final Set<FileTable> busy;
+                lock.readLock().lock();
+                try {
+                    busy = new HashSet<>(compacting);
+                } finally {
+                    lock.readLock().unlock();
+                }
+                final Compaction picked = compactionStrategy.pick(set.files, Collections.unmodifiableSet(busy));
+                lock.writeLock().lock();
+                try {
+                    if (picked == null) {
+                        // Garbage of the value log is tracked in memory, so the current tables are used right away
+                        final Compaction relocation = valueLog.pick(tables.files, compacting);
+                        if (relocation != null) {
+                            compacting.addAll(relocation.getTables());
+                        }
+                        return relocation;
+                    }
+                    if (tables.files.containsAll(picked.getTables())
+                            && Collections.disjoint(compacting, picked.getTables())) {
+                        compacting.addAll(picked.getTables());
+                        return picked;
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } finally {
+                release(set);
             }
         }
+        return null;
+    }
+
+    private void releaseCompaction(final Compaction compaction) {
+        lock.writeLock().lock();
+        try {
+            compacting.removeAll(compaction.getTables());
+            compactionDone.signalAll();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int nextGeneration() {
+        lock.writeLock().lock();
+        try {
+            return ++currentGeneration;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Take cells from the iterator until their total size reaches the limit.
+     *
+     * @param cells   source of cells, left at the first cell which was not taken
+     * @param maxSize size of cells to take
+     * @return iterator over the taken cells
+     */
+    private static Iterator<Cell> upTo(final Iterator<Cell> cells, final long maxSize) {
+        return new Iterator<Cell>() {
+            private long size;
+
+            @Override
+            public boolean hasNext() {
+                return size < maxSize && cells.hasNext();
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("Iterator is empty");
+                }
+                final Cell cell = cells.next();
+                size += Block.sizeOf(cell);
+                return cell;
+            }
+        };
+    }
+
+    /**
+     * Merge tables into new SSTables without holding any lock and publish the result atomically.
+     *
+     * @param compaction tables reserved for this compaction and the shape of the result
+     * @throws IOException If an I/O error occurs
+     */
+    private void mergeTables(final Compaction compaction) throws IOException {
+        final List<FileTable> mergeFiles = compaction.getTables();
+        final Set<Integer> garbage = valueLog.garbage();
+        final Iterator<Cell> mergeIterator = Iterators.transform(
+                FileTable.merge(new ArrayList<>(mergeFiles)),
+                cell -> relocated(cell, garbage));
+
+        final List<Integer> pending = new ArrayList<>();
+        final List<FileTable> merged = new ArrayList<>();
+        try {
+            while (mergeIterator.hasNext()) {
+                // An output has no log, so it is recorded before it is written to be deleted after a crash
+                final int generation = nextGeneration();
+                manifest.pending(generation);
+                pending.add(generation);
+                merged.add(flush(upTo(mergeIterator, compaction.getMaxFileSize()),
+                        generation, compaction.getLevel()));
+            }
+            manifest.commit(mergeFiles, merged);
+        } catch (IOException e) {
+            for (final FileTable table : merged) {
+                table.delete();
+                valueLog.release(table);
+            }
+            for (final Integer generation : pending) {
+                manifest.deleted(generation);
+            }
+            throw e;
+        }
+        lock.writeLock().lock();
+        try {
+            for (final FileTable table : mergeFiles) {
+                table.markObsolete(() -> {
+                    manifest.deleted(table.getGeneration());
+                    releaseValues(table);
+                });
+            }
+            publish(tables.compacted(mergeFiles, merged));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Read the value back from a segment with enough garbage, so it is written to a new segment.
+     *
+     * @param cell    merged cell
+     * @param garbage generations of segments to relocate values from
+     * @return the same cell or the cell with the value itself
+     */
+    private Cell relocated(final Cell cell, final Set<Integer> garbage) {
+        final Value value = cell.getValue();
+        if (!value.isIndirect() || !garbage.contains(ValueLog.generationOf(value.getData()))) {
+            return cell;
+        }
+        return new Cell(cell.getKey(), Value.of(value.getTimeStamp(), dataOf(value)));
+    }
+
+    private void releaseValues(final FileTable table) {
+        try {
+            valueLog.release(table);
+        } catch (IOException e) {
+            log.error("Value log segments of {} can't be released", table.getFile(), e);
+        }
     }
 
     @Override
     public void close() throws IOException {
-        if (memTable.sizeInBytes() > 0) {
-            flush();
+        if (walSyncer != null) {
+            walSyncer.shutdown();
+        }
+        closing = true;
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a flush");
+        }
+        closed = true;
+        try {
+            opener.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the warm-up");
+        }
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a compaction");
+        }
+        IOException failure = null;
+        lock.writeLock().lock();
+        try {
+            final MemTable last = tables.memTable;
+            if (last.sizeInBytes() > 0) {
+                publish(tables.frozen(new MemTable()));
+                flushFrozen(last, wal, memTableGeneration);
+            } else {
+                closeLog(wal);
+            }
+        } catch (IOException e) {
+            // The log is kept and replayed on the next start
+            failure = closeAfter(e, wal::close);
+        } finally {
+            failure = closeAfter(failure, tables::release);
+            lock.writeLock().unlock();
+        }
+        failure = closeAfter(failure, manifest::close);
+        failure = closeAfter(failure, valueLog::close);
+        failure = closeAfter(failure, fileHandles::close);
+        failure = closeAfter(failure, blockCache::close);
+        if (failure != null) {
+            throw failure;
+        }
+        checkFlushFailure();
+    }
+
+    /**
+     * Run the next step of closing even if an earlier one has failed.
+     *
+     * @param failure failure of earlier steps or null
+     * @param step    step to run
+     * @return the first failure with later ones suppressed or null if all steps succeeded
+     */
+    @Nullable
+    private static IOException closeAfter(@Nullable final IOException failure, final Closeable step) {
+        try {
+            step.close();
+            return failure;
+        } catch (IOException e) {
+            if (failure == null) {
+                return e;
+            }
+            failure.addSuppressed(e);
+            return failure;
         }
     }
 
+    /**
+     * Cache of SSTable blocks read through {@link TableMode#FILE_CHANNEL} and of decompressed blocks.
+     *
+     * @return the block cache with its hit and miss counters
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Cache of point lookups with its hit ratio and size.
+     *
+     * @return the row cache, which caches nothing unless {@link LSMConfig#rowCacheSize} is set
+     */
+    public RowCache getRowCache() {
+        return rowCache;
+    }
+
+    /**
+     * Heap held by the Dao: memTables receiving writes and waiting for their flush and the row cache,
+     * which is bounded along with memTables to half of the heap.
+     *
+     * @return size in bytes
+     */
+    public long memoryUsage() {
+        final TableSet set = tables;
+        long size = set.memTable.sizeInBytes() + rowCache.sizeInBytes();
+        for (final MemTable frozen : set.flushing) {
+            size += frozen.sizeInBytes();
+        }
+        return size;
+    }
+
     @Override
     public void compact() throws IOException {
-        mergeTables(0, fileTables.size());
+        awaitFlushes();
+        final Compaction compaction;
+        lock.writeLock().lock();
+        try {
+            while (!compacting.isEmpty()) {
+                compactionDone.await();
+            }
+            if (tables.files.size() <= 1) {
+                return;
+            }
+            compaction = compactionStrategy.all(tables.files);
+            compacting.addAll(compaction.getTables());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a compaction");
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            mergeTables(compaction);
+        } finally {
+            releaseCompaction(compaction);
+        }
+        // Merged tables may have left enough garbage in the value log
+        scheduleCompaction();
+    }
+
+    /**
+     * View of the tables taken by {@link #snapshot()}, readers retain the set like readers of the Dao do,
+     * so iterators opened from the view stay valid after it is closed.
+     */
+    private final class TableSnapshot implements Snapshot {
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile TableSet set;
+
+        TableSnapshot(final TableSet set) {
+            this.set = set;
+        }
+
+        private TableSet retain() {
+            while (true) {
+                if (closed.get()) {
+                    throw new IllegalStateException("Snapshot is closed");
+                }
+                // The set is replaced when a memTable of the view is flushed
+                final TableSet current = set;
+                if (current.tryRetain()) {
+                    return current;
+                }
+            }
+        }
+
+        /**
+         * Replace a flushed memTable of the view with its SSTable, called under the write lock.
+         */
+        void flushed(final MemTable frozen, final FileTable table) {
+            final TableSet current = set;
+            if (current.flushing.contains(frozen)) {
+                set = current.flushed(frozen, table);
+                release(current);
+            }
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+            return LSMDao.this.iterator(retain(), from, null, null);
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> range(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to)
+                throws IOException {
+            if (to == null) {
+                return iterator(from);
+            }
+            if (from.compareTo(to) > 0) {
+                return Iters.empty();
+            }
+            return LSMDao.this.iterator(retain(), from, to, prefixOf(from, to));
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+            final TableSet retained = retain();
+            try {
+                final Cell cell = newest(retained, key);
+                if (cell == null || cell.getValue().isRemoved()) {
+                    throw new NoSuchElementException("");
+                }
+                return valueLog.dataOf(cell.getValue());
+            } finally {
+                retained.release();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed.compareAndSet(false, true)) {
+                lock.writeLock().lock();
+                try {
+                    snapshots.remove(this);
+                    set.release();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,137 @@
+package ru.mail.polis.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * SSTable in the format used before blocks, which is rewritten by {@link TableWriter} in the current one.
+ * List of Cells, encoded as {@link Block#read} decodes them
+ * -offsets of cells - Long each
+ * -BloomFilter - Long each
+ * -BloomFilterSize - Integer, count of Longs
+ * -count rows - Long
+ */
+final class LegacyTable {
+    private static final int FOOTER_SIZE = Integer.BYTES + Long.BYTES;
+
+    private LegacyTable() {
+        // Not instantiatable
+    }
+
+    /**
+     * Check whether the file misses the magic number of the current format.
+     *
+     * @param file SSTable
+     * @return true if the table may be in the old format
+     * @throws IOException If an I/O error occurs
+     */
+    static boolean isLegacy(@NotNull final File file) throws IOException {
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer magic = ByteBuffer.allocate(Long.BYTES);
+            return fc.size() < Long.BYTES
+                    || !WriteAheadLog.readFully(fc, magic, fc.size() - Long.BYTES)
+                    || magic.getLong() != FileTable.MAGIC;
+        }
+    }
+
+    /**
+     * Write the cells of the old table to a new file in the current format, keeping their timestamps.
+     *
+     * @param from   SSTable in the old format
+     * @param to     file to create
+     * @param writer writer of the current format
+     * @throws IOException If an I/O error occurs or the file is not an SSTable
+     */
+    static void rewrite(
+            @NotNull final File from,
+            @NotNull final File to,
+            @NotNull final TableWriter writer) throws IOException {
+        final long size = from.length();
+        final int bloomFilterSize;
+        final long rows;
+        try (FileChannel fc = FileChannel.open(from.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            if (size < FOOTER_SIZE || !WriteAheadLog.readFully(fc, footer, size - FOOTER_SIZE)) {
+                throw new IOException("Not an SSTable: " + from);
+            }
+            bloomFilterSize = footer.getInt();
+            rows = footer.getLong();
+        }
+        final long cellsSize = size - FOOTER_SIZE - (long) bloomFilterSize * Long.BYTES - rows * Long.BYTES;
+        if (bloomFilterSize < 0 || rows < 0 || cellsSize < 0) {
+            throw new IOException("Not an SSTable: " + from);
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(from.toPath())))) {
+            final CellReader cells = new CellReader(in, rows, cellsSize);
+            try {
+                writer.write(cells, to, 0, null);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (cells.read != cellsSize) {
+                throw new IOException("Not an SSTable: " + from);
+            }
+        }
+    }
+
+    private static final class CellReader implements Iterator<Cell> {
+        private final DataInputStream in;
+        private final long rows;
+        private final long cellsSize;
+        private long row;
+        private long read;
+
+        CellReader(final DataInputStream in, final long rows, final long cellsSize) {
+            this.in = in;
+            this.rows = rows;
+            this.cellsSize = cellsSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return row < rows;
+        }
+
+        @Override
+        public Cell next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("Iterator is empty");
+            }
+            row++;
+            try {
+                final ByteBuffer key = readBytes(in.readInt());
+                final long timeStamp = in.readLong();
+                read += Integer.BYTES + key.remaining() + Long.BYTES;
+                if (timeStamp < 0) {
+                    return new Cell(key, Value.tombstone(-timeStamp));
+                }
+                final ByteBuffer value = readBytes(in.readInt());
+                read += Integer.BYTES + value.remaining();
+                return new Cell(key, Value.of(timeStamp, value));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private ByteBuffer readBytes(final int size) throws IOException {
+            // Sizes of a damaged file must not make it read past its cells
+            if (size < 0 || read + size > cellsSize) {
+                throw new IOException("Cell is out of the table");
+            }
+            final byte[] bytes = new byte[size];
+            in.readFully(bytes);
+            return ByteBuffer.wrap(bytes);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package ru.mail.polis.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Flushed tables form level 0 and may overlap, every next level holds tables with disjoint key ranges
+ * and is {@code sizeRatio} times larger than the previous one.
+ * Level 0 is merged into level 1 once it has enough tables, other levels push their oldest table
+ * into the next level once they outgrow their size, so a key is looked up in about one table per level.
+ */
+public final class LeveledCompactionStrategy implements CompactionStrategy {
+    private static final int MAX_LEVEL = 7;
+    private final int level0Tables;
+    private final long levelBaseSize;
+    private final int sizeRatio;
+    private final long targetFileSize;
+
+    /**
+     * Strategy with 4 tables at level 0, 16MiB at level 1, ratio 10 and tables of 4MiB.
+     */
+    public LeveledCompactionStrategy() {
+        this(4, 16 * 1024 * 1024, 10, 4 * 1024 * 1024);
+    }
+
+    /**
+     * Strategy with the given shape of the tree.
+     *
+     * @param level0Tables   count of tables at level 0 triggering their compaction
+     * @param levelBaseSize  size of level 1 in bytes
+     * @param sizeRatio      how many times every next level is larger
+     * @param targetFileSize size of a table at levels starting from 1
+     */
+    public LeveledCompactionStrategy(
+            final int level0Tables,
+            final long levelBaseSize,
+            final int sizeRatio,
+            final long targetFileSize) {
+        if (level0Tables <= 0) {
+            throw new IllegalArgumentException("Non-positive count of level 0 tables: " + level0Tables);
+        }
+        if (levelBaseSize <= 0L) {
+            throw new IllegalArgumentException("Non-positive level base size: " + levelBaseSize);
+        }
+        if (sizeRatio <= 1) {
+            throw new IllegalArgumentException("Size ratio must be greater than 1: " + sizeRatio);
+        }
+        if (targetFileSize <= 0L) {
+            throw new IllegalArgumentException("Non-positive target file size: " + targetFileSize);
+        }
+        this.level0Tables = level0Tables;
+        this.levelBaseSize = levelBaseSize;
+        this.sizeRatio = sizeRatio;
+        this.targetFileSize = targetFileSize;
+    }
+
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final List<FileTable> tables, @NotNull final Set<FileTable> compacting)
+            throws IOException {
+        final List<List<FileTable>> levels = new ArrayList<>(MAX_LEVEL + 1);
+        for (int i = 0; i <= MAX_LEVEL; i++) {
+            levels.add(new ArrayList<>());
+        }
+        for (final FileTable table : tables) {
+            levels.get(Math.min(table.getLevel(), MAX_LEVEL)).add(table);
+        }
+
+        // The most overflowed level goes first, the last level is never compacted
+        final List<Integer> overflowed = new ArrayList<>();
+        final double[] scores = new double[MAX_LEVEL];
+        scores[0] = (double) levels.get(0).size() / level0Tables;
+        long maxSize = levelBaseSize;
+        for (int level = 1; level < MAX_LEVEL; level++) {
+            scores[level] = (double) sizeOf(levels.get(level)) / maxSize;
+            maxSize *= sizeRatio;
+        }
+        for (int level = 0; level < MAX_LEVEL; level++) {
+            if (scores[level] >= 1.0) {
+                overflowed.add(level);
+            }
+        }
+        overflowed.sort(Comparator.comparingDouble((Integer level) -> scores[level]).reversed());
+
+        for (final int level : overflowed) {
+            final Compaction compaction = level == 0
+                    ? pickLevel0(levels, compacting)
+                    : pickLevel(level, levels, compacting);
+            if (compaction != null) {
+                return compaction;
+            }
+        }
+        return null;
+    }
+
+    private Compaction pickLevel0(final List<List<FileTable>> levels, final Set<FileTable> compacting)
+            throws IOException {
+        final List<FileTable> level0 = levels.get(0);
+        if (containsAny(level0, compacting)) {
+            return null;
+        }
+        ByteBuffer from = null;
+        ByteBuffer to = null;
+        for (final FileTable table : level0) {
+            if (from == null || table.firstKey().compareTo(from) < 0) {
+                from = table.firstKey();
+            }
+            if (to == null || table.lastKey().compareTo(to) > 0) {
+                to = table.lastKey();
+            }
+        }
+        final List<FileTable> overlapping = overlapping(levels.get(1), from, to);
+        if (containsAny(overlapping, compacting)) {
+            return null;
+        }
+        final List<FileTable> inputs = new ArrayList<>(level0);
+        inputs.addAll(overlapping);
+        return new Compaction(inputs, 1, targetFileSize);
+    }
+
+    private Compaction pickLevel(final int level,
+            final List<List<FileTable>> levels,
+            final Set<FileTable> compacting) throws IOException {
+        final List<FileTable> tables = new ArrayList<>(levels.get(level));
+        // A running compaction into this level may still add tables to it
+        if (containsAny(tables, compacting)) {
+            return null;
+        }
+        tables.sort(Comparator.comparingInt(FileTable::getGeneration));
+        for (final FileTable table : tables) {
+            final List<FileTable> overlapping =
+                    overlapping(levels.get(level + 1), table.firstKey(), table.lastKey());
+            if (!containsAny(overlapping, compacting)) {
+                final List<FileTable> inputs = new ArrayList<>(overlapping.size() + 1);
+                inputs.add(table);
+                inputs.addAll(overlapping);
+                return new Compaction(inputs, level + 1, targetFileSize);
+            }
+        }
+        return null;
+    }
+
+    private static long sizeOf(final Collection<FileTable> tables) {
+        long size = 0;
+        for (final FileTable table : tables) {
+            size += table.sizeInBytes();
+        }
+        return size;
+    }
+
+    private static boolean containsAny(final Collection<FileTable> tables, final Set<FileTable> compacting) {
+        for (final FileTable table : tables) {
+            if (compacting.contains(table)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<FileTable> overlapping(final List<FileTable> level,
+            final ByteBuffer from,
+            final ByteBuffer to) throws IOException {
+        final List<FileTable> result = new ArrayList<>();
+        for (final FileTable table : level) {
+            if (table.firstKey().compareTo(to) <= 0 && from.compareTo(table.lastKey()) <= 0) {
+                result.add(table);
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    @Override
+    public Compaction all(@NotNull final List<FileTable> tables) {
+        int level = 1;
+        for (final FileTable table : tables) {
+            level = Math.max(level, Math.min(table.getLevel(), MAX_LEVEL));
+        }
+        return new Compaction(tables, level, targetFileSize);
+    }
+}
@@ -0,0 +1,176 @@
+package ru.mail.polis.persistence;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Codec of the LZ4 block format: a sequence is a token with lengths of literals and of the match,
+ * literals, 2-byte little endian offset of the match and extra length bytes where a length doesn't fit the token.
+ * The compressor looks for matches of 4 bytes with a single hash table probe per position,
+ * which trades ratio for speed like the reference fast mode does.
+ */
+final class Lz4 {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 12;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 0xFFFF;
+    private static final int RUN_MASK = 0xF;
+    private static final ThreadLocal<int[]> TABLES = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+
+    private Lz4() {
+        // Not instantiable
+    }
+
+    static int maxCompressedSize(final int size) {
+        return size + size / 255 + 16;
+    }
+
+    private static int readInt(final byte[] array, final int i) {
+        return (array[i] & 0xFF)
+                | (array[i + 1] & 0xFF) << 8
+                | (array[i + 2] & 0xFF) << 16
+                | (array[i + 3] & 0xFF) << 24;
+    }
+
+    private static int hash(final int sequence) {
+        return (sequence * -1_640_531_535) >>> (Integer.SIZE - HASH_LOG);
+    }
+
+    private static int putLength(final byte[] dst, final int at, final int length) {
+        int out = at;
+        int rest = length - RUN_MASK;
+        for (; rest >= 0xFF; rest -= 0xFF) {
+            dst[out++] = (byte) 0xFF;
+        }
+        dst[out++] = (byte) rest;
+        return out;
+    }
+
+    /**
+     * Compress the bytes.
+     *
+     * @param src    source array
+     * @param length count of bytes from the beginning of the source
+     * @param dst    destination array of at least {@link #maxCompressedSize} bytes
+     * @return count of bytes written to the destination
+     */
+    static int compress(@NotNull final byte[] src, final int length, @NotNull final byte[] dst) {
+        // Positions plus one, 0 is an empty slot
+        final int[] table = TABLES.get();
+        Arrays.fill(table, 0);
+        int anchor = 0;
+        int out = 0;
+        int pos = 0;
+        final int matchLimit = length - LAST_LITERALS;
+        while (pos <= length - MF_LIMIT) {
+            final int sequence = readInt(src, pos);
+            final int slot = hash(sequence);
+            int ref = table[slot] - 1;
+            table[slot] = pos + 1;
+            if (ref < 0 || pos - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                pos++;
+                continue;
+            }
+
+            int start = pos;
+            while (start > anchor && ref > 0 && src[start - 1] == src[ref - 1]) {
+                start--;
+                ref--;
+            }
+            int matchLength = MIN_MATCH + pos - start;
+            while (start + matchLength < matchLimit && src[start + matchLength] == src[ref + matchLength]) {
+                matchLength++;
+            }
+
+            final int literals = start - anchor;
+            final int token = out++;
+            final int literalRun = Math.min(literals, RUN_MASK);
+            if (literals >= RUN_MASK) {
+                out = putLength(dst, out, literals);
+            }
+            System.arraycopy(src, anchor, dst, out, literals);
+            out += literals;
+            final int offset = start - ref;
+            dst[out++] = (byte) offset;
+            dst[out++] = (byte) (offset >>> 8);
+            final int matchRun = Math.min(matchLength - MIN_MATCH, RUN_MASK);
+            if (matchLength - MIN_MATCH >= RUN_MASK) {
+                out = putLength(dst, out, matchLength - MIN_MATCH);
+            }
+            dst[token] = (byte) (literalRun << 4 | matchRun);
+
+            pos = start + matchLength;
+            anchor = pos;
+        }
+
+        // The last sequence has only literals
+        final int literals = length - anchor;
+        final int token = out++;
+        if (literals >= RUN_MASK) {
+            out = putLength(dst, out, literals);
+        }
+        dst[token] = (byte) (Math.min(literals, RUN_MASK) << 4);
+        System.arraycopy(src, anchor, dst, out, literals);
+        return out + literals;
+    }
+
+    private static int getLength(final ByteBuffer src, final int run) {
+        int length = run;
+        if (run == RUN_MASK) {
+            int next;
+            do {
+                next = src.get() & 0xFF;
+                length += next;
+            } while (next == 0xFF);
+        }
+        return length;
+    }
+
+    /**
+     * Decompress the bytes.
+     *
+     * @param src compressed bytes between position and limit, the position is moved to the limit
+     * @param dst destination, which must be filled exactly
+     * @throws IOException If the bytes are not compressed by {@link #compress}
+     */
+    static void decompress(@NotNull final ByteBuffer src, @NotNull final byte[] dst) throws IOException {
+        try {
+            int written = 0;
+            while (true) {
+                final int token = src.get() & 0xFF;
+                final int literals = getLength(src, token >>> 4);
+                src.get(dst, written, literals);
+                written += literals;
+                if (!src.hasRemaining()) {
+                    break;
+                }
+
+                final int offset = (src.get() & 0xFF) | (src.get() & 0xFF) << 8;
+                final int matchLength = getLength(src, token & RUN_MASK) + MIN_MATCH;
+                final int ref = written - offset;
+                if (offset == 0 || ref < 0) {
+                    throw new IOException("Bad LZ4 match offset: " + offset);
+                }
+                if (offset >= matchLength) {
+                    System.arraycopy(dst, ref, dst, written, matchLength);
+                } else {
+                    // Overlapping match repeats the last offset bytes
+                    for (int copied = 0; copied < matchLength; copied++) {
+                        dst[written + copied] = dst[ref + copied];
+                    }
+                }
+                written += matchLength;
+            }
+            if (written != dst.length) {
+                throw new IOException("LZ4 block is " + written + " bytes instead of " + dst.length);
+            }
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new IOException("Corrupted LZ4 block", e);
+        }
+    }
+}
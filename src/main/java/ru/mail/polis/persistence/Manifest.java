@@ -0,0 +1,406 @@
+package ru.mail.polis.persistence;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Log of changes of the set of SSTables, the set is committed when a change is forced to the manifest.
+ * Files, which are not in the set on the next start, are either removed tables, which files were not deleted yet,
+ * or left by unfinished flushes, which have write-ahead logs, and compactions.
+ * A compaction records generations of its outputs as removed before writing them, so they are obsolete
+ * unless the compaction commits them.
+ * When the log grows it is replaced by a single change removing tables, which files may still exist,
+ * and adding all live tables.
+ * List of Records
+ * -Record
+ * payloadSize - Integer
+ * checksum - CRC32 of the payload Integer
+ * payload
+ * count removed - Integer
+ * generations of removed tables - Integer
+ * count added - Integer
+ * added tables
+ * -Table
+ * generation - Integer
+ * level - Integer, checked against the footer of the table when it is opened, like size and rows
+ * size - Long, size of the file in bytes
+ * rows - Long
+ * firstKeySize - Integer, -1 if the key is longer than {@link FileTable#MAX_CACHED_KEY_SIZE}
+ * firstKey - ByteBuffer
+ * lastKeySize - Integer, the same as for the first key
+ * lastKey - ByteBuffer
+ */
+final class Manifest implements Closeable {
+    private static final String NAME = "MANIFEST";
+    private static final String TEMP = ".tmp";
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+    private static final long MIN_COMPACTED_SIZE = 1024 * 1024;
+    private final File base;
+    private final Map<Integer, TableMeta> tables;
+    private final Set<Integer> obsolete;
+    private int maxGeneration;
+    private FileChannel channel;
+    private long size;
+    private long snapshotSize;
+
+    private Manifest(final File base,
+            final Map<Integer, TableMeta> tables,
+            final Set<Integer> obsolete,
+            final long size) {
+        this.base = base;
+        this.tables = tables;
+        this.obsolete = obsolete;
+        this.size = size;
+        this.snapshotSize = size;
+        this.maxGeneration = -1;
+        for (final Integer generation : tables.keySet()) {
+            maxGeneration = Math.max(maxGeneration, generation);
+        }
+        for (final Integer generation : obsolete) {
+            maxGeneration = Math.max(maxGeneration, generation);
+        }
+    }
+
+    /**
+     * Read the manifest of the directory.
+     *
+     * @param base directory of DB
+     * @return manifest with the committed set or null if there is no manifest yet
+     * @throws IOException If an I/O error occurs or the first record is corrupted
+     */
+    static Manifest read(@NotNull final File base) throws IOException {
+        final File file = new File(base, NAME);
+        if (!file.exists()) {
+            return null;
+        }
+        final Map<Integer, TableMeta> tables = new LinkedHashMap<>();
+        final Set<Integer> removed = new HashSet<>();
+        final long size;
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            long offset = 0;
+            while (true) {
+                header.clear();
+                if (!WriteAheadLog.readFully(fc, header, offset)) {
+                    break;
+                }
+                final int payloadSize = header.getInt(0);
+                if (!WriteAheadLog.fits(fc, payloadSize, offset + HEADER_SIZE)) {
+                    break;
+                }
+                final ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+                if (!WriteAheadLog.readFully(fc, payload, offset + HEADER_SIZE)
+                        || WriteAheadLog.checksum(payload) != header.getInt(Integer.BYTES)) {
+                    break;
+                }
+                apply(payload, tables, removed);
+                offset += HEADER_SIZE + payload.limit();
+            }
+            // The manifest is created and rewritten atomically, so only appended records may be torn
+            if (offset == 0 && fc.size() > 0) {
+                throw new IOException("Corrupted manifest: " + file);
+            }
+            size = offset;
+        }
+        final Manifest manifest = new Manifest(base, tables, removed, size);
+        manifest.open(file, size);
+        return manifest;
+    }
+
+    /**
+     * Create the manifest with the given set, replacing the current one.
+     *
+     * @param base   directory of DB
+     * @param tables live SSTables
+     * @return manifest with the set
+     * @throws IOException If an I/O error occurs
+     */
+    static Manifest create(@NotNull final File base, @NotNull final Collection<FileTable> tables)
+            throws IOException {
+        final Manifest manifest = new Manifest(base, new LinkedHashMap<>(), new HashSet<>(), 0L);
+        for (final FileTable table : tables) {
+            final TableMeta meta = TableMeta.of(table);
+            manifest.tables.put(meta.generation, meta);
+            manifest.maxGeneration = Math.max(manifest.maxGeneration, meta.generation);
+        }
+        manifest.rewrite();
+        return manifest;
+    }
+
+    private static void apply(
+            final ByteBuffer payload,
+            final Map<Integer, TableMeta> tables,
+            final Set<Integer> removed) {
+        for (int i = payload.getInt(); i > 0; i--) {
+            final int generation = payload.getInt();
+            tables.remove(generation);
+            removed.add(generation);
+        }
+        for (int i = payload.getInt(); i > 0; i--) {
+            final TableMeta meta = TableMeta.read(payload);
+            tables.put(meta.generation, meta);
+            removed.remove(meta.generation);
+        }
+    }
+
+    private void open(final File file, final long position) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        // A torn record at the end is overwritten
+        channel.truncate(position);
+        channel.position(position);
+    }
+
+    /**
+     * Committed tables in the order they were added.
+     *
+     * @return descriptions of live tables
+     */
+    @NotNull
+    synchronized List<TableMeta> tables() {
+        return new ArrayList<>(tables.values());
+    }
+
+    synchronized boolean contains(final int generation) {
+        return tables.containsKey(generation);
+    }
+
+    /**
+     * Check whether a file, which is not in the set, is provably not needed.
+     *
+     * @param generation generation of an SSTable
+     * @return true if the table was removed or is newer than any committed change, i.e. was never committed
+     */
+    synchronized boolean isObsolete(final int generation) {
+        return obsolete.contains(generation) || generation > maxGeneration;
+    }
+
+    /**
+     * Forget a removed table once its file is deleted, the next rewrite of the log drops its removal.
+     *
+     * @param generation generation of the removed table
+     */
+    synchronized void deleted(final int generation) {
+        obsolete.remove(generation);
+    }
+
+    /**
+     * Record the generation of a table, which is about to be written by a compaction, as removed,
+     * so the file is deleted on the next start unless the compaction commits it.
+     *
+     * @param generation generation of the new table
+     * @throws IOException If an I/O error occurs
+     */
+    synchronized void pending(final int generation) throws IOException {
+        append(record(Collections.singletonList(generation), Collections.emptyList()));
+        obsolete.add(generation);
+        maxGeneration = Math.max(maxGeneration, generation);
+        compactIfGrown();
+    }
+
+    /**
+     * Replace tables atomically and force the change to the disk, files of added tables must be forced already.
+     *
+     * @param removed tables, which are not live anymore
+     * @param added   new tables
+     * @throws IOException If an I/O error occurs
+     */
+    synchronized void commit(@NotNull final Collection<FileTable> removed, @NotNull final Collection<FileTable> added)
+            throws IOException {
+        final List<Integer> generations = new ArrayList<>(removed.size());
+        for (final FileTable table : removed) {
+            generations.add(table.getGeneration());
+        }
+        final List<TableMeta> metas = new ArrayList<>(added.size());
+        for (final FileTable table : added) {
+            metas.add(TableMeta.of(table));
+        }
+        append(record(generations, metas));
+
+        for (final Integer generation : generations) {
+            tables.remove(generation);
+            obsolete.add(generation);
+        }
+        for (final TableMeta meta : metas) {
+            tables.put(meta.generation, meta);
+            // A committed output of a compaction is not pending anymore
+            obsolete.remove(meta.generation);
+            maxGeneration = Math.max(maxGeneration, meta.generation);
+        }
+        compactIfGrown();
+    }
+
+    private void append(final ByteBuffer record) throws IOException {
+        try {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            // The caller deletes the added tables, so the record must not survive
+            channel.truncate(size);
+            channel.position(size);
+            throw e;
+        }
+        size += record.limit();
+    }
+
+    private void compactIfGrown() throws IOException {
+        if (size > Math.max(MIN_COMPACTED_SIZE, 2 * snapshotSize)) {
+            rewrite();
+        }
+    }
+
+    private static ByteBuffer record(final Collection<Integer> removed, final Collection<TableMeta> added) {
+        int payloadSize = Integer.BYTES + removed.size() * Integer.BYTES + Integer.BYTES;
+        for (final TableMeta meta : added) {
+            payloadSize += meta.serializedSize();
+        }
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+        record.position(HEADER_SIZE);
+        record.putInt(removed.size());
+        for (final Integer generation : removed) {
+            record.putInt(generation);
+        }
+        record.putInt(added.size());
+        for (final TableMeta meta : added) {
+            meta.write(record);
+        }
+        record.flip();
+        record.putInt(0, payloadSize);
+        record.putInt(Integer.BYTES, WriteAheadLog.checksum(record.duplicate().position(HEADER_SIZE)));
+        return record;
+    }
+
+    /**
+     * Replace the log with a single record removing tables, which files may still exist, and adding all live tables.
+     */
+    private void rewrite() throws IOException {
+        final File tmp = new File(base, NAME + TEMP);
+        final ByteBuffer record = record(obsolete, tables.values());
+        try (FileChannel fc = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            while (record.hasRemaining()) {
+                fc.write(record);
+            }
+            fc.force(true);
+        }
+        final File file = new File(base, NAME);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        if (channel != null) {
+            channel.close();
+        }
+        size = record.limit();
+        snapshotSize = size;
+        open(file, size);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Description of a committed table.
+     */
+    static final class TableMeta {
+        final int generation;
+        final int level;
+        final long size;
+        final long rows;
+        @Nullable
+        final ByteBuffer firstKey;
+        @Nullable
+        final ByteBuffer lastKey;
+
+        private TableMeta(
+                final int generation,
+                final int level,
+                final long size,
+                final long rows,
+                final ByteBuffer firstKey,
+                final ByteBuffer lastKey) {
+            this.generation = generation;
+            this.level = level;
+            this.size = size;
+            this.rows = rows;
+            this.firstKey = firstKey;
+            this.lastKey = lastKey;
+        }
+
+        static TableMeta of(final FileTable table) throws IOException {
+            return new TableMeta(
+                    table.getGeneration(),
+                    table.getLevel(),
+                    table.sizeInBytes(),
+                    table.rows(),
+                    keptKey(table.firstKey()),
+                    keptKey(table.lastKey()));
+        }
+
+        private static ByteBuffer keptKey(final ByteBuffer key) {
+            return key.remaining() <= FileTable.MAX_CACHED_KEY_SIZE ? key : null;
+        }
+
+        static TableMeta read(final ByteBuffer from) {
+            final int generation = from.getInt();
+            final int level = from.getInt();
+            final long size = from.getLong();
+            final long rows = from.getLong();
+            final ByteBuffer firstKey = readKey(from);
+            final ByteBuffer lastKey = readKey(from);
+            return new TableMeta(generation, level, size, rows, firstKey, lastKey);
+        }
+
+        private static ByteBuffer readKey(final ByteBuffer from) {
+            final int keySize = from.getInt();
+            if (keySize < 0) {
+                return null;
+            }
+            final ByteBuffer key = Bytes.copyOf(from.duplicate().limit(from.position() + keySize));
+            from.position(from.position() + keySize);
+            return key;
+        }
+
+        int serializedSize() {
+            return Integer.BYTES + Integer.BYTES + Long.BYTES + Long.BYTES
+                    + Integer.BYTES + (firstKey == null ? 0 : firstKey.remaining())
+                    + Integer.BYTES + (lastKey == null ? 0 : lastKey.remaining());
+        }
+
+        void write(final ByteBuffer to) {
+            to.putInt(generation)
+                    .putInt(level)
+                    .putLong(size)
+                    .putLong(rows);
+            writeKey(to, firstKey);
+            writeKey(to, lastKey);
+        }
+
+        private static void writeKey(final ByteBuffer to, final ByteBuffer key) {
+            if (key == null) {
+                to.putInt(-1);
+            } else {
+                to.putInt(key.remaining()).put(key.duplicate());
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.jetbrains.annotations.NotNull;
+
+public class MappedFileTable extends FileTable {
+    /**
+     * A buffer can't address more than 2 GiB, so larger files are mapped as several regions.
+     */
+    private static final long REGION_SIZE = 1L << 30;
+    private final long size;
+
+    /**
+     * Sorted String Table, which maps the whole file into memory once
+     * and serves keys and values as slices of the mapped region.
+     * Mappings are not released explicitly when the table is deleted, values handed to readers
+     * are slices of them, so they are unmapped by GC once nobody references them.
+     *
+     * @param file       of this table
+     * @param blockCache shared cache of decompressed blocks
+     * @throws IOException If an I/O error occurs
+     */
+    MappedFileTable(final File file, final BlockCache blockCache) throws IOException {
+        this(file, map(file), blockCache);
+    }
+
+    private MappedFileTable(final File file, final ByteBuffer[] regions, final BlockCache blockCache)
+            throws IOException {
+        this(file, sizeOf(regions), regions, blockCache);
+    }
+
+    private MappedFileTable(
+            final File file,
+            final long size,
+            final ByteBuffer[] regions,
+            final BlockCache blockCache) throws IOException {
+        super(file, size, new MappedReader(file, regions, blockCache));
+        this.size = size;
+    }
+
+    private static ByteBuffer[] map(final File file) throws IOException {
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long fileSize = fc.size();
+            final ByteBuffer[] regions = new ByteBuffer[(int) Math.max(1, (fileSize + REGION_SIZE - 1) / REGION_SIZE)];
+            for (int i = 0; i < regions.length; i++) {
+                final long offset = i * REGION_SIZE;
+                final long length = Math.min(REGION_SIZE, fileSize - offset);
+                regions[i] = fc.map(FileChannel.MapMode.READ_ONLY, offset, length).asReadOnlyBuffer();
+            }
+            return regions;
+        }
+    }
+
+    private static long sizeOf(final ByteBuffer[] regions) {
+        long size = 0;
+        for (final ByteBuffer region : regions) {
+            size += region.capacity();
+        }
+        return size;
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return size;
+    }
+
+    private static final class MappedReader implements Reader {
+        private final ByteBuffer[] regions;
+        private final int generation;
+        private final BlockCache blockCache;
+
+        MappedReader(final File file, final ByteBuffer[] regions, final BlockCache blockCache) {
+            this.regions = regions;
+            this.generation = getGenerationByName(file.getName());
+            this.blockCache = blockCache;
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer read(final long offset, final int size) {
+            final int region = (int) (offset / REGION_SIZE);
+            final int position = (int) (offset % REGION_SIZE);
+            if (position + size <= regions[region].capacity()) {
+                return regions[region].duplicate()
+                        .position(position)
+                        .limit(position + size)
+                        .slice();
+            }
+            // A range crossing the border of regions is copied
+            final ByteBuffer result = ByteBuffer.allocate(size);
+            int from = position;
+            for (int i = region; result.hasRemaining(); i++) {
+                final ByteBuffer part = regions[i].duplicate().position(from);
+                part.limit(from + Math.min(part.remaining(), result.remaining()));
+                result.put(part);
+                from = 0;
+            }
+            return result.flip();
+        }
+
+        @NotNull
+        @Override
+        public BlockCache.Page readBlock(final long offset, final int size) throws IOException {
+            final ByteBuffer stored = read(offset, size);
+            // Mapped blocks are read in place, only decompressed ones fitting a page are cached
+            if (Compression.of(stored) == Compression.NONE || !blockCache.caches(size)) {
+                return new BlockCache.Page(Compression.decode(stored));
+            }
+            return blockCache.get(generation, offset, size, buffer -> Compression.decode(stored));
+        }
+    }
+}
@@ -1,30 +1,43 @@
 package ru.mail.polis.persistence;
 
 import java.nio.ByteBuffer;
-import java.util.BitSet;
 import java.util.Iterator;
 import java.util.NavigableMap;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import com.google.common.collect.Iterators;
 
 public class MemTable implements Table {
-    private final NavigableMap<ByteBuffer, Value> map = new TreeMap<>();
-    private long sizeInBytes;
-    private final BitSet bloomFilter = new BitSet();
+    /**
+     * Approximate heap footprint of a skip list node, its {@link Value} and buffers besides their contents,
+     * so that tiny records are not undercounted while several memTables are kept in memory.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+    private final NavigableMap<ByteBuffer, Value> map = new ConcurrentSkipListMap<>();
+    private final LongAdder sizeInBytes = new LongAdder();
 
     @Override
     public long sizeInBytes() {
-        return sizeInBytes;
+        return sizeInBytes.sum();
     }
 
     @NotNull
     @Override
     public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        return iterator(from, null);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        final NavigableMap<ByteBuffer, Value> range =
+                to == null ? map.tailMap(from, true) : map.subMap(from, true, to, false);
         return Iterators.transform(
-                map.tailMap(from).entrySet().iterator(),
+                range.entrySet().iterator(),
                 e -> {
                     if (e != null) {
                         return new Cell(e.getKey(), e.getValue());
@@ -33,35 +46,57 @@ public class MemTable implements Table {
                 });
     }
 
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(@Nullable final ByteBuffer from) {
+        final NavigableMap<ByteBuffer, Value> range =
+                from == null ? map.descendingMap() : map.headMap(from, true).descendingMap();
+        return Iterators.transform(
+                range.entrySet().iterator(),
+                e -> new Cell(e.getKey(), e.getValue()));
+    }
+
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        final Value previous = map.put(key, Value.of(value));
-        if (previous == null) {
-            sizeInBytes += key.remaining() + value.remaining();
-        } else if (previous.isRemoved()) {
-            sizeInBytes += value.remaining();
-        } else {
-            sizeInBytes += value.remaining() - previous.getData().remaining();
-        }
-        BloomFilter.setKeyToFilter(bloomFilter, key);
+        put(key, Value.of(value));
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) {
-        final Value previous = map.put(key, Value.tombstone());
-        if (previous == null) {
-            sizeInBytes += key.remaining();
-        } else if (!previous.isRemoved()) {
-            sizeInBytes -= previous.getData().remaining();
+        put(key, Value.tombstone());
+    }
+
+    /**
+     * Store the value with the timestamp it already has unless the key has a newer one,
+     * so a writer, which took its timestamp earlier but came later, doesn't replace a newer value.
+     *
+     * @param key   key of the cell
+     * @param value new value or tombstone
+     */
+    void put(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        while (true) {
+            final Value previous = map.putIfAbsent(key, value);
+            if (previous == null) {
+                sizeInBytes.add(ENTRY_OVERHEAD + key.remaining());
+                break;
+            }
+            if (previous.getTimeStamp() >= value.getTimeStamp()) {
+                return;
+            }
+            if (map.replace(key, previous, value)) {
+                if (!previous.isRemoved()) {
+                    sizeInBytes.add(-previous.getData().remaining());
+                }
+                break;
+            }
+        }
+        if (!value.isRemoved()) {
+            sizeInBytes.add(value.getData().remaining());
         }
-        BloomFilter.setKeyToFilter(bloomFilter, key);
     }
 
     @Override
     public Cell get(@NotNull final ByteBuffer key) {
-        if (!BloomFilter.canContains(bloomFilter, key)) {
-            return null;
-        }
         final Value value = map.get(key);
         if (value == null) {
             return null;
@@ -69,15 +104,9 @@ public class MemTable implements Table {
         return new Cell(key, value);
     }
 
-    @Override
-    public BitSet getBloomFilter() {
-        return bloomFilter;
-    }
-
     @Override
     public void clear() {
         map.clear();
-        bloomFilter.clear();
-        sizeInBytes = 0;
+        sizeInBytes.reset();
     }
 }
@@ -0,0 +1,125 @@
+package ru.mail.polis.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Merge of sorted iterators of tables, which keeps only the newest cell of each key.
+ * Iterators are kept in a binary heap by their current cells, the order puts the newest cell of a key first,
+ * so older cells of the key are dropped as they reach the top of the heap without any intermediate iterators.
+ */
+final class MergeIterator implements Iterator<Cell> {
+    private final Comparator<Cell> order;
+    private final boolean skipRemoved;
+    private final Source[] heap;
+    private int size;
+    private Cell next;
+
+    /**
+     * Merge the iterators.
+     *
+     * @param iterators   iterators sorted by the order
+     * @param order       order of cells, newer cells of a key go first
+     * @param skipRemoved whether tombstones are dropped after they shadowed older cells
+     */
+    MergeIterator(
+            @NotNull final List<Iterator<Cell>> iterators,
+            @NotNull final Comparator<Cell> order,
+            final boolean skipRemoved) {
+        this.order = order;
+        this.skipRemoved = skipRemoved;
+        this.heap = new Source[iterators.size()];
+        for (final Iterator<Cell> iterator : iterators) {
+            if (iterator.hasNext()) {
+                heap[size++] = new Source(iterator);
+            }
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = advance();
+        }
+        return next != null;
+    }
+
+    @Override
+    public Cell next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("Iterator is empty");
+        }
+        final Cell result = next;
+        next = null;
+        return result;
+    }
+
+    private Cell advance() {
+        while (size > 0) {
+            final Cell cell = heap[0].head;
+            final ByteBuffer key = cell.getKey();
+            pollTop();
+            while (size > 0 && heap[0].head.getKey().equals(key)) {
+                pollTop();
+            }
+            if (!skipRemoved || !cell.getValue().isRemoved()) {
+                return cell;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Move the iterator at the top of the heap to its next cell.
+     */
+    private void pollTop() {
+        final Source top = heap[0];
+        if (top.iterator.hasNext()) {
+            top.head = top.iterator.next();
+        } else {
+            heap[0] = heap[--size];
+            heap[size] = null;
+        }
+        if (size > 1) {
+            siftDown(0);
+        }
+    }
+
+    private void siftDown(final int from) {
+        final Source source = heap[from];
+        int hole = from;
+        while (true) {
+            int child = 2 * hole + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && order.compare(heap[child + 1].head, heap[child].head) < 0) {
+                child++;
+            }
+            if (order.compare(source.head, heap[child].head) <= 0) {
+                break;
+            }
+            heap[hole] = heap[child];
+            hole = child;
+        }
+        heap[hole] = source;
+    }
+
+    private static final class Source {
+        private final Iterator<Cell> iterator;
+        private Cell head;
+
+        Source(final Iterator<Cell> iterator) {
+            this.iterator = iterator;
+            this.head = iterator.next();
+        }
+    }
+}
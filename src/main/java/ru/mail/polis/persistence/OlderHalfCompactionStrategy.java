@@ -0,0 +1,32 @@
+package ru.mail.polis.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Once there are too many tables, merge the older half of them into a single table.
+ */
+public final class OlderHalfCompactionStrategy implements CompactionStrategy {
+    private static final int DANGER_COUNT_FILES = 5;
+
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final List<FileTable> tables, @NotNull final Set<FileTable> compacting) {
+        final List<FileTable> candidates = new ArrayList<>(tables);
+        candidates.removeAll(compacting);
+        if (candidates.size() <= DANGER_COUNT_FILES) {
+            return null;
+        }
+        return new Compaction(candidates.subList(0, candidates.size() / 2), 0);
+    }
+
+    @NotNull
+    @Override
+    public Compaction all(@NotNull final List<FileTable> tables) {
+        return new Compaction(tables, 0);
+    }
+}
@@ -0,0 +1,59 @@
+package ru.mail.polis.persistence;
+
+import java.nio.ByteBuffer;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Extracts the leading part of a key, which is put into the prefix BloomFilter of every SSTable,
+ * so range scans inside a single prefix skip tables without that prefix.
+ */
+public interface PrefixExtractor {
+    /**
+     * Name stored along with the prefix filter, it must change whenever the extracted prefixes change,
+     * so filters built by another extractor are not trusted.
+     *
+     * @return name of the extractor
+     */
+    @NotNull
+    String name();
+
+    /**
+     * Extract the prefix of the key.
+     *
+     * @param key key between position and limit
+     * @return the leading bytes of the key or null if the key has no prefix
+     */
+    @Nullable
+    ByteBuffer prefix(@NotNull ByteBuffer key);
+
+    /**
+     * Extractor of the first bytes of keys, shorter keys have no prefix.
+     *
+     * @param length length of the prefix in bytes
+     * @return extractor
+     */
+    @NotNull
+    static PrefixExtractor fixedLength(final int length) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("Non-positive prefix length: " + length);
+        }
+        return new PrefixExtractor() {
+            @NotNull
+            @Override
+            public String name() {
+                return "fixed:" + length;
+            }
+
+            @Nullable
+            @Override
+            public ByteBuffer prefix(@NotNull final ByteBuffer key) {
+                if (key.remaining() < length) {
+                    return null;
+                }
+                return key.duplicate().limit(key.position() + length).slice();
+            }
+        };
+    }
+}
@@ -0,0 +1,43 @@
+package ru.mail.polis.persistence;
+
+import java.lang.ref.Cleaner;
+import java.util.Iterator;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Iterator, which runs the release action once it is exhausted
+ * or, if abandoned by its user, once it is garbage collected.
+ *
+ * @param <E> type of elements
+ */
+final class ReleasingIterator<E> implements Iterator<E> {
+    private static final Cleaner CLEANER = Cleaner.create();
+    private final Iterator<E> iterator;
+    private final Cleaner.Cleanable cleanable;
+
+    /**
+     * Wrap the iterator.
+     *
+     * @param iterator delegate
+     * @param release  action, which must not reference this iterator
+     */
+    ReleasingIterator(@NotNull final Iterator<E> iterator, @NotNull final Runnable release) {
+        this.iterator = iterator;
+        this.cleanable = CLEANER.register(this, release);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (iterator.hasNext()) {
+            return true;
+        }
+        cleanable.clean();
+        return false;
+    }
+
+    @Override
+    public E next() {
+        return iterator.next();
+    }
+}
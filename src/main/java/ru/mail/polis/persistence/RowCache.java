@@ -0,0 +1,375 @@
+package ru.mail.polis.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Cache of point lookups: the latest value of a key or the fact that the key is absent.
+ * The cache is split into shards by the hash of the key, each shard has its own lock and follows W-TinyLFU:
+ * new rows enter a small LRU window, a row leaving the window is admitted into the main SLRU
+ * only if it was requested more often than the row it would evict, request counts are kept
+ * by a count-min sketch of 4-bit counters, which are halved periodically to forget old popularity.
+ * Writes invalidate their keys, a lookup which raced with a write of its key is not cached.
+ */
+public final class RowCache {
+    /**
+     * Row of a removed or never written key.
+     */
+    static final ByteBuffer ABSENT = ByteBuffer.allocate(0);
+    private static final int SHARDS = 16;
+    // Rough heap footprint of an entry besides the key and the value: the entry, map nodes and buffers
+    private static final int ENTRY_OVERHEAD = 160;
+    private static final int ESTIMATED_ENTRY_SIZE = 256;
+    private final long capacity;
+    private final Shard[] shards;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Cache of the given size.
+     *
+     * @param capacity bound of the heap used by the rows in bytes, 0 disables caching
+     */
+    RowCache(final long capacity) {
+        this.capacity = capacity;
+        final int shardCount = (int) Math.max(1, Math.min(SHARDS, capacity / (ESTIMATED_ENTRY_SIZE * 64L)));
+        this.shards = new Shard[capacity == 0 ? 0 : shardCount];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(capacity / shards.length);
+        }
+    }
+
+    private Shard shardOf(final Key key) {
+        return shards[(key.hash >>> 1) % shards.length];
+    }
+
+    /**
+     * Row of the key.
+     *
+     * @param key key to look for
+     * @return value, {@link #ABSENT} for a removed key or null if the row is not cached
+     */
+    @Nullable
+    ByteBuffer get(@NotNull final ByteBuffer key) {
+        if (shards.length == 0) {
+            return null;
+        }
+        final Key wrapped = new Key(key);
+        final ByteBuffer row = shardOf(wrapped).get(wrapped);
+        if (row == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return row == ABSENT ? ABSENT : row.duplicate();
+    }
+
+    /**
+     * Stamp of the shard of the key, taken before the key is looked up in the tables.
+     *
+     * @param key key to look for
+     * @return count of writes to keys of the shard
+     */
+    long version(@NotNull final ByteBuffer key) {
+        return shards.length == 0 ? 0L : shardOf(new Key(key)).version();
+    }
+
+    /**
+     * Cache the row found by a lookup unless a key of the shard was written since the lookup started.
+     *
+     * @param key     key looked up
+     * @param value   value found or {@link #ABSENT}
+     * @param version stamp taken by {@link #version} before the lookup
+     */
+    void put(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value, final long version) {
+        if (shards.length == 0) {
+            return;
+        }
+        final Key copy = new Key(Bytes.copyOf(key));
+        final ByteBuffer row = value == ABSENT ? ABSENT : Bytes.copyOf(value);
+        shardOf(copy).put(copy, row, version);
+    }
+
+    /**
+     * Drop the row of a written key, called after the write is visible to lookups.
+     *
+     * @param key written key
+     */
+    void invalidate(@NotNull final ByteBuffer key) {
+        if (shards.length != 0) {
+            final Key wrapped = new Key(key);
+            shardOf(wrapped).invalidate(wrapped);
+        }
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Share of lookups served by the cache.
+     *
+     * @return hits divided by all lookups or 0 if there were none
+     */
+    public double hitRatio() {
+        final long hit = hits.sum();
+        final long total = hit + misses.sum();
+        return total == 0 ? 0.0 : (double) hit / total;
+    }
+
+    /**
+     * Heap used by the cached rows.
+     *
+     * @return estimated size in bytes, never above the capacity
+     */
+    public long sizeInBytes() {
+        long size = 0;
+        for (final Shard shard : shards) {
+            size += shard.sizeInBytes();
+        }
+        return size;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * Key with a hash of all its bytes, {@link ByteBuffer#hashCode} collides a lot for short keys.
+     */
+    private static final class Key {
+        private final ByteBuffer buffer;
+        private final int hash;
+
+        Key(final ByteBuffer buffer) {
+            this.buffer = buffer;
+            // FNV-1a with a final mix
+            int mixed = 0x811C_9DC5;
+            for (int i = buffer.position(); i < buffer.limit(); i++) {
+                mixed = (mixed ^ buffer.get(i)) * 0x0100_0193;
+            }
+            mixed *= 0x9E37_79B9;
+            this.hash = mixed ^ (mixed >>> 16);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return this == o || o instanceof Key && buffer.equals(((Key) o).buffer);
+        }
+    }
+
+    private static final class Entry {
+        private final Key key;
+        private final ByteBuffer value;
+        private final long weight;
+        private Map<Key, Entry> segment;
+
+        Entry(final Key key, final ByteBuffer value) {
+            this.key = key;
+            this.value = value;
+            this.weight = ENTRY_OVERHEAD + key.buffer.remaining() + value.remaining();
+        }
+    }
+
+    /**
+     * Count-min sketch of 4 rows of 4-bit counters packed into longs.
+     */
+    private static final class FrequencySketch {
+        private static final int[] SEEDS = {0x97CB_3127, 0xB3B7_2C45, 0x2C6F_E996, 0x2DB3_37E5};
+        private static final long HALF_MASK = 0x7777_7777_7777_7777L;
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        /**
+         * Sketch for the expected count of distinct keys, a long holds a counter of each row for 4 keys.
+         *
+         * @param entries count of keys the cache is expected to hold
+         */
+        FrequencySketch(final int entries) {
+            final int size = Integer.highestOneBit(Math.max(entries / 4, 8) - 1) << 1;
+            this.table = new long[size];
+            this.mask = size - 1;
+            // Counters are halved after 10 requests per expected key
+            this.sampleSize = 40 * size;
+        }
+
+        private int indexOf(final int hash, final int row) {
+            final int mixed = (hash + SEEDS[row]) * SEEDS[row];
+            return (mixed ^ (mixed >>> 16)) & mask;
+        }
+
+        private static int shiftOf(final int hash, final int row) {
+            // Each row uses its own nibble of the long, so rows don't share counters
+            return (((hash >>> (row << 3)) & 3) << 2 | row) << 2;
+        }
+
+        int frequency(final int hash) {
+            int frequency = Integer.MAX_VALUE;
+            for (int row = 0; row < SEEDS.length; row++) {
+                final long counter = (table[indexOf(hash, row)] >>> shiftOf(hash, row)) & 0xF;
+                frequency = Math.min(frequency, (int) counter);
+            }
+            return frequency;
+        }
+
+        void increment(final int hash) {
+            boolean added = false;
+            for (int row = 0; row < SEEDS.length; row++) {
+                final int index = indexOf(hash, row);
+                final int shift = shiftOf(hash, row);
+                if (((table[index] >>> shift) & 0xF) < 0xF) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & HALF_MASK;
+                }
+                additions /= 2;
+            }
+        }
+    }
+
+    private static final class Shard {
+        private final long windowCapacity;
+        private final long mainCapacity;
+        private final long protectedCapacity;
+        private final Map<Key, Entry> entries = new HashMap<>();
+        // Access ordered, the first entry is the least recently used one
+        private final Map<Key, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+        private final Map<Key, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final Map<Key, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+        private final FrequencySketch sketch;
+        private long windowSize;
+        private long probationSize;
+        private long protectedSize;
+        private volatile long version;
+
+        Shard(final long capacity) {
+            this.windowCapacity = Math.max(1, capacity / 100);
+            this.mainCapacity = capacity - windowCapacity;
+            this.protectedCapacity = mainCapacity * 4 / 5;
+            this.sketch = new FrequencySketch((int) Math.min(1 << 20, capacity / ESTIMATED_ENTRY_SIZE));
+        }
+
+        synchronized ByteBuffer get(final Key key) {
+            sketch.increment(key.hash);
+            final Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.segment == probation) {
+                unlink(entry);
+                link(entry, protectedSegment);
+                // The protected segment overflows into probation
+                final Iterator<Entry> lru = protectedSegment.values().iterator();
+                while (protectedSize > protectedCapacity) {
+                    final Entry demoted = lru.next();
+                    lru.remove();
+                    protectedSize -= demoted.weight;
+                    demoted.segment = null;
+                    link(demoted, probation);
+                }
+            } else {
+                // Moves the entry to the end of its segment
+                entry.segment.get(key);
+            }
+            return entry.value;
+        }
+
+        long version() {
+            return version;
+        }
+
+        synchronized void put(final Key key, final ByteBuffer value, final long expected) {
+            if (version != expected || entries.containsKey(key)) {
+                return;
+            }
+            final Entry entry = new Entry(key, value);
+            if (entry.weight > mainCapacity) {
+                return;
+            }
+            entries.put(key, entry);
+            link(entry, window);
+            final Iterator<Entry> lru = window.values().iterator();
+            while (windowSize > windowCapacity) {
+                final Entry candidate = lru.next();
+                lru.remove();
+                windowSize -= candidate.weight;
+                candidate.segment = null;
+                admit(candidate);
+            }
+        }
+
+        /**
+         * Move the entry evicted from the window to the main segments if it is more popular than their victims.
+         */
+        private void admit(final Entry candidate) {
+            final int frequency = sketch.frequency(candidate.key.hash);
+            while (probationSize + protectedSize + candidate.weight > mainCapacity) {
+                final Map<Key, Entry> segment = probation.isEmpty() ? protectedSegment : probation;
+                final Entry victim = segment.values().iterator().next();
+                if (frequency <= sketch.frequency(victim.key.hash)) {
+                    entries.remove(candidate.key);
+                    return;
+                }
+                unlink(victim);
+                entries.remove(victim.key);
+            }
+            link(candidate, probation);
+        }
+
+        synchronized void invalidate(final Key key) {
+            version++;
+            final Entry entry = entries.remove(key);
+            if (entry != null) {
+                unlink(entry);
+            }
+        }
+
+        synchronized long sizeInBytes() {
+            return windowSize + probationSize + protectedSize;
+        }
+
+        private void link(final Entry entry, final Map<Key, Entry> segment) {
+            segment.put(entry.key, entry);
+            entry.segment = segment;
+            resize(segment, entry.weight);
+        }
+
+        private void unlink(final Entry entry) {
+            entry.segment.remove(entry.key);
+            resize(entry.segment, -entry.weight);
+            entry.segment = null;
+        }
+
+        private void resize(final Map<Key, Entry> segment, final long delta) {
+            if (segment == window) {
+                windowSize += delta;
+            } else if (segment == probation) {
+                probationSize += delta;
+            } else {
+                protectedSize += delta;
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ru.mail.polis.persistence;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Tables of similar size form a bucket, a bucket is merged into a single table once it has enough tables,
+ * so every row is rewritten about once per tier.
+ * Tables smaller than {@code minTableSize} all fall into the first bucket.
+ */
+public final class SizeTieredCompactionStrategy implements CompactionStrategy {
+    private final int minThreshold;
+    private final int maxThreshold;
+    private final double bucketLow;
+    private final double bucketHigh;
+    private final long minTableSize;
+
+    /**
+     * Strategy merging from 4 to 32 tables, which differ from the average size of their bucket
+     * by no more than a half, tables smaller than 1MiB are considered to be of the same size.
+     */
+    public SizeTieredCompactionStrategy() {
+        this(4, 32, 0.5, 1.5, 1024 * 1024);
+    }
+
+    /**
+     * Strategy with the given bucket shape.
+     *
+     * @param minThreshold count of tables in a bucket triggering its compaction
+     * @param maxThreshold max count of tables merged at once
+     * @param bucketLow    smallest size of a table in a bucket relative to the average size of the bucket
+     * @param bucketHigh   largest size of a table in a bucket relative to the average size of the bucket
+     * @param minTableSize size in bytes below which tables are bucketed together
+     */
+    public SizeTieredCompactionStrategy(
+            final int minThreshold,
+            final int maxThreshold,
+            final double bucketLow,
+            final double bucketHigh,
+            final long minTableSize) {
+        if (minThreshold < 2) {
+            throw new IllegalArgumentException("Min threshold must be at least 2: " + minThreshold);
+        }
+        if (maxThreshold < minThreshold) {
+            throw new IllegalArgumentException("Max threshold is less than min threshold: " + maxThreshold);
+        }
+        if (bucketLow <= 0.0 || bucketLow > 1.0 || bucketHigh < 1.0) {
+            throw new IllegalArgumentException("Bucket must contain its average: " + bucketLow + ", " + bucketHigh);
+        }
+        if (minTableSize < 0L) {
+            throw new IllegalArgumentException("Negative min table size: " + minTableSize);
+        }
+        this.minThreshold = minThreshold;
+        this.maxThreshold = maxThreshold;
+        this.bucketLow = bucketLow;
+        this.bucketHigh = bucketHigh;
+        this.minTableSize = minTableSize;
+    }
+
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final List<FileTable> tables, @NotNull final Set<FileTable> compacting) {
+        final List<FileTable> candidates = new ArrayList<>(tables);
+        candidates.removeAll(compacting);
+        candidates.sort(Comparator.comparingLong(FileTable::sizeInBytes));
+
+        // Buckets of the smallest tables go first, they are the cheapest to merge
+        final List<FileTable> bucket = new ArrayList<>();
+        long bucketSize = 0;
+        for (final FileTable table : candidates) {
+            final long size = table.sizeInBytes();
+            if (!bucket.isEmpty() && !fits(size, bucketSize / bucket.size())) {
+                if (bucket.size() >= minThreshold) {
+                    break;
+                }
+                bucket.clear();
+                bucketSize = 0;
+            }
+            bucket.add(table);
+            bucketSize += size;
+        }
+        if (bucket.size() < minThreshold) {
+            return null;
+        }
+        return new Compaction(bucket.subList(0, Math.min(bucket.size(), maxThreshold)), 0);
+    }
+
+    private boolean fits(final long size, final long average) {
+        return (size < minTableSize && average < minTableSize)
+                || (size >= average * bucketLow && size <= average * bucketHigh);
+    }
+
+    @NotNull
+    @Override
+    public Compaction all(@NotNull final List<FileTable> tables) {
+        return new Compaction(tables, 0);
+    }
+}
@@ -1,110 +1,48 @@
 package ru.mail.polis.persistence;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
-import java.util.BitSet;
 import java.util.Iterator;
-import java.util.List;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public interface Table {
     long sizeInBytes();
 
     @NotNull
-    Iterator<Cell> iterator(@NotNull ByteBuffer from) throws IOException;
-
-    void upsert(
-            @NotNull ByteBuffer key,
-            @NotNull ByteBuffer value) throws IOException;
-
-    void remove(@NotNull ByteBuffer key) throws IOException;
-
-    void clear() throws IOException;
-
-    Cell get(@NotNull ByteBuffer key) throws IOException;
-
-    BitSet getBloomFilter();
+    default Iterator<Cell> iterator(@NotNull ByteBuffer from) throws IOException {
+        return iterator(from, null);
+    }
 
     /**
-     * Dump to the file in directory.
-     * List of Cells
-     * -Cell
-     * keySize - Integer
-     * key - ByteBuffer sizeOf(key) = keySize.
-     * Timestamp - time of last update Long
-     * if timestamp is positive then next
-     * valueSize - Integer
-     * value - ByteBuffer sizeOf(value) = valueSize.
-     * -offsets LongBuffer
-     * -BloomFilter IntBuffer
-     * -BloomFilterSize Integer
-     * -count rows Long
+     * Cells of the range of keys, the table stops reading at the bound.
      *
-     * @param cells iterator of data
-     * @param to    directory
+     * @param from inclusive
+     * @param to   exclusive or null to read till the end
+     * @return iterator over cells in order of keys
      * @throws IOException If an I/O error occurs
      */
-    static void write(final Iterator<Cell> cells, final File to, final BitSet bloomFilter) throws IOException {
-        try (FileChannel fc = FileChannel.open(to.toPath(),
-                StandardOpenOption.CREATE_NEW,
-                StandardOpenOption.WRITE)) {
-            final List<Long> offsets = new ArrayList<>();
-            long offset = 0;
-            while (cells.hasNext()) {
-                offsets.add(offset);
-
-                final Cell cell = cells.next();
-                final ByteBuffer key = cell.getKey();
-                final int keySize = cell.getKey().remaining();
-
-                final Value value = cell.getValue();
-
-                final int bufferSize = Integer.BYTES
-                        + key.remaining()
-                        + Long.BYTES
-                        + (value.isRemoved() ? 0 : Integer.BYTES + value.getData().remaining());
-
-                final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-                buffer.putInt(keySize).put(key);
-
-                // Timestamp
-                if (value.isRemoved()) {
-                    buffer.putLong(-cell.getValue().getTimeStamp());
-                } else {
-                    buffer.putLong(cell.getValue().getTimeStamp());
-                }
+    @NotNull
+    Iterator<Cell> iterator(@NotNull ByteBuffer from, @Nullable ByteBuffer to) throws IOException;
 
-                // Value
-                if (!value.isRemoved()) {
-                    final ByteBuffer valueData = value.getData();
-                    final int valueSize = valueData.remaining();
-                    buffer.putInt(valueSize).put(valueData);
-                }
+    /**
+     * Cells with keys not greater than the given one in descending order.
+     *
+     * @param from inclusive or null to start at the largest key
+     * @return iterator over cells in reverse order of keys
+     * @throws IOException If an I/O error occurs
+     */
+    @NotNull
+    Iterator<Cell> descendingIterator(@Nullable ByteBuffer from) throws IOException;
 
-                buffer.flip();
-                fc.write(buffer);
-                offset += bufferSize;
-            }
+    void upsert(
+            @NotNull ByteBuffer key,
+            @NotNull ByteBuffer value) throws IOException;
 
-            // Offsets
-            for (final long anOffset : offsets) {
-                fc.write(Bytes.fromLong(anOffset));
-            }
+    void remove(@NotNull ByteBuffer key) throws IOException;
 
-            // BloomFilter
-            final long[] bloomFilterArray = bloomFilter.toLongArray();
-            for (final long bit : bloomFilterArray) {
-                fc.write(Bytes.fromLong(bit));
-            }
-            fc.write(Bytes.fromInt(bloomFilterArray.length));
+    void clear() throws IOException;
 
-            // Rows
-            fc.write(Bytes.fromLong(offsets.size()));
-        }
-    }
+    Cell get(@NotNull ByteBuffer key) throws IOException;
 }
@@ -0,0 +1,36 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The way SSTable files are read.
+ */
+public enum TableMode {
+    /**
+     * Positional reads through {@link java.nio.channels.FileChannel}.
+     */
+    FILE_CHANNEL {
+        @Override
+        FileTable open(final File file,
+                       final FileHandleCache handles,
+                       final BlockCache blockCache) throws IOException {
+            return new FileChannelTable(file, handles, blockCache);
+        }
+    },
+
+    /**
+     * The whole file is mapped into memory once, reads are memory accesses.
+     * Only decompressed blocks go through the block cache.
+     */
+    MAPPED {
+        @Override
+        FileTable open(final File file,
+                       final FileHandleCache handles,
+                       final BlockCache blockCache) throws IOException {
+            return new MappedFileTable(file, blockCache);
+        }
+    };
+
+    abstract FileTable open(File file, FileHandleCache handles, BlockCache blockCache) throws IOException;
+}
@@ -0,0 +1,121 @@
+package ru.mail.polis.persistence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Immutable set of tables the Dao reads from: the memTable receiving writes,
+ * full memTables waiting for their flush and SSTables.
+ * Readers retain the set while they use it, so files replaced by compaction
+ * are deleted only when the last reader of an older set is done.
+ */
+final class TableSet {
+    final MemTable memTable;
+    final List<MemTable> flushing;
+    final List<FileTable> files;
+    final List<FileTable> newestFirst;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    /**
+     * Set owned by the Dao, which holds the first reference.
+     *
+     * @param memTable table receiving writes
+     * @param flushing full memTables, which are being flushed
+     * @param files    SSTables
+     */
+    TableSet(@NotNull final MemTable memTable,
+            @NotNull final List<MemTable> flushing,
+            @NotNull final List<FileTable> files) {
+        this.memTable = memTable;
+        this.flushing = Collections.unmodifiableList(flushing);
+        this.files = Collections.unmodifiableList(files);
+        final List<FileTable> ordered = new ArrayList<>(files);
+        ordered.sort(Comparator.comparingLong(FileTable::maxTimeStamp).reversed());
+        this.newestFirst = Collections.unmodifiableList(ordered);
+        for (final FileTable file : files) {
+            file.retain();
+        }
+    }
+
+    /**
+     * Reference the set unless it has already been released by everyone.
+     *
+     * @return true if the set was retained
+     */
+    boolean tryRetain() {
+        while (true) {
+            final int current = refs.get();
+            if (current == 0) {
+                return false;
+            }
+            if (refs.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() throws IOException {
+        final int left = refs.decrementAndGet();
+        assert left >= 0;
+        if (left == 0) {
+            for (final FileTable file : files) {
+                file.release();
+            }
+        }
+    }
+
+    /**
+     * Same set with a fresh memTable, the current one waits for its flush.
+     *
+     * @param next new table receiving writes
+     * @return new set
+     */
+    @NotNull
+    TableSet frozen(@NotNull final MemTable next) {
+        final List<MemTable> result = new ArrayList<>(flushing);
+        result.add(memTable);
+        return new TableSet(next, result, files);
+    }
+
+    /**
+     * Same set with a flushed memTable replaced by its SSTable.
+     *
+     * @param frozen  memTable, which was flushed
+     * @param flushed SSTable of the memTable
+     * @return new set
+     */
+    @NotNull
+    TableSet flushed(@NotNull final MemTable frozen, @NotNull final FileTable flushed) {
+        final List<MemTable> left = new ArrayList<>(flushing);
+        left.remove(frozen);
+        final List<FileTable> result = new ArrayList<>(files);
+        result.add(flushed);
+        return new TableSet(memTable, left, result);
+    }
+
+    /**
+     * Same set with tables replaced by the result of their compaction.
+     *
+     * @param replaced tables, which were compacted
+     * @param merged   SSTables with the result of compaction
+     * @return new set
+     */
+    @NotNull
+    TableSet compacted(@NotNull final Collection<FileTable> replaced, @NotNull final List<FileTable> merged) {
+        final List<FileTable> result = new ArrayList<>(files.size() - replaced.size() + merged.size());
+        for (final FileTable file : files) {
+            if (!replaced.contains(file)) {
+                result.add(file);
+            }
+        }
+        result.addAll(merged);
+        return new TableSet(memTable, flushing, result);
+    }
+}
@@ -0,0 +1,229 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Dumps sorted cells to an SSTable file.
+ * List of Blocks, see {@link Block}, each stored by {@link Compression}
+ * -Index of blocks
+ * -Entry
+ * keySize - Integer
+ * key - ByteBuffer, the shortest prefix of the first key in the block
+ * which is still greater than the last key of the previous block.
+ * blockOffset - Long
+ * blockSize - Integer
+ * -BloomFilter of all written keys, see {@link BloomFilter}
+ * -Prefix filter
+ * nameSize - Integer
+ * name - UTF-8 name of the {@link PrefixExtractor}
+ * BloomFilter of all distinct prefixes
+ * -References to the {@link ValueLog}
+ * count segments - Integer
+ * generation - Integer and size - Long of values referenced in each segment
+ * -Footer
+ * indexOffset - Long
+ * indexSize - Integer
+ * BloomFilterSize - Integer, 0 if there is no filter
+ * prefixFilterSize - Integer, 0 if there is no filter
+ * valueLogRefsSize - Integer
+ * count rows - Long
+ * maxTimeStamp - Long, the newest timestamp of a cell, Long.MIN_VALUE for an empty table
+ * level - Integer
+ * magic - Long
+ */
+final class TableWriter {
+    private final int blockSize;
+    private final int bitsPerKey;
+    private final PrefixExtractor prefixExtractor;
+    private final Compression[] compression;
+
+    /**
+     * Writer of tables with the given settings.
+     *
+     * @param blockSize       minimal size of a block
+     * @param bitsPerKey      size of the BloomFilters per key or prefix, 0 for no filters
+     * @param prefixExtractor extractor of prefixes for the prefix filter or null for no prefix filter
+     * @param compression     codecs of blocks per level, the last one applies to all deeper levels
+     */
+    TableWriter(
+            final int blockSize,
+            final int bitsPerKey,
+            @Nullable final PrefixExtractor prefixExtractor,
+            @NotNull final Compression[] compression) {
+        assert blockSize > 0 && bitsPerKey >= 0 && compression.length > 0;
+        this.blockSize = blockSize;
+        this.bitsPerKey = bitsPerKey;
+        this.prefixExtractor = bitsPerKey > 0 ? prefixExtractor : null;
+        this.compression = compression;
+    }
+
+    /**
+     * Dump to the file.
+     *
+     * @param cells  iterator of data
+     * @param to     file to create
+     * @param level  level of the table in the LSM tree
+     * @param values writer of large values or null to keep values in the table
+     * @throws IOException If an I/O error occurs
+     */
+    void write(
+            @NotNull final Iterator<Cell> cells,
+            @NotNull final File to,
+            final int level,
+            @Nullable final ValueLog.Writer values) throws IOException {
+        try (FileChannel fc = FileChannel.open(to.toPath(),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            final List<ByteBuffer> index = new ArrayList<>();
+            final Compression codec = compression[Math.min(level, compression.length - 1)];
+            final BlockBuilder block = new BlockBuilder(blockSize);
+            final Hashes keys = new Hashes(bitsPerKey > 0);
+            final Hashes prefixes = new Hashes(prefixExtractor != null);
+            final Map<Integer, Long> valueLogRefs = new TreeMap<>();
+            ByteBuffer lastKey = null;
+            ByteBuffer lastPrefix = null;
+            long offset = 0;
+            long rows = 0;
+            long maxTimeStamp = Long.MIN_VALUE;
+            while (cells.hasNext()) {
+                final Cell cell = values == null ? cells.next() : values.separate(cells.next());
+                if (cell.getValue().isIndirect()) {
+                    final ByteBuffer pointer = cell.getValue().getData();
+                    valueLogRefs.merge(ValueLog.generationOf(pointer), (long) ValueLog.sizeOf(pointer), Long::sum);
+                }
+                if (block.isEmpty()) {
+                    final ByteBuffer indexKey = BlockBuilder.indexKey(lastKey, cell.getKey());
+                    index.add(ByteBuffer.allocate(Integer.BYTES + indexKey.remaining() + Long.BYTES + Integer.BYTES)
+                            .putInt(indexKey.remaining())
+                            .put(indexKey)
+                            .putLong(offset));
+                }
+                block.add(cell);
+                lastKey = cell.getKey();
+                keys.add(lastKey);
+                if (prefixExtractor != null) {
+                    // Keys are sorted, so equal prefixes are adjacent
+                    final ByteBuffer prefix = prefixExtractor.prefix(lastKey);
+                    if (prefix != null && !prefix.equals(lastPrefix)) {
+                        prefixes.add(prefix);
+                        lastPrefix = prefix;
+                    }
+                }
+                rows++;
+                maxTimeStamp = Math.max(maxTimeStamp, cell.getValue().getTimeStamp());
+                if (block.isFull() || !cells.hasNext()) {
+                    // Room for the trailer of a block stored as is
+                    final ByteBuffer raw = ByteBuffer.allocate(block.finishedSize() + Byte.BYTES);
+                    block.finish(raw);
+                    final ByteBuffer buffer = codec.encode(raw.flip());
+                    index.get(index.size() - 1).putInt(buffer.remaining()).flip();
+                    offset += buffer.remaining();
+                    fc.write(buffer);
+                }
+            }
+
+            // Index
+            final long indexOffset = offset;
+            for (final ByteBuffer entry : index) {
+                offset += entry.remaining();
+                fc.write(entry);
+            }
+
+            // Filters sized for the keys actually written
+            final int bloomFilterSize = keys.writeFilter(fc, bitsPerKey, null);
+            final int prefixFilterSize =
+                    prefixes.writeFilter(fc, bitsPerKey, prefixExtractor == null ? null : prefixExtractor.name());
+
+            // Value log references
+            final ByteBuffer refs = ByteBuffer.allocate(
+                    Integer.BYTES + valueLogRefs.size() * (Integer.BYTES + Long.BYTES));
+            refs.putInt(valueLogRefs.size());
+            for (final Map.Entry<Integer, Long> ref : valueLogRefs.entrySet()) {
+                refs.putInt(ref.getKey()).putLong(ref.getValue());
+            }
+            fc.write(refs.flip());
+
+            // Footer
+            final ByteBuffer footer = ByteBuffer.allocate(FileTable.FOOTER_SIZE)
+                    .putLong(indexOffset)
+                    .putInt((int) (offset - indexOffset))
+                    .putInt(bloomFilterSize)
+                    .putInt(prefixFilterSize)
+                    .putInt(refs.limit())
+                    .putLong(rows)
+                    .putLong(maxTimeStamp)
+                    .putInt(level)
+                    .putLong(FileTable.MAGIC)
+                    .flip();
+            fc.write(footer);
+            // The table is committed to the manifest after it is durable
+            fc.force(true);
+        }
+    }
+
+    /**
+     * Hashes of written keys or prefixes, collected to size the filter exactly.
+     */
+    private static final class Hashes {
+        private final boolean enabled;
+        private long[] values;
+        private int size;
+
+        Hashes(final boolean enabled) {
+            this.enabled = enabled;
+            this.values = new long[enabled ? 1024 : 0];
+        }
+
+        void add(final ByteBuffer key) {
+            if (!enabled) {
+                return;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = BloomFilter.hash(key);
+        }
+
+        /**
+         * Write the filter of collected hashes.
+         *
+         * @param fc         destination
+         * @param bitsPerKey size of the filter per hash
+         * @param name       name written before the filter or null
+         * @return count of written bytes
+         * @throws IOException If an I/O error occurs
+         */
+        int writeFilter(final FileChannel fc, final int bitsPerKey, final String name) throws IOException {
+            if (!enabled) {
+                return 0;
+            }
+            final BloomFilter filter = BloomFilter.create(size, bitsPerKey);
+            for (int i = 0; i < size; i++) {
+                filter.add(values[i]);
+            }
+            final byte[] nameBytes = name == null ? new byte[0] : name.getBytes(StandardCharsets.UTF_8);
+            final int nameSize = name == null ? 0 : Integer.BYTES + nameBytes.length;
+            final ByteBuffer buffer = ByteBuffer.allocate(nameSize + filter.serializedSize());
+            if (name != null) {
+                buffer.putInt(nameBytes.length).put(nameBytes);
+            }
+            filter.write(buffer);
+            fc.write(buffer.flip());
+            return buffer.limit();
+        }
+    }
+}
@@ -1,30 +1,37 @@
 package ru.mail.polis.persistence;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jetbrains.annotations.NotNull;
 
 public final class Value implements Comparable<Value> {
     private final long ts;
     private final ByteBuffer data;
-    private static final AtomicInteger nano = new AtomicInteger();
-    private static final int FACTOR = 1_000_000;
+    private final boolean indirect;
+    // The last timestamp taken or seen on disk
+    private static final AtomicLong moment = new AtomicLong();
+    private static final long FACTOR = 1_000_000;
 
     private Value(final long ts, final ByteBuffer data) {
+        this(ts, data, false);
+    }
+
+    private Value(final long ts, final ByteBuffer data, final boolean indirect) {
         assert ts >= 0;
         this.ts = ts;
         this.data = data;
+        this.indirect = indirect;
     }
 
     /**
-     * Create Value and put ts from nano.
+     * Create Value with the next timestamp.
      *
      * @param data data marked by ts
      * @return and go back
      */
     public static Value of(final ByteBuffer data) {
-        return new Value(getMoment(), data.duplicate());
+        return new Value(reserve(1), data.duplicate());
     }
 
     public static Value of(final long time, final ByteBuffer data) {
@@ -32,13 +39,33 @@ public final class Value implements Comparable<Value> {
     }
 
     static Value tombstone() {
-        return tombstone(getMoment());
+        return tombstone(reserve(1));
     }
 
     static Value tombstone(final long time) {
         return new Value(time, null);
     }
 
+    /**
+     * Value stored in the {@link ValueLog}, SSTables keep only the pointer to it.
+     *
+     * @param time    timestamp of the value
+     * @param pointer pointer to the value, see {@link ValueLog#pointer}
+     * @return indirect value
+     */
+    static Value indirect(final long time, final ByteBuffer pointer) {
+        return new Value(time, pointer.duplicate(), true);
+    }
+
+    /**
+     * Whether {@link #getData} is a pointer to the value in the {@link ValueLog} rather than the value itself.
+     *
+     * @return true for a value stored in the value log
+     */
+    boolean isIndirect() {
+        return indirect;
+    }
+
     boolean isRemoved() {
         return data == null;
     }
@@ -59,11 +86,31 @@ public final class Value implements Comparable<Value> {
         return ts;
     }
 
-    private static long getMoment() {
-        final long time = System.currentTimeMillis() * FACTOR + nano.incrementAndGet();
-        if (nano.get() > FACTOR) {
-            nano.set(0);
+    /**
+     * Take successive timestamps, which are greater than every timestamp taken or observed before.
+     * Timestamps follow the clock in milliseconds times a million and run ahead of it
+     * only if more than a million are taken within a millisecond or the clock goes back.
+     *
+     * @param count number of timestamps
+     * @return the first of them
+     */
+    static long reserve(final int count) {
+        assert count > 0;
+        while (true) {
+            final long last = moment.get();
+            final long first = Math.max(last + 1, System.currentTimeMillis() * FACTOR);
+            if (moment.compareAndSet(last, first + count - 1)) {
+                return first;
+            }
         }
-        return time;
+    }
+
+    /**
+     * Make timestamps taken later greater than the timestamp of stored data.
+     *
+     * @param time timestamp read from disk
+     */
+    static void observe(final long time) {
+        moment.accumulateAndGet(time, Math::max);
     }
 }
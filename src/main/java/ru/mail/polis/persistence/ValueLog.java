@@ -0,0 +1,391 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Large values kept apart from SSTables, so compactions move only keys and small pointers.
+ * Values of all tables being written are appended to the active segment, which is closed at its size limit
+ * and never written again, so is a segment left after a restart.
+ * Every SSTable records how many bytes of each segment it references, so the live bytes of a segment
+ * are summed over existing tables and the tables being written, the rest is garbage left by overwritten
+ * and removed keys or by tables, which were not written.
+ * Values of a closed segment with enough garbage are relocated by rewriting the tables referencing it,
+ * the segment is deleted along with the last of them.
+ * Segment
+ * -List of values ByteBuffer
+ * Pointer
+ * generation - Integer, generation of the segment
+ * offset - Long, position of the value in the segment
+ * size - Integer, size of the value
+ */
+final class ValueLog {
+    static final int POINTER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+    private static final String NAME = "ValueLog";
+    private static final String SUFFIX = ".dat";
+    private final File base;
+    private final FileHandleCache handles;
+    private final int threshold;
+    private final double garbageRatio;
+    private final long segmentSize;
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    // Guarded by this
+    private Segment active;
+
+    /**
+     * Value log in the directory of the Dao.
+     *
+     * @param base         directory of DB
+     * @param handles      shared cache of open channels
+     * @param threshold    size values are moved to the log from, 0 keeps all values in SSTables
+     * @param garbageRatio share of garbage in a segment, which makes its values relocated
+     * @param segmentSize  size the active segment is closed at
+     */
+    ValueLog(@NotNull final File base,
+            @NotNull final FileHandleCache handles,
+            final int threshold,
+            final double garbageRatio,
+            final long segmentSize) {
+        this.base = base;
+        this.handles = handles;
+        this.threshold = threshold;
+        this.garbageRatio = garbageRatio;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Find segments written before, they are kept until tables referencing them are opened.
+     *
+     * @param existing files of the directory
+     */
+    void open(@NotNull final List<File> existing) {
+        for (final File file : existing) {
+            if (file.getName().endsWith(NAME + SUFFIX)) {
+                final Segment segment =
+                        new Segment(file, FileTable.getGenerationByName(file.getName()), file.length());
+                segments.put(segment.generation, segment);
+            }
+        }
+    }
+
+    /**
+     * Delete segments no table references, e.g. written by a flush, which didn't complete before a crash.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    void deleteUnused() throws IOException {
+        for (final Segment segment : segments.values()) {
+            deleteIfUnused(segment);
+        }
+    }
+
+    static ByteBuffer pointer(final int generation, final long offset, final int size) {
+        return ByteBuffer.allocate(POINTER_SIZE)
+                .putInt(generation)
+                .putLong(offset)
+                .putInt(size)
+                .flip();
+    }
+
+    static int generationOf(@NotNull final ByteBuffer pointer) {
+        return pointer.getInt(pointer.position());
+    }
+
+    static int sizeOf(@NotNull final ByteBuffer pointer) {
+        return pointer.getInt(pointer.position() + Integer.BYTES + Long.BYTES);
+    }
+
+    /**
+     * Writer of the values of a new table.
+     *
+     * @param generations source of generations for new segments
+     * @return writer or null if values are kept in SSTables
+     */
+    @Nullable
+    Writer writer(@NotNull final IntSupplier generations) {
+        return threshold == 0 ? null : new Writer(generations);
+    }
+
+    /**
+     * Count references of a table found on start to segments, references of new tables are counted by their writers.
+     *
+     * @param table opened SSTable
+     * @throws IOException If a referenced segment doesn't exist
+     */
+    void retain(@NotNull final FileTable table) throws IOException {
+        for (final Map.Entry<Integer, Long> ref : table.getValueLogRefs().entrySet()) {
+            final Segment segment = segments.get(ref.getKey());
+            if (segment == null) {
+                throw new IOException("No value log segment " + ref.getKey() + " for " + table.getFile());
+            }
+            segment.live.addAndGet(ref.getValue());
+        }
+    }
+
+    /**
+     * Drop references of a deleted table, segments without references are deleted.
+     *
+     * @param table SSTable, which file is deleted
+     * @throws IOException If an I/O error occurs
+     */
+    void release(@NotNull final FileTable table) throws IOException {
+        for (final Map.Entry<Integer, Long> ref : table.getValueLogRefs().entrySet()) {
+            final Segment segment = segments.get(ref.getKey());
+            if (segment == null) {
+                throw new IOException("No value log segment " + ref.getKey() + " for " + table.getFile());
+            }
+            segment.live.addAndGet(-ref.getValue());
+            deleteIfUnused(segment);
+        }
+    }
+
+    /**
+     * Delete a closed segment without live values, the active one is checked again when it is closed.
+     */
+    private void deleteIfUnused(final Segment segment) throws IOException {
+        if (segment.closed && segment.live.get() == 0 && segments.remove(segment.generation, segment)) {
+            handles.invalidate(segment.generation);
+            Files.deleteIfExists(segment.file.toPath());
+        }
+    }
+
+    /**
+     * Segments with enough garbage to relocate their live values.
+     *
+     * @return generations of the segments
+     */
+    @NotNull
+    Set<Integer> garbage() {
+        final Set<Integer> result = new HashSet<>();
+        for (final Segment segment : segments.values()) {
+            final long size = segment.size;
+            if (segment.closed && size > 0 && size - segment.live.get() >= garbageRatio * size) {
+                result.add(segment.generation);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Pick a table referencing a segment with enough garbage to rewrite it at its level.
+     * Closed segments without live values left, e.g. by a table, which was not written, are deleted meanwhile.
+     *
+     * @param tables     current SSTables
+     * @param compacting tables, which are already being compacted
+     * @return compaction of a single table or null if there is nothing to collect
+     * @throws IOException If an I/O error occurs
+     */
+    @Nullable
+    Compaction pick(@NotNull final List<FileTable> tables, @NotNull final Set<FileTable> compacting)
+            throws IOException {
+        for (final Segment segment : segments.values()) {
+            deleteIfUnused(segment);
+        }
+        final Set<Integer> garbage = garbage();
+        if (garbage.isEmpty()) {
+            return null;
+        }
+        for (final FileTable table : tables) {
+            if (!compacting.contains(table) && !Collections.disjoint(table.getValueLogRefs().keySet(), garbage)) {
+                return new Compaction(Collections.singletonList(table), table.getLevel());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Contents of the value.
+     *
+     * @param value live value
+     * @return the value itself or the value read from the log
+     * @throws IOException If an I/O error occurs
+     */
+    @NotNull
+    ByteBuffer dataOf(@NotNull final Value value) throws IOException {
+        return value.isIndirect() ? read(value.getData()) : value.getData();
+    }
+
+    @NotNull
+    private ByteBuffer read(@NotNull final ByteBuffer pointer) throws IOException {
+        final int generation = generationOf(pointer);
+        final long offset = pointer.getLong(pointer.position() + Integer.BYTES);
+        final Segment segment = segments.get(generation);
+        if (segment == null) {
+            throw new IOException("No value log segment " + generation);
+        }
+        final ByteBuffer to = ByteBuffer.allocate(sizeOf(pointer));
+        try (FileHandleCache.Handle handle = handles.acquire(generation, segment.file)) {
+            while (to.hasRemaining()) {
+                if (handle.channel().read(to, offset + to.position()) < 0) {
+                    throw new IOException("Unexpected end of " + segment.file);
+                }
+            }
+        }
+        return to.flip();
+    }
+
+    /**
+     * Close the active segment, called when the Dao is closed.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    synchronized void close() throws IOException {
+        if (active != null) {
+            seal(active);
+            active = null;
+        }
+    }
+
+    /**
+     * Make the values of the active segment durable and stop writing to it, called under the lock of the log.
+     */
+    private void seal(final Segment segment) throws IOException {
+        try {
+            segment.channel.force(true);
+        } finally {
+            segment.channel.close();
+            segment.closed = true;
+        }
+        deleteIfUnused(segment);
+    }
+
+    private static final class Segment {
+        private final File file;
+        private final int generation;
+        private final AtomicLong live = new AtomicLong();
+        // Written under the lock of the log while the segment is active
+        private volatile long size;
+        private volatile boolean closed;
+        private FileChannel channel;
+
+        Segment(final File file, final int generation, final long size) {
+            this.file = file;
+            this.generation = generation;
+            this.size = size;
+            this.closed = true;
+        }
+
+        Segment(final File file, final int generation, final FileChannel channel) {
+            this.file = file;
+            this.generation = generation;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Moves large values of a table being written to the active segment and counts values the table references
+     * as live until the table is deleted or turns out not to be written.
+     */
+    final class Writer {
+        private final IntSupplier generations;
+        private final Map<Segment, Long> written = new HashMap<>();
+
+        private Writer(final IntSupplier generations) {
+            this.generations = generations;
+        }
+
+        /**
+         * Move the value to the log if it is large enough, pointers to the log are kept as they are.
+         *
+         * @param cell cell to write to the table
+         * @return the same cell or the cell with a pointer to the value
+         * @throws IOException If an I/O error occurs
+         */
+        @NotNull
+        Cell separate(@NotNull final Cell cell) throws IOException {
+            final Value value = cell.getValue();
+            if (value.isIndirect()) {
+                // A compaction keeps the pointer, the new table references the segment as well
+                final int generation = generationOf(value.getData());
+                final Segment segment = segments.get(generation);
+                if (segment == null) {
+                    throw new IOException("No value log segment " + generation);
+                }
+                count(segment, sizeOf(value.getData()));
+                return cell;
+            }
+            if (value.isRemoved() || value.getData().remaining() < threshold) {
+                return cell;
+            }
+            final ByteBuffer data = value.getData();
+            final int valueSize = data.remaining();
+            final ByteBuffer pointer;
+            synchronized (ValueLog.this) {
+                if (active == null || active.size >= segmentSize) {
+                    roll();
+                }
+                final long offset = active.size;
+                // Counted before the segment can be closed, so it is not deleted under the table
+                count(active, valueSize);
+                while (data.hasRemaining()) {
+                    active.channel.write(data);
+                }
+                active.size = offset + valueSize;
+                pointer = pointer(active.generation, offset, valueSize);
+            }
+            return new Cell(cell.getKey(), Value.indirect(value.getTimeStamp(), pointer));
+        }
+
+        private void count(final Segment segment, final long valueSize) {
+            segment.live.addAndGet(valueSize);
+            written.merge(segment, valueSize, Long::sum);
+        }
+
+        private void roll() throws IOException {
+            if (active != null) {
+                final Segment previous = active;
+                active = null;
+                seal(previous);
+            }
+            final int generation = generations.getAsInt();
+            final File file = new File(base, generation + NAME + SUFFIX);
+            final FileChannel channel =
+                    FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            active = new Segment(file, generation, channel);
+            segments.put(generation, active);
+        }
+
+        /**
+         * Make the values durable, called before the table is committed.
+         *
+         * @throws IOException If an I/O error occurs
+         */
+        void finish() throws IOException {
+            synchronized (ValueLog.this) {
+                // Closed segments were forced when they were closed
+                if (active != null && written.containsKey(active)) {
+                    active.channel.force(true);
+                }
+            }
+        }
+
+        /**
+         * Drop the values of a table, which was not written or committed, they become garbage of their segments.
+         *
+         * @throws IOException If an I/O error occurs
+         */
+        void abort() throws IOException {
+            for (final Map.Entry<Segment, Long> entry : written.entrySet()) {
+                entry.getKey().live.addAndGet(-entry.getValue());
+                deleteIfUnused(entry.getKey());
+            }
+            written.clear();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package ru.mail.polis.persistence;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Segment of the write-ahead log of one memTable generation.
+ * List of Records
+ * -Record
+ * payloadSize - Integer
+ * checksum - CRC32 of the payload Integer
+ * payload - Cells encoded as in {@link Block}
+ * Concurrent writers are grouped: one of them writes and forces the records of all waiting writers at once.
+ */
+final class WriteAheadLog implements Closeable {
+    static final long SYNC_PERIOD_MS = 100L;
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+    private final File file;
+    private final FileChannel channel;
+    private final Durability durability;
+    private final Lock lock = new ReentrantLock();
+    private final Condition written = lock.newCondition();
+    private final List<ByteBuffer> pending = new ArrayList<>();
+    private long appendedRecords;
+    private long writtenRecords;
+    private boolean writing;
+    private IOException failure;
+
+    /**
+     * Create a new segment.
+     *
+     * @param file       of this segment
+     * @param durability when records are forced to the disk
+     * @throws IOException If an I/O error occurs
+     */
+    WriteAheadLog(@NotNull final File file, @NotNull final Durability durability) throws IOException {
+        this.file = file;
+        this.durability = durability;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Read all complete records of a segment, a torn record at the end is ignored.
+     *
+     * @param file of the segment
+     * @param to   memTable to apply the cells to
+     * @throws IOException If an I/O error occurs
+     */
+    static void replay(@NotNull final File file, @NotNull final MemTable to) throws IOException {
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            long offset = 0;
+            while (true) {
+                header.clear();
+                if (!readFully(fc, header, offset)) {
+                    return;
+                }
+                final int payloadSize = header.getInt(0);
+                if (!fits(fc, payloadSize, offset + HEADER_SIZE)) {
+                    return;
+                }
+                final ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+                if (!readFully(fc, payload, offset + HEADER_SIZE)
+                        || checksum(payload) != header.getInt(Integer.BYTES)) {
+                    return;
+                }
+                while (payload.hasRemaining()) {
+                    final Cell cell = Block.read(payload);
+                    to.put(cell.getKey(), cell.getValue());
+                }
+                offset += HEADER_SIZE + payloadSize;
+            }
+        }
+    }
+
+    /**
+     * Read the buffer up to its limit and flip it.
+     *
+     * @param fc     source
+     * @param to     destination
+     * @param offset position in the file
+     * @return false if the file is shorter
+     * @throws IOException If an I/O error occurs
+     */
+    static boolean readFully(final FileChannel fc, final ByteBuffer to, final long offset) throws IOException {
+        while (to.hasRemaining()) {
+            if (fc.read(to, offset + to.position()) < 0) {
+                return false;
+            }
+        }
+        to.flip();
+        return true;
+    }
+
+    /**
+     * Check the size read from a record header, a torn or corrupt header ends the log like a wrong checksum does.
+     *
+     * @param fc            source
+     * @param payloadSize   size of the payload from the header
+     * @param payloadOffset position of the payload in the file
+     * @return true if the payload may be read
+     * @throws IOException If an I/O error occurs
+     */
+    static boolean fits(final FileChannel fc, final int payloadSize, final long payloadOffset) throws IOException {
+        return payloadSize >= 0 && payloadSize <= fc.size() - payloadOffset;
+    }
+
+    static int checksum(final ByteBuffer payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Log the cells as one record and wait until it is written according to durability.
+     *
+     * @param cells cells to log
+     * @throws IOException If an I/O error occurs
+     */
+    void append(@NotNull final Collection<Cell> cells) throws IOException {
+        int payloadSize = 0;
+        for (final Cell cell : cells) {
+            payloadSize += Block.sizeOf(cell);
+        }
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+        record.position(HEADER_SIZE);
+        for (final Cell cell : cells) {
+            Block.write(record, cell);
+        }
+        record.flip();
+        record.putInt(0, payloadSize);
+        record.putInt(Integer.BYTES, checksum(record.duplicate().position(HEADER_SIZE)));
+
+        lock.lock();
+        try {
+            checkFailure();
+            pending.add(record);
+            final long ticket = ++appendedRecords;
+            while (writtenRecords < ticket) {
+                if (writing) {
+                    written.awaitUninterruptibly();
+                    checkFailure();
+                    continue;
+                }
+                writeGroup();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write all pending records on behalf of their writers, called under the lock.
+     */
+    private void writeGroup() throws IOException {
+        writing = true;
+        final ByteBuffer[] group = pending.toArray(new ByteBuffer[0]);
+        pending.clear();
+        final long last = appendedRecords;
+        IOException error = null;
+        lock.unlock();
+        try {
+            for (final ByteBuffer record : group) {
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            }
+            if (durability == Durability.BATCH) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            lock.lock();
+        }
+        writing = false;
+        if (error == null) {
+            writtenRecords = last;
+        } else {
+            failure = error;
+        }
+        written.signalAll();
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Write-ahead log " + file + " is broken", failure);
+        }
+    }
+
+    /**
+     * Force written records to the disk.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    void sync() throws IOException {
+        if (channel.isOpen()) {
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (durability != Durability.NO_SYNC) {
+            sync();
+        }
+        channel.close();
+    }
+}
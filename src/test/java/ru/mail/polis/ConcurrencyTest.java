@@ -0,0 +1,181 @@
+package ru.mail.polis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.persistence.LSMConfig;
+import ru.mail.polis.persistence.LSMDao;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Concurrent writers and readers of a single {@link DAO} while memTables are flushed.
+ */
+class ConcurrencyTest extends TestBase {
+    private static final int THREADS = 4;
+    private static final int KEYS = 5_000;
+    private static final long FLUSH_THRESHOLD = 32 * 1024;
+
+    @Test
+    void concurrentWriters(@TempDir File data) throws Exception {
+        try (DAO dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD))) {
+            runAll(THREADS, thread -> {
+                for (int i = thread; i < KEYS; i += THREADS) {
+                    dao.upsert(key(i), value(i, 0));
+                }
+            });
+            assertAll(dao, 0);
+        }
+        try (DAO dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD))) {
+            assertAll(dao, 0);
+        }
+    }
+
+    @Test
+    void readersDuringWrites(@TempDir File data) throws Exception {
+        final int rounds = 3;
+        try (DAO dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD))) {
+            runAll(2 * THREADS, thread -> {
+                if (thread < THREADS) {
+                    for (int round = 0; round < rounds; round++) {
+                        for (int i = thread; i < KEYS; i += THREADS) {
+                            dao.upsert(key(i), value(i, round));
+                        }
+                    }
+                    return;
+                }
+                for (int pass = 0; pass < rounds; pass++) {
+                    for (int i = 0; i < KEYS; i++) {
+                        try {
+                            // Any version of the value, but never a value of another key
+                            assertTrue(string(dao.get(key(i))).startsWith(string(key(i)) + ":"));
+                        } catch (NoSuchElementException e) {
+                            // Not written yet
+                        }
+                    }
+                }
+            });
+            assertAll(dao, rounds - 1);
+        }
+    }
+
+    @Test
+    void sameKeyLastWriteWins(@TempDir File data) throws Exception {
+        final ByteBuffer latest;
+        try (DAO dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD))) {
+            runAll(THREADS, thread -> {
+                for (int i = 0; i < KEYS; i++) {
+                    dao.upsert(key(0), value(thread, i));
+                    dao.upsert(key(i + 1), value(i + 1, 0));
+                }
+            });
+            latest = dao.get(key(0));
+            final String value = string(latest);
+            assertTrue(value.endsWith(":" + (KEYS - 1)), value);
+        }
+        try (DAO dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD))) {
+            assertEquals(latest, dao.get(key(0)));
+        }
+    }
+
+    @Test
+    void iteratorsDuringWrites(@TempDir File data) throws Exception {
+        try (DAO dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD))) {
+            runAll(2 * THREADS, thread -> {
+                if (thread < THREADS) {
+                    for (int i = thread; i < KEYS; i += THREADS) {
+                        dao.upsert(key(i), value(i, 0));
+                        if (i % 3 == 0) {
+                            dao.remove(key(i));
+                        }
+                    }
+                    return;
+                }
+                for (int pass = 0; pass < 5; pass++) {
+                    ByteBuffer previous = null;
+                    final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+                    while (records.hasNext()) {
+                        final Record record = records.next();
+                        // Strictly ascending, so no key is returned twice
+                        assertTrue(previous == null || previous.compareTo(record.getKey()) < 0);
+                        assertEquals(value(Integer.parseInt(string(record.getKey()).substring(3)), 0),
+                                record.getValue());
+                        previous = record.getKey();
+                    }
+                }
+            });
+            int count = 0;
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            while (records.hasNext()) {
+                assertTrue(Integer.parseInt(string(records.next().getKey()).substring(3)) % 3 != 0);
+                count++;
+            }
+            assertEquals(KEYS - (KEYS + 2) / 3, count);
+        }
+    }
+
+    private static void runAll(final int threads, final Task task) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> done = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                final int index = thread;
+                final Callable<Void> callable = () -> {
+                    task.run(index);
+                    return null;
+                };
+                done.add(executor.submit(callable));
+            }
+            for (final Future<?> future : done) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void assertAll(final DAO dao, final int round) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(value(i, round), dao.get(key(i)));
+        }
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer value(final int index, final int round) {
+        return ByteBuffer.wrap(String.format("key%06d:%d", index, round).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(final ByteBuffer buffer) {
+        return StandardCharsets.UTF_8.decode(buffer.duplicate()).toString();
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        void run(int thread) throws Exception;
+    }
+}
@@ -0,0 +1,90 @@
+package ru.mail.polis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.persistence.LSMConfig;
+import ru.mail.polis.persistence.LSMDao;
+import ru.mail.polis.persistence.TableMode;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Both ways of reading SSTables return the same records and read tables written in either mode.
+ */
+class TableModeTest extends TestBase {
+    private static final long FLUSH_THRESHOLD = 64 * 1024;
+
+    @Test
+    void mappedReadsFileChannelTables(@TempDir File data) throws IOException {
+        reopenIn(data, TableMode.FILE_CHANNEL, TableMode.MAPPED);
+    }
+
+    @Test
+    void fileChannelReadsMappedTables(@TempDir File data) throws IOException {
+        reopenIn(data, TableMode.MAPPED, TableMode.FILE_CHANNEL);
+    }
+
+    @Test
+    void iteratorOutlivesCompaction(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD).tableMode(TableMode.MAPPED))) {
+            fill(dao, expected, 0);
+        }
+        try (DAO dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD).tableMode(TableMode.MAPPED))) {
+            // The memTable is empty, so the iterator reads SSTables only
+            final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+
+            // Mapped tables read by the iterator are replaced and unlinked meanwhile
+            fill(dao, new TreeMap<>(), 1);
+            dao.compact();
+            assertContents(expected, iterator);
+        }
+    }
+
+    private static void reopenIn(final File data, final TableMode written, final TableMode read) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD).tableMode(written))) {
+            fill(dao, expected, 0);
+        }
+        try (DAO dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD).tableMode(read))) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertContents(expected, dao.iterator(ByteBuffer.allocate(0)));
+            final ByteBuffer middle = expected.keySet().toArray(new ByteBuffer[0])[expected.size() / 2];
+            assertContents(expected.tailMap(middle, true), dao.iterator(middle));
+        }
+    }
+
+    private static void fill(final DAO dao, final Map<ByteBuffer, ByteBuffer> expected, final int round)
+            throws IOException {
+        // Several flushes
+        for (int i = 0; i < 2_000; i++) {
+            final ByteBuffer key = ByteBuffer.wrap(String.format("key%06d", i).getBytes());
+            final ByteBuffer value = join(randomBuffer(KEY_LENGTH), ByteBuffer.wrap(new byte[100 * round + 100]));
+            dao.upsert(key, value);
+            expected.put(key, value);
+        }
+    }
+
+    private static void assertContents(final Map<ByteBuffer, ByteBuffer> expected, final Iterator<Record> actual) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(actual.hasNext());
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+}
@@ -0,0 +1,167 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Frozen memTables stay readable until flushed, a failed flush is retried without failing writes.
+ */
+class BackgroundFlushTest {
+    private static final long FLUSH_THRESHOLD = 16 * 1024;
+    private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    @Test
+    void readableWhileFlushing(@TempDir File data) throws IOException {
+        final int keys = 20_000;
+        try (LSMDao dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD))) {
+            for (int i = 0; i < keys; i++) {
+                dao.upsert(key(i), value(i));
+                if (i % 100 == 0) {
+                    // Recently frozen keys are read from memTables waiting for their flush
+                    for (int j = Math.max(0, i - 1_000); j <= i; j += 37) {
+                        assertEquals(value(j), dao.get(key(j)));
+                    }
+                    // Writers wait for a flush rather than queue memTables without a bound
+                    assertTrue(dao.memoryUsage() <= 4 * FLUSH_THRESHOLD, Long.toString(dao.memoryUsage()));
+                }
+            }
+            assertNull(dao.getFlushFailure());
+        }
+        assertTrue(tables(data) > 1);
+        try (LSMDao dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD))) {
+            for (int i = 0; i < keys; i++) {
+                assertEquals(value(i), dao.get(key(i)));
+            }
+        }
+    }
+
+    @Test
+    void failedFlushRetried(@TempDir File data) throws Exception {
+        int keys = 0;
+        try (LSMDao dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD))) {
+            // A directory in place of the file the flush writes to
+            final int generation = generation(data);
+            final File blocker = new File(data, generation + "SSTable.tmp");
+            Files.createDirectory(blocker.toPath());
+            final File inside = new File(blocker, "file");
+            Files.createFile(inside.toPath());
+
+            // Only the first memTable is frozen, writers would wait for its flush beyond the next one
+            while (generation(data) == generation) {
+                dao.upsert(key(keys), value(keys));
+                keys++;
+            }
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (dao.getFlushFailure() == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertNotNull(dao.getFlushFailure());
+
+            // The memTable is still readable and writes are accepted
+            dao.upsert(key(keys), value(keys));
+            for (int i = 0; i <= keys; i++) {
+                assertEquals(value(i), dao.get(key(i)));
+            }
+
+            Files.delete(inside.toPath());
+            Files.delete(blocker.toPath());
+            while (dao.getFlushFailure() != null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertNull(dao.getFlushFailure());
+            assertTrue(tables(data) > 0);
+        }
+        try (LSMDao dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD))) {
+            for (int i = 0; i <= keys; i++) {
+                assertEquals(value(i), dao.get(key(i)));
+            }
+        }
+    }
+
+    @Test
+    void closeFlushesEverything(@TempDir File data) throws IOException {
+        final int keys = 5_000;
+        try (LSMDao dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD))) {
+            for (int i = 0; i < keys; i++) {
+                dao.upsert(key(i), value(i));
+            }
+        }
+        // Nothing is left to replay
+        for (final File file : data.listFiles()) {
+            assertFalse(file.getName().endsWith("WAL.log") && file.length() > 0, file.getName());
+        }
+        try (LSMDao dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD))) {
+            for (int i = 0; i < keys; i++) {
+                assertEquals(value(i), dao.get(key(i)));
+            }
+        }
+    }
+
+    @Test
+    void failedLastFlushKeepsLog(@TempDir File data) throws IOException {
+        final int keys = 100;
+        final LSMDao dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD));
+        for (int i = 0; i < keys; i++) {
+            dao.upsert(key(i), value(i));
+        }
+        final File blocker = new File(data, generation(data) + "SSTable.tmp");
+        Files.createDirectory(blocker.toPath());
+        final File inside = new File(blocker, "file");
+        Files.createFile(inside.toPath());
+        // The Dao is closed anyway and the log of the memTable is left for the next start
+        assertThrows(IOException.class, dao::close);
+        Files.delete(inside.toPath());
+        Files.delete(blocker.toPath());
+        try (LSMDao reopened = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD))) {
+            for (int i = 0; i < keys; i++) {
+                assertEquals(value(i), reopened.get(key(i)));
+            }
+        }
+    }
+
+    /**
+     * Generation of the memTable receiving writes, which is also the generation of its SSTable.
+     */
+    private static int generation(final File data) {
+        int generation = -1;
+        for (final File file : data.listFiles()) {
+            final String name = file.getName();
+            if (name.endsWith("WAL.log")) {
+                generation = Math.max(generation, Integer.parseInt(name.substring(0, name.indexOf('W'))));
+            }
+        }
+        assertTrue(generation >= 0);
+        return generation;
+    }
+
+    private static int tables(final File data) {
+        int count = 0;
+        for (final File file : data.listFiles()) {
+            if (file.getName().endsWith("SSTable.dat")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+
+    private static ByteBuffer value(final int index) {
+        return ByteBuffer.wrap(String.format("value%d", index * 17).getBytes());
+    }
+}
@@ -0,0 +1,148 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Blocks are loaded once while cached, pinned pages survive eviction.
+ */
+class BlockCacheTest {
+    private static final int PAGE_SIZE = 1024;
+
+    @Test
+    void hitLoadsOnce() throws IOException {
+        final BlockCache cache = new BlockCache(64 * PAGE_SIZE, PAGE_SIZE);
+        final AtomicInteger loads = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            try (BlockCache.Page page = cache.get(1, 0, 100, loader(1, loads))) {
+                assertTrue(page.isPinned());
+                assertEquals(block(1, 100), page.data());
+            }
+        }
+        assertEquals(1, loads.get());
+        assertEquals(2, cache.hitCount());
+        assertEquals(1, cache.missCount());
+
+        // Same offset in another table is another block
+        try (BlockCache.Page page = cache.get(2, 0, 100, loader(2, loads))) {
+            assertEquals(block(2, 100), page.data());
+        }
+        assertEquals(2, loads.get());
+        cache.close();
+    }
+
+    @Test
+    void largeBlockNotCached() throws IOException {
+        final BlockCache cache = new BlockCache(64 * PAGE_SIZE, PAGE_SIZE);
+        final AtomicInteger loads = new AtomicInteger();
+        for (int i = 0; i < 2; i++) {
+            try (BlockCache.Page page = cache.get(1, 0, PAGE_SIZE + 1, loader(1, loads))) {
+                assertFalse(page.isPinned());
+                assertEquals(block(1, PAGE_SIZE + 1), page.data());
+            }
+        }
+        assertEquals(2, loads.get());
+        assertEquals(0, cache.hitCount());
+        cache.close();
+    }
+
+    @Test
+    void evictedWithSmallCapacity() throws IOException {
+        final BlockCache cache = new BlockCache(PAGE_SIZE, PAGE_SIZE);
+        final AtomicInteger loads = new AtomicInteger();
+        for (int round = 0; round < 3; round++) {
+            for (int generation = 1; generation <= 2; generation++) {
+                try (BlockCache.Page page = cache.get(generation, 0, 100, loader(generation, loads))) {
+                    assertEquals(block(generation, 100), page.data());
+                }
+            }
+        }
+        // A single page holds one block at a time
+        assertEquals(6, loads.get());
+        cache.close();
+    }
+
+    @Test
+    void pinnedPageNotEvicted() throws IOException {
+        final BlockCache cache = new BlockCache(PAGE_SIZE, PAGE_SIZE);
+        final AtomicInteger loads = new AtomicInteger();
+        try (BlockCache.Page held = cache.get(1, 0, 100, loader(1, loads))) {
+            try (BlockCache.Page other = cache.get(2, 0, 100, loader(2, loads))) {
+                // Served from the heap
+                assertFalse(other.isPinned());
+                assertEquals(block(2, 100), other.data());
+            }
+            assertEquals(block(1, 100), held.data());
+            try (BlockCache.Page again = cache.get(1, 0, 100, loader(1, loads))) {
+                assertEquals(block(1, 100), again.data());
+            }
+        }
+        assertEquals(2, loads.get());
+        cache.close();
+    }
+
+    @Test
+    void disabledCacheLoadsEveryTime() throws IOException {
+        final BlockCache cache = new BlockCache(0, PAGE_SIZE);
+        final AtomicInteger loads = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            try (BlockCache.Page page = cache.get(1, 0, 100, loader(1, loads))) {
+                assertEquals(block(1, 100), page.data());
+            }
+        }
+        assertEquals(3, loads.get());
+        assertEquals(0, cache.hitCount());
+        cache.close();
+    }
+
+    @Test
+    void tinyCacheServesReads(@TempDir File data) throws IOException {
+        final int keys = 5_000;
+        final LSMConfig config = new LSMConfig(64 * 1024)
+                .tableMode(TableMode.FILE_CHANNEL)
+                .blockCacheSize(16 * 1024);
+        try (LSMDao dao = new LSMDao(data, config)) {
+            for (int i = 0; i < keys; i++) {
+                dao.upsert(key(i), key(keys - i));
+            }
+        }
+        try (LSMDao dao = new LSMDao(data, config)) {
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < keys; i++) {
+                    assertEquals(key(keys - i), dao.get(key(i)));
+                }
+            }
+            final BlockCache cache = dao.getBlockCache();
+            assertTrue(cache.hitCount() > 0);
+            assertTrue(cache.missCount() > 0);
+        }
+    }
+
+    private static BlockCache.Loader loader(final int generation, final AtomicInteger loads) {
+        return buffer -> {
+            loads.incrementAndGet();
+            return buffer.put(block(generation, buffer.remaining())).flip();
+        };
+    }
+
+    private static ByteBuffer block(final int generation, final int size) {
+        final byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (generation * 31 + i);
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+}
@@ -0,0 +1,214 @@
+package ru.mail.polis.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tables of many small blocks are searched through the sparse index in both table modes.
+ */
+class BlockFormatTest {
+    private static final int CELLS = 2_000;
+    private static final int BLOCK_SIZE = 256;
+
+    @Test
+    void everyKeyFound(@TempDir File data) throws IOException {
+        for (final TableMode mode : TableMode.values()) {
+            try (Tables tables = new Tables(data, mode)) {
+                final FileTable table = tables.table;
+                assertTrue(table.sizeInBytes() > 10 * BLOCK_SIZE);
+                assertEquals(CELLS, table.rows());
+                for (int i = 0; i < CELLS; i++) {
+                    final Cell cell = table.get(key(2 * i));
+                    assertNotNull(cell);
+                    assertEquals(key(2 * i), cell.getKey());
+                    if (i % 10 == 0) {
+                        assertTrue(cell.getValue().isRemoved());
+                    } else {
+                        assertEquals(value(i), cell.getValue().getData());
+                    }
+                    assertEquals(i + 1, cell.getValue().getTimeStamp());
+                }
+            }
+        }
+    }
+
+    @Test
+    void absentKeysNotFound(@TempDir File data) throws IOException {
+        for (final TableMode mode : TableMode.values()) {
+            try (Tables tables = new Tables(data, mode)) {
+                for (int i = -1; i < CELLS; i++) {
+                    assertNull(tables.table.get(key(2 * i + 1)));
+                }
+                assertNull(tables.table.get(ByteBuffer.allocate(0)));
+                assertNull(tables.table.get(key(2 * CELLS)));
+            }
+        }
+    }
+
+    @Test
+    void seekFromMiddle(@TempDir File data) throws IOException {
+        for (final TableMode mode : TableMode.values()) {
+            try (Tables tables = new Tables(data, mode)) {
+                for (int from = 0; from < 2 * CELLS; from += 97) {
+                    // Odd keys are absent and start at the next even one
+                    final int first = (from + 1) / 2;
+                    assertKeys(first, CELLS, tables.table.iterator(key(from)));
+                    assertKeys(first, Math.min(CELLS, first + 50),
+                            tables.table.iterator(key(from), key(2 * first + 100)));
+                }
+                assertKeys(0, CELLS, tables.table.iterator(ByteBuffer.allocate(0)));
+                assertFalse(tables.table.iterator(key(2 * CELLS)).hasNext());
+            }
+        }
+    }
+
+    @Test
+    void descendFromMiddle(@TempDir File data) throws IOException {
+        for (final TableMode mode : TableMode.values()) {
+            try (Tables tables = new Tables(data, mode)) {
+                for (int from = 1; from < 2 * CELLS; from += 97) {
+                    final Iterator<Cell> cells = tables.table.descendingIterator(key(from));
+                    for (int i = from / 2; i >= 0; i--) {
+                        assertEquals(key(2 * i), cells.next().getKey());
+                    }
+                    assertFalse(cells.hasNext());
+                }
+            }
+        }
+    }
+
+    @Test
+    void legacyTablesRewritten(@TempDir File data) throws IOException {
+        // The older table has all keys, the newer one overwrites or removes every third one
+        final List<Cell> older = new ArrayList<>();
+        final List<Cell> newer = new ArrayList<>();
+        for (int i = 0; i < CELLS; i++) {
+            older.add(new Cell(key(i), Value.of(i + 1, value(i))));
+            if (i % 3 == 0) {
+                final long timeStamp = CELLS + i;
+                final Value value = i % 2 == 0 ? Value.tombstone(timeStamp) : Value.of(timeStamp, value(CELLS + i));
+                newer.add(new Cell(key(i), value));
+            }
+        }
+        final File first = new File(data, "1SSTable.dat");
+        final File second = new File(data, "2SSTable.dat");
+        writeLegacy(first, older);
+        writeLegacy(second, newer);
+        for (int round = 0; round < 2; round++) {
+            try (LSMDao dao = new LSMDao(data, new LSMConfig(1024 * 1024))) {
+                assertFalse(LegacyTable.isLegacy(first));
+                assertFalse(LegacyTable.isLegacy(second));
+                for (int i = 0; i < CELLS; i++) {
+                    if (i % 6 == 0) {
+                        final ByteBuffer key = key(i);
+                        assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                    } else {
+                        assertEquals(i % 3 == 0 ? value(CELLS + i) : value(i), dao.get(key(i)));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Write cells in the format used before blocks: cells, their offsets, the BloomFilter, its size and rows.
+     */
+    private static void writeLegacy(final File file, final List<Cell> cells) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final List<Integer> offsets = new ArrayList<>();
+        for (final Cell cell : cells) {
+            offsets.add(out.size());
+            final ByteBuffer key = cell.getKey();
+            out.writeInt(key.remaining());
+            out.write(key.array(), key.position(), key.remaining());
+            final Value value = cell.getValue();
+            if (value.isRemoved()) {
+                out.writeLong(-value.getTimeStamp());
+            } else {
+                out.writeLong(value.getTimeStamp());
+                final ByteBuffer data = value.getData();
+                final byte[] array = new byte[data.remaining()];
+                data.get(array);
+                out.writeInt(array.length);
+                out.write(array);
+            }
+        }
+        for (final int offset : offsets) {
+            out.writeLong(offset);
+        }
+        final long[] bloomFilter = {-1L, -1L};
+        for (final long bits : bloomFilter) {
+            out.writeLong(bits);
+        }
+        out.writeInt(bloomFilter.length);
+        out.writeLong(cells.size());
+        Files.write(file.toPath(), bytes.toByteArray());
+    }
+
+    private static void assertKeys(final int from, final int to, final Iterator<Cell> cells) {
+        for (int i = from; i < to; i++) {
+            assertTrue(cells.hasNext());
+            assertEquals(key(2 * i), cells.next().getKey());
+        }
+        assertFalse(cells.hasNext());
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+
+    private static ByteBuffer value(final int index) {
+        // Values of different sizes, so cells don't align with blocks
+        final byte[] bytes = new byte[index % 37];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (index + i);
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Table of the even keys, every tenth one removed.
+     */
+    private static final class Tables implements AutoCloseable {
+        private final FileHandleCache handles = new FileHandleCache(4);
+        private final BlockCache blockCache = new BlockCache(64 * 1024, 4 * 1024);
+        private final FileTable table;
+
+        Tables(final File data, final TableMode mode) throws IOException {
+            final File file = new File(data, mode.ordinal() + 1 + "SSTable.dat");
+            final List<Cell> cells = new ArrayList<>();
+            for (int i = 0; i < CELLS; i++) {
+                final Value value = i % 10 == 0 ? Value.tombstone(i + 1) : Value.of(i + 1, value(i));
+                cells.add(new Cell(key(2 * i), value));
+            }
+            new TableWriter(BLOCK_SIZE, 10, null, new Compression[]{Compression.NONE})
+                    .write(cells.iterator(), file, 0, null);
+            this.table = mode.open(file, handles, blockCache);
+        }
+
+        @Override
+        public void close() throws IOException {
+            blockCache.close();
+            handles.close();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Keys sharing long prefixes are stored once per restart point and decoded back as they were.
+ */
+class BlockTest {
+    private static final String PREFIX = "com.example.service/users/profiles/";
+    private static final int CELLS = 1_000;
+
+    @Test
+    void varLongRoundTrip() {
+        final long[] values = {0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+        final ByteBuffer buffer = ByteBuffer.allocate(values.length * 10);
+        for (final long value : values) {
+            Block.putVarLong(buffer, value);
+        }
+        buffer.flip();
+        for (final long value : values) {
+            assertEquals(value, Block.getVarLong(buffer));
+        }
+        assertFalse(buffer.hasRemaining());
+
+        for (final long value : values) {
+            assertEquals(value, Block.unZigZag(Block.zigZag(value)));
+        }
+        // Small differences of either sign take a single byte
+        assertTrue(Block.zigZag(-1) < 128 && Block.zigZag(63) < 128 && Block.zigZag(-64) < 128);
+    }
+
+    @Test
+    void cellsDecodedAsWritten() {
+        final List<Cell> cells = cells();
+        final Block block = block(cells);
+        final Block.Cursor cursor = block.cursor();
+        for (final Cell expected : cells) {
+            assertTrue(cursor.hasNext());
+            assertCell(expected, cursor.next());
+        }
+        assertFalse(cursor.hasNext());
+        assertThrows(NoSuchElementException.class, cursor::next);
+    }
+
+    @Test
+    void seekEveryKey() {
+        final List<Cell> cells = cells();
+        final Block block = block(cells);
+        for (int i = 0; i < CELLS; i++) {
+            final Block.Cursor exact = block.seek(key(2 * i));
+            assertCell(cells.get(i), exact.next());
+
+            // Absent keys start at the next one
+            final Block.Cursor between = block.seek(key(2 * i - 1));
+            assertCell(cells.get(i), between.next());
+            if (i + 1 < CELLS) {
+                assertCell(cells.get(i + 1), between.next());
+            }
+        }
+        assertCell(cells.get(0), block.seek(ByteBuffer.allocate(0)).next());
+        assertCell(cells.get(0), block.seek(bytes("a")).next());
+        assertFalse(block.seek(key(2 * CELLS)).hasNext());
+        assertFalse(block.seek(bytes("z")).hasNext());
+    }
+
+    @Test
+    void sharedPrefixesStoredOnce() {
+        final List<Cell> cells = cells();
+        final BlockBuilder builder = new BlockBuilder(1024 * 1024);
+        long keyBytes = 0;
+        for (final Cell cell : cells) {
+            builder.add(cell);
+            keyBytes += cell.getKey().remaining();
+        }
+        // Full keys are stored at restart points only
+        assertTrue(builder.finishedSize() < keyBytes / 2, builder.finishedSize() + " >= " + keyBytes / 2);
+
+        final ByteBuffer data = ByteBuffer.allocate(builder.finishedSize());
+        builder.finish(data);
+        assertFalse(data.hasRemaining());
+        final int restarts = data.getInt(data.limit() - Integer.BYTES);
+        assertEquals((CELLS + Block.RESTART_INTERVAL - 1) / Block.RESTART_INTERVAL, restarts);
+    }
+
+    @Test
+    void builderReused() {
+        final BlockBuilder builder = new BlockBuilder(256);
+        final List<Cell> cells = cells();
+        int from = 0;
+        while (from < CELLS) {
+            int to = from;
+            while (to < CELLS && !builder.isFull()) {
+                builder.add(cells.get(to++));
+            }
+            assertEquals(cells.get(from).getKey(), builder.firstKey());
+            final ByteBuffer data = ByteBuffer.allocate(builder.finishedSize());
+            builder.finish(data);
+            assertTrue(builder.isEmpty());
+
+            final Block.Cursor cursor = new Block(data.flip()).cursor();
+            for (int i = from; i < to; i++) {
+                assertCell(cells.get(i), cursor.next());
+            }
+            assertFalse(cursor.hasNext());
+            from = to;
+        }
+    }
+
+    @Test
+    void shortestIndexKey() {
+        assertEquals(0, BlockBuilder.indexKey(null, bytes("abc")).remaining());
+        assertEquals(bytes("abd"), BlockBuilder.indexKey(bytes("abc"), bytes("abd")));
+        assertEquals(bytes("abd"), BlockBuilder.indexKey(bytes("abc1"), bytes("abd2")));
+        assertEquals(bytes("abc0"), BlockBuilder.indexKey(bytes("abc"), bytes("abc0")));
+        assertEquals(bytes("b"), BlockBuilder.indexKey(bytes(PREFIX + "a"), bytes("b" + PREFIX)));
+    }
+
+    @Test
+    void longPrefixesInDao(@TempDir File data) throws IOException {
+        final String prefix = PREFIX.repeat(10);
+        final LSMConfig config = new LSMConfig(64 * 1024).blockSize(512);
+        try (LSMDao dao = new LSMDao(data, config)) {
+            for (int i = 0; i < 5_000; i++) {
+                dao.upsert(bytes(prefix + i), bytes("value" + i));
+            }
+        }
+        try (LSMDao dao = new LSMDao(data, config)) {
+            for (int i = 0; i < 5_000; i++) {
+                assertEquals(bytes("value" + i), dao.get(bytes(prefix + i)));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(bytes(prefix)));
+            assertEquals(bytes(prefix + "0"), dao.iterator(bytes(prefix)).next().getKey());
+        }
+    }
+
+    private static Block block(final List<Cell> cells) {
+        final BlockBuilder builder = new BlockBuilder(1024 * 1024);
+        for (final Cell cell : cells) {
+            builder.add(cell);
+        }
+        final ByteBuffer data = ByteBuffer.allocate(builder.finishedSize());
+        builder.finish(data);
+        return new Block(data.flip());
+    }
+
+    /**
+     * Even keys with long shared prefixes, timestamps going back and forth, some tombstones and empty values.
+     */
+    private static List<Cell> cells() {
+        final List<Cell> cells = new ArrayList<>(CELLS);
+        for (int i = 0; i < CELLS; i++) {
+            final long timeStamp = 1_000_000L + (i % 2 == 0 ? i : -i);
+            final Value value;
+            if (i % 7 == 0) {
+                value = Value.tombstone(timeStamp);
+            } else {
+                value = Value.of(timeStamp, bytes(i % 5 == 0 ? "" : "value" + i));
+            }
+            cells.add(new Cell(key(2 * i), value));
+        }
+        return cells;
+    }
+
+    private static void assertCell(final Cell expected, final Cell actual) {
+        assertEquals(expected.getKey(), actual.getKey());
+        assertEquals(expected.getValue().getTimeStamp(), actual.getValue().getTimeStamp());
+        assertEquals(expected.getValue().isRemoved(), actual.getValue().isRemoved());
+        if (!expected.getValue().isRemoved()) {
+            assertEquals(expected.getValue().getData(), actual.getValue().getData());
+        }
+    }
+
+    private static ByteBuffer key(final int index) {
+        return bytes(String.format("%s%08d", PREFIX, index));
+    }
+
+    private static ByteBuffer bytes(final String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,119 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Filters never miss an added key, let a few percent of other keys through and skip block reads for them.
+ */
+class BloomFilterTest {
+    private static final int KEYS = 10_000;
+
+    @Test
+    void noFalseNegatives() {
+        final BloomFilter filter = filter(KEYS, 10);
+        for (int i = 0; i < KEYS; i++) {
+            assertTrue(filter.mightContain(key(i)));
+        }
+    }
+
+    @Test
+    void fewFalsePositives() {
+        final int wide = falsePositives(filter(KEYS, 10));
+        final int narrow = falsePositives(filter(KEYS, 4));
+        // About 1% and 15% respectively
+        assertTrue(wide < KEYS / 50, Integer.toString(wide));
+        assertTrue(narrow > wide, narrow + " <= " + wide);
+        assertTrue(narrow < KEYS / 4, Integer.toString(narrow));
+    }
+
+    @Test
+    void serializedRoundTrip() {
+        final BloomFilter filter = filter(KEYS, 10);
+        final ByteBuffer buffer = ByteBuffer.allocate(filter.serializedSize() + 3);
+        buffer.position(3);
+        filter.write(buffer);
+        assertEquals(buffer.capacity(), buffer.position());
+
+        final BloomFilter read = BloomFilter.read(buffer.flip().position(3));
+        for (int i = 0; i < 2 * KEYS; i++) {
+            assertEquals(filter.mightContain(key(i)), read.mightContain(key(i)));
+        }
+    }
+
+    @Test
+    void hashOfRemainingBytes() {
+        final ByteBuffer key = key(42);
+        final ByteBuffer padded = ByteBuffer.allocate(key.remaining() + 10);
+        padded.position(5);
+        padded.put(key.duplicate());
+        padded.position(5).limit(5 + key.remaining());
+        assertEquals(BloomFilter.hash(key), BloomFilter.hash(padded));
+        assertEquals(5, padded.position());
+        assertTrue(BloomFilter.hash(key) != BloomFilter.hash(key(43)));
+    }
+
+    @Test
+    void absentKeysSkipBlocks(@TempDir File data) throws IOException {
+        assertTrue(blockReadsOfAbsentKeys(data, 10) < 50);
+        assertTrue(blockReadsOfAbsentKeys(data, 0) >= 1_000);
+    }
+
+    @Test
+    void negativeBitsPerKey() {
+        assertThrows(IllegalArgumentException.class, () -> new LSMConfig(1024).bloomFilterBitsPerKey(-1));
+    }
+
+    private static long blockReadsOfAbsentKeys(final File data, final int bitsPerKey) throws IOException {
+        final File file = new File(data, bitsPerKey + 1 + "SSTable.dat");
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            cells.add(new Cell(key(2 * i), Value.of(1, key(i))));
+        }
+        new TableWriter(4 * 1024, bitsPerKey, null, new Compression[]{Compression.NONE})
+                .write(cells.iterator(), file, 0, null);
+        final BlockCache blockCache = new BlockCache(1024 * 1024, 8 * 1024);
+        try (FileHandleCache handles = new FileHandleCache(4)) {
+            final FileTable table = TableMode.FILE_CHANNEL.open(file, handles, blockCache);
+            for (int i = 0; i < 1_000; i++) {
+                assertNull(table.get(key(2 * i + 1)));
+            }
+        } finally {
+            blockCache.close();
+        }
+        return blockCache.hitCount() + blockCache.missCount();
+    }
+
+    private static BloomFilter filter(final int keys, final int bitsPerKey) {
+        final BloomFilter filter = BloomFilter.create(keys, bitsPerKey);
+        for (int i = 0; i < keys; i++) {
+            filter.add(BloomFilter.hash(key(i)));
+        }
+        return filter;
+    }
+
+    private static int falsePositives(final BloomFilter filter) {
+        int count = 0;
+        for (int i = KEYS; i < 2 * KEYS; i++) {
+            if (filter.mightContain(key(i))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+}
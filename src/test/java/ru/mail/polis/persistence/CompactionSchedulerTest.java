@@ -0,0 +1,131 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tables are merged in the background as they are flushed, writers never wait for a compaction.
+ */
+class CompactionSchedulerTest {
+    private static final long FLUSH_THRESHOLD = 16 * 1024;
+    private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    @Test
+    void tableCountBounded(@TempDir File data) throws Exception {
+        final TreeMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (LSMDao dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD))) {
+            for (int i = 0; i < 30_000; i++) {
+                final ByteBuffer key = key(i % 7_000);
+                dao.upsert(key, value(i));
+                expected.put(key, value(i));
+            }
+            // The default strategy merges the older half once there are more than five tables
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (tables(data) > 5 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(tables(data) <= 5, Integer.toString(tables(data)));
+            assertContents(dao, expected);
+        }
+        try (LSMDao dao = new LSMDao(data, new LSMConfig(FLUSH_THRESHOLD))) {
+            assertContents(dao, expected);
+        }
+    }
+
+    @Test
+    void writersDontWaitForCompactions(@TempDir File data) throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final AtomicInteger picks = new AtomicInteger();
+        final CompactionStrategy blocking = new CompactionStrategy() {
+            @Override
+            public Compaction pick(@NotNull final List<FileTable> tables, @NotNull final Set<FileTable> compacting)
+                    throws IOException {
+                picks.incrementAndGet();
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+                return tables.size() > 1 ? new Compaction(tables, 0) : null;
+            }
+
+            @NotNull
+            @Override
+            public Compaction all(@NotNull final List<FileTable> tables) {
+                return new Compaction(tables, 0);
+            }
+        };
+        final LSMConfig config = new LSMConfig(FLUSH_THRESHOLD)
+                .compactionStrategy(blocking)
+                .compactionThreads(1);
+        try (LSMDao dao = new LSMDao(data, config)) {
+            try {
+                for (int i = 0; i < 10_000; i++) {
+                    dao.upsert(key(i), value(i));
+                }
+                assertTrue(picks.get() > 0);
+                // Flushes go on while the compactor is stuck
+                assertTrue(tables(data) > 3);
+            } finally {
+                blocked.countDown();
+            }
+
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (tables(data) > 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, tables(data));
+            for (int i = 0; i < 10_000; i++) {
+                assertEquals(value(i), dao.get(key(i)));
+            }
+        }
+    }
+
+    @Test
+    void invalidThreads() {
+        assertThrows(IllegalArgumentException.class, () -> new LSMConfig(FLUSH_THRESHOLD).compactionThreads(0));
+    }
+
+    private static void assertContents(final LSMDao dao, final TreeMap<ByteBuffer, ByteBuffer> expected)
+            throws IOException {
+        for (final ByteBuffer key : expected.keySet()) {
+            assertEquals(expected.get(key), dao.get(key));
+        }
+        assertFalse(dao.iterator(key(7_000)).hasNext());
+    }
+
+    private static int tables(final File data) {
+        int count = 0;
+        for (final File file : data.listFiles()) {
+            if (file.getName().endsWith("SSTable.dat")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+
+    private static ByteBuffer value(final int index) {
+        return ByteBuffer.wrap(String.format("value%d", index * 13).getBytes());
+    }
+}
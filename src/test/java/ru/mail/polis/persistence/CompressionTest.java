@@ -0,0 +1,214 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Blocks come back as they were written with every codec, corrupted blocks are reported as I/O errors.
+ */
+class CompressionTest {
+    private static final int[] SIZES = {0, 1, 4, 15, 16, 300, 4 * 1024, 100 * 1024};
+
+    @Test
+    void compressibleRoundTrip() throws IOException {
+        for (final Compression codec : Compression.values()) {
+            for (final int size : SIZES) {
+                final byte[] raw = text(size);
+                final ByteBuffer stored = codec.encode(raw(raw));
+                if (size >= 300) {
+                    assertSame(codec, Compression.of(stored));
+                }
+                if (codec != Compression.NONE && size >= 300) {
+                    assertTrue(stored.remaining() < size / 2, codec + " " + stored.remaining());
+                }
+                assertEquals(ByteBuffer.wrap(raw), Compression.decode(stored));
+            }
+        }
+    }
+
+    @Test
+    void incompressibleStoredAsIs() throws IOException {
+        final Random random = new Random(14);
+        for (final Compression codec : Compression.values()) {
+            for (final int size : SIZES) {
+                final byte[] raw = new byte[size];
+                random.nextBytes(raw);
+                final ByteBuffer stored = codec.encode(raw(raw));
+                assertSame(Compression.NONE, Compression.of(stored));
+                assertEquals(size + 1, stored.remaining());
+                assertEquals(ByteBuffer.wrap(raw), Compression.decode(stored));
+            }
+        }
+    }
+
+    @Test
+    void lz4LongRunsAndLiterals() throws IOException {
+        final Random random = new Random(15);
+        final byte[] raw = new byte[200 * 1024];
+        int at = 0;
+        while (at < raw.length) {
+            // Literal runs and matches of lengths around the extra length bytes of LZ4
+            final int literals = Math.min(raw.length - at, random.nextInt(600));
+            for (int i = 0; i < literals; i++) {
+                raw[at++] = (byte) random.nextInt();
+            }
+            final int match = Math.min(raw.length - at, random.nextInt(600));
+            final int offset = 1 + random.nextInt(Math.max(1, Math.min(at, 70_000)));
+            for (int i = 0; i < match; i++, at++) {
+                raw[at] = at >= offset ? raw[at - offset] : 0;
+            }
+        }
+        final byte[] compressed = new byte[Lz4.maxCompressedSize(raw.length)];
+        final int size = Lz4.compress(raw, raw.length, compressed);
+        assertTrue(size > 0 && size < raw.length);
+        final byte[] restored = new byte[raw.length];
+        Lz4.decompress(ByteBuffer.wrap(compressed, 0, size), restored);
+        assertArrayEquals(raw, restored);
+
+        final byte[] zeros = new byte[100_000];
+        final int zerosSize = Lz4.compress(zeros, zeros.length, compressed);
+        assertTrue(zerosSize < 1_000, Integer.toString(zerosSize));
+        final byte[] restoredZeros = new byte[zeros.length];
+        Lz4.decompress(ByteBuffer.wrap(compressed, 0, zerosSize), restoredZeros);
+        assertArrayEquals(zeros, restoredZeros);
+    }
+
+    @Test
+    void corruptedBlocksRejected() throws IOException {
+        final Random random = new Random(16);
+        for (final Compression codec : new Compression[]{Compression.LZ4, Compression.DEFLATE}) {
+            final byte[] raw = text(4 * 1024);
+            final ByteBuffer stored = codec.encode(raw(raw));
+            final byte[] bytes = new byte[stored.remaining()];
+            stored.get(bytes);
+
+            // Cut off the tail of the payload
+            final ByteBuffer truncated = ByteBuffer.allocate(bytes.length - 10)
+                    .put(bytes, 0, bytes.length - 15)
+                    .put(bytes, bytes.length - 5, 5)
+                    .flip();
+            assertThrows(IOException.class, () -> Compression.decode(truncated));
+
+            // Claim a larger raw size
+            final ByteBuffer larger = ByteBuffer.wrap(bytes.clone());
+            larger.putInt(bytes.length - 5, raw.length + 100);
+            assertThrows(IOException.class, () -> Compression.decode(larger));
+
+            // Garbage is either decoded into something or rejected, but never breaks the reader otherwise
+            for (int i = 0; i < 1_000; i++) {
+                final byte[] corrupted = bytes.clone();
+                corrupted[random.nextInt(bytes.length - 5)] = (byte) random.nextInt();
+                try {
+                    Compression.decode(ByteBuffer.wrap(corrupted));
+                } catch (IOException e) {
+                    // Expected for most positions
+                }
+            }
+        }
+    }
+
+    @Test
+    void unknownCodecRejected() {
+        final ByteBuffer stored = ByteBuffer.wrap(new byte[]{1, 2, 3, 42});
+        assertThrows(IOException.class, () -> Compression.decode(stored));
+        final ByteBuffer negative = ByteBuffer.wrap(new byte[]{1, 2, 3, -1});
+        assertThrows(IOException.class, () -> Compression.decode(negative));
+    }
+
+    @Test
+    void perLevelCompression(@TempDir File data) throws IOException {
+        final File plain = new File(data, "plain");
+        final File compressed = new File(data, "compressed");
+        assertTrue(plain.mkdir() && compressed.mkdir());
+        fill(plain, config(Compression.NONE));
+        fill(compressed, config(Compression.LZ4, Compression.DEFLATE));
+        final long plainSize = size(plain);
+        assertTrue(size(compressed) < plainSize / 2, size(compressed) + " >= " + plainSize / 2);
+
+        // Tables keep their codecs when the setting changes, rewritten tables take the new one
+        try (LSMDao dao = new LSMDao(plain, config(Compression.DEFLATE))) {
+            assertFilled(dao);
+            dao.compact();
+            assertFilled(dao);
+        }
+        assertTrue(size(plain) < plainSize / 2, size(plain) + " >= " + plainSize / 2);
+        try (LSMDao dao = new LSMDao(compressed, config(Compression.NONE))) {
+            assertFilled(dao);
+        }
+    }
+
+    @Test
+    void emptyCompressionRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new LSMConfig(1024).compression());
+        assertThrows(IllegalArgumentException.class, () -> new LSMConfig(1024).compression(Compression.LZ4, null));
+    }
+
+    private static LSMConfig config(final Compression... perLevel) {
+        return new LSMConfig(64 * 1024)
+                .tableMode(TableMode.FILE_CHANNEL)
+                .compression(perLevel)
+                .compactionStrategy(new LeveledCompactionStrategy(4, 128 * 1024, 4, 32 * 1024));
+    }
+
+    private static void fill(final File data, final LSMConfig config) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config)) {
+            for (int i = 0; i < 10_000; i++) {
+                dao.upsert(key(i), value(i));
+            }
+        }
+        try (LSMDao dao = new LSMDao(data, config)) {
+            assertFilled(dao);
+        }
+    }
+
+    private static void assertFilled(final LSMDao dao) throws IOException {
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(value(i), dao.get(key(i)));
+        }
+    }
+
+    private static long size(final File data) {
+        long size = 0;
+        for (final File file : data.listFiles()) {
+            if (file.getName().endsWith("SSTable.dat")) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private static ByteBuffer raw(final byte[] bytes) {
+        // Room for the trailer of a block stored as is
+        return ByteBuffer.allocate(bytes.length + 1).put(bytes).flip();
+    }
+
+    private static byte[] text(final int size) {
+        final byte[] phrase = "the quick brown fox jumps over the lazy dog, ".getBytes(StandardCharsets.UTF_8);
+        final byte[] result = new byte[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = phrase[(i + i / 1000) % phrase.length];
+        }
+        return result;
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer value(final int index) {
+        return ByteBuffer.wrap(("value of the key number " + index % 100 + ", which repeats itself a lot")
+                .getBytes(StandardCharsets.UTF_8));
+    }
+}
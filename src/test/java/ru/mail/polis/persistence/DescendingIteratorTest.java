@@ -0,0 +1,148 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Descending iteration returns the records of the ascending one in reverse, newest versions winning.
+ */
+class DescendingIteratorTest {
+    private static final int KEYS = 5_000;
+
+    @Test
+    void matchesModel(@TempDir File data) throws IOException {
+        final Random random = new Random(23);
+        final TreeMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < 3 * KEYS; i++) {
+                final int index = random.nextInt(KEYS);
+                if (random.nextInt(5) == 0) {
+                    dao.remove(key(index));
+                    expected.remove(key(index));
+                } else {
+                    dao.upsert(key(index), value(i));
+                    expected.put(key(index), value(i));
+                }
+            }
+            assertDescending(dao, expected, random);
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertDescending(dao, expected, random);
+            dao.compact();
+            assertDescending(dao, expected, random);
+        }
+    }
+
+    @Test
+    void bounds(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertFalse(dao.descendingIterator(null).hasNext());
+            for (int i = 1; i < 10; i++) {
+                dao.upsert(key(i), value(i));
+            }
+            // From is inclusive
+            final Iterator<Record> at = dao.descendingIterator(key(5));
+            assertEquals(key(5), at.next().getKey());
+            assertEquals(key(4), at.next().getKey());
+            // Below the first key and above the last one
+            assertFalse(dao.descendingIterator(key(0)).hasNext());
+            assertFalse(dao.descendingIterator(ByteBuffer.allocate(0)).hasNext());
+            assertEquals(key(9), dao.descendingIterator(key(100)).next().getKey());
+            assertEquals(key(9), dao.descendingIterator(null).next().getKey());
+        }
+    }
+
+    @Test
+    void lastRecordsReadBackwards(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            final BlockCache blockCache = dao.getBlockCache();
+            final long before = blockCache.hitCount() + blockCache.missCount();
+            final Iterator<Record> records = dao.descendingIterator(key(KEYS - 100));
+            for (int i = KEYS - 100; i > KEYS - 110; i--) {
+                assertEquals(value(i), records.next().getValue());
+            }
+            // The latest records take a few blocks of each table instead of the whole tables
+            final long reads = blockCache.hitCount() + blockCache.missCount() - before;
+            assertTrue(reads < 5 * tables(data), reads + " >= " + 5 * tables(data));
+        }
+    }
+
+    private static void assertDescending(
+            final LSMDao dao,
+            final TreeMap<ByteBuffer, ByteBuffer> expected,
+            final Random random) throws IOException {
+        assertRecords(expected.descendingMap(), dao.descendingIterator(null));
+        for (int round = 0; round < 50; round++) {
+            // Present, removed and absent keys
+            final ByteBuffer from = key(random.nextInt(KEYS + 10));
+            final NavigableMap<ByteBuffer, ByteBuffer> head = expected.headMap(from, true).descendingMap();
+            final Iterator<Record> records = dao.descendingIterator(from);
+            int count = 0;
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : head.entrySet()) {
+                if (count++ == 100) {
+                    break;
+                }
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            if (count <= 100) {
+                assertFalse(records.hasNext());
+            }
+        }
+    }
+
+    private static void assertRecords(final Map<ByteBuffer, ByteBuffer> expected, final Iterator<Record> records) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static LSMConfig config() {
+        return new LSMConfig(16 * 1024)
+                .blockSize(1024)
+                .compactionStrategy(new SizeTieredCompactionStrategy(1_000, 1_000, 0.5, 1.5, 0));
+    }
+
+    private static int tables(final File data) {
+        int count = 0;
+        for (final File file : data.listFiles()) {
+            if (file.getName().endsWith("SSTable.dat")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+
+    private static ByteBuffer value(final int index) {
+        return ByteBuffer.wrap(("value" + index).getBytes());
+    }
+}
@@ -0,0 +1,117 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Open channels are shared by readers of a table and closed only when no reader holds them.
+ */
+class FileHandleCacheTest {
+    @Test
+    void readersShareChannel(@TempDir File data) throws IOException {
+        final File file = file(data, 1);
+        try (FileHandleCache cache = new FileHandleCache(4)) {
+            final FileChannel channel;
+            try (FileHandleCache.Handle first = cache.acquire(1, file);
+                 FileHandleCache.Handle second = cache.acquire(1, file)) {
+                channel = first.channel();
+                assertSame(channel, second.channel());
+            }
+            // Released handles stay cached
+            assertTrue(channel.isOpen());
+            try (FileHandleCache.Handle again = cache.acquire(1, file)) {
+                assertSame(channel, again.channel());
+            }
+        }
+    }
+
+    @Test
+    void evictedChannelClosedByLastReader(@TempDir File data) throws IOException {
+        try (FileHandleCache cache = new FileHandleCache(1)) {
+            final FileHandleCache.Handle held = cache.acquire(1, file(data, 1));
+            try (FileHandleCache.Handle other = cache.acquire(2, file(data, 2))) {
+                assertTrue(other.channel().isOpen());
+            }
+            // The first table is evicted, but its reader is not done yet
+            assertTrue(held.channel().isOpen());
+            assertEquals(1, held.channel().read(ByteBuffer.allocate(1), 0));
+            held.close();
+            assertFalse(held.channel().isOpen());
+        }
+    }
+
+    @Test
+    void invalidatedChannelReopened(@TempDir File data) throws IOException {
+        final File file = file(data, 1);
+        try (FileHandleCache cache = new FileHandleCache(4)) {
+            final FileHandleCache.Handle held = cache.acquire(1, file);
+            cache.invalidate(1);
+            assertTrue(held.channel().isOpen());
+            held.close();
+            assertFalse(held.channel().isOpen());
+            try (FileHandleCache.Handle reopened = cache.acquire(1, file)) {
+                assertNotSame(held.channel(), reopened.channel());
+                assertTrue(reopened.channel().isOpen());
+            }
+        }
+    }
+
+    @Test
+    void concurrentReadsWithFewHandles(@TempDir File data) throws Exception {
+        final int keys = 3_000;
+        final LSMConfig config = new LSMConfig(32 * 1024)
+                .tableMode(TableMode.FILE_CHANNEL)
+                .openFilesLimit(2)
+                .blockCacheSize(0);
+        try (LSMDao dao = new LSMDao(data, config)) {
+            for (int i = 0; i < keys; i++) {
+                dao.upsert(key(i), key(-i));
+            }
+        }
+        final ExecutorService readers = Executors.newFixedThreadPool(4);
+        try (LSMDao dao = new LSMDao(data, config)) {
+            final List<Future<?>> done = new ArrayList<>();
+            for (int reader = 0; reader < 4; reader++) {
+                final int first = reader;
+                done.add(readers.submit(() -> {
+                    for (int i = first; i < keys; i += 4) {
+                        assertEquals(key(-i), dao.get(key(i)));
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : done) {
+                future.get();
+            }
+        } finally {
+            readers.shutdown();
+        }
+    }
+
+    private static File file(final File data, final int generation) throws IOException {
+        final File file = new File(data, generation + "SSTable.dat");
+        Files.write(file.toPath(), new byte[]{(byte) generation});
+        return file;
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%07d", index).getBytes());
+    }
+}
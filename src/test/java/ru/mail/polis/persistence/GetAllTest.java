@@ -0,0 +1,140 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Multi-get returns the same values as single lookups for any mix of present, removed, absent and repeated keys.
+ */
+class GetAllTest {
+    private static final int KEYS = 5_000;
+
+    @Test
+    void matchesModel(@TempDir File data) throws IOException {
+        for (final long rowCacheSize : new long[]{0, 1024 * 1024}) {
+            final File dir = new File(data, Long.toString(rowCacheSize));
+            assertTrue(dir.mkdir());
+            final LSMConfig config = new LSMConfig(16 * 1024).rowCacheSize(rowCacheSize);
+            final Random random = new Random(21);
+            final TreeMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+            try (LSMDao dao = new LSMDao(dir, config)) {
+                // Versions of keys spread over tables and the memTable
+                for (int i = 0; i < 3 * KEYS; i++) {
+                    final int index = random.nextInt(KEYS);
+                    if (random.nextInt(5) == 0) {
+                        dao.remove(key(index));
+                        expected.remove(key(index));
+                    } else {
+                        dao.upsert(key(index), value(i));
+                        expected.put(key(index), value(i));
+                    }
+                }
+                assertBatches(dao, expected, random);
+            }
+            try (LSMDao dao = new LSMDao(dir, config)) {
+                assertBatches(dao, expected, random);
+                dao.compact();
+                assertBatches(dao, expected, random);
+            }
+        }
+    }
+
+    @Test
+    void emptyAndRepeatedKeys(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, new LSMConfig(1024 * 1024))) {
+            assertTrue(dao.getAll(Collections.emptyList()).isEmpty());
+            assertTrue(dao.getAll(Collections.singletonList(key(1))).isEmpty());
+            dao.upsert(key(1), value(1));
+            final List<ByteBuffer> keys = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                keys.add(key(1));
+                keys.add(key(2));
+            }
+            final SortedMap<ByteBuffer, ByteBuffer> found = dao.getAll(keys);
+            assertEquals(1, found.size());
+            assertEquals(value(1), found.get(key(1)));
+        }
+    }
+
+    @Test
+    void singlePassOverTable(@TempDir File data) throws IOException {
+        final File file = new File(data, "1SSTable.dat");
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            // Every third key is a tombstone
+            final Value value = i % 3 == 0 ? Value.tombstone(i) : Value.of(i, value(i));
+            cells.add(new Cell(key(2 * i), value));
+        }
+        new TableWriter(1024, 10, null, new Compression[]{Compression.NONE}).write(cells.iterator(), file, 0, null);
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = -1; i <= 2 * KEYS; i++) {
+            keys.add(key(i));
+        }
+        final BlockCache blockCache = new BlockCache(1024 * 1024, 4 * 1024);
+        try (FileHandleCache handles = new FileHandleCache(4)) {
+            for (final TableMode mode : TableMode.values()) {
+                final FileTable table = mode.open(file, handles, blockCache);
+                final Cell[] found = table.getAll(keys);
+                assertEquals(keys.size(), found.length);
+                for (int i = 0; i < found.length; i++) {
+                    final Cell single = table.get(keys.get(i));
+                    if (single == null) {
+                        assertNull(found[i]);
+                    } else {
+                        assertEquals(single.getKey(), found[i].getKey());
+                        assertEquals(single.getValue().getTimeStamp(), found[i].getValue().getTimeStamp());
+                        assertEquals(single.getValue().isRemoved(), found[i].getValue().isRemoved());
+                    }
+                }
+            }
+        } finally {
+            blockCache.close();
+        }
+    }
+
+    private static void assertBatches(
+            final LSMDao dao,
+            final TreeMap<ByteBuffer, ByteBuffer> expected,
+            final Random random) throws IOException {
+        for (int round = 0; round < 50; round++) {
+            final List<ByteBuffer> keys = new ArrayList<>();
+            final TreeMap<ByteBuffer, ByteBuffer> model = new TreeMap<>();
+            final int count = random.nextInt(500);
+            for (int i = 0; i < count; i++) {
+                // Absent keys past the written ones and repeated keys in any order
+                final ByteBuffer key = key(random.nextInt(KEYS + KEYS / 10));
+                keys.add(key);
+                if (random.nextInt(10) == 0) {
+                    keys.add(key.duplicate());
+                }
+                final ByteBuffer value = expected.get(key);
+                if (value != null) {
+                    model.put(key, value);
+                }
+            }
+            assertEquals(model, dao.getAll(keys));
+        }
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+
+    private static ByteBuffer value(final int index) {
+        return ByteBuffer.wrap(("value" + index).getBytes());
+    }
+}
@@ -0,0 +1,208 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Levels below level 0 hold disjoint tables and the tree returns the same data as a plain map.
+ */
+class LeveledCompactionTest {
+    private static final long FLUSH_THRESHOLD = 16 * 1024;
+
+    @Test
+    void level0MergedIntoLevel1(@TempDir File data) throws IOException {
+        final LeveledCompactionStrategy strategy = new LeveledCompactionStrategy(3, 1024 * 1024, 10, 1024);
+        try (Tables tables = new Tables(data)) {
+            final FileTable first = tables.add(0, 0, 100);
+            final FileTable second = tables.add(0, 50, 150);
+            final FileTable below = tables.add(1, 120, 130);
+            final FileTable aside = tables.add(1, 500, 600);
+            assertNull(strategy.pick(tables.all, Collections.emptySet()));
+
+            final FileTable third = tables.add(0, 110, 125);
+            final Compaction compaction = strategy.pick(tables.all, Collections.emptySet());
+            assertNotNull(compaction);
+            assertEquals(1, compaction.getLevel());
+            assertEquals(new HashSet<>(Arrays.asList(first, second, third, below)),
+                    new HashSet<>(compaction.getTables()));
+
+            // Nothing is picked while an input is being compacted
+            assertNull(strategy.pick(tables.all, Collections.singleton(below)));
+            assertNull(strategy.pick(tables.all, Collections.singleton(second)));
+            assertFalse(compaction.getTables().contains(aside));
+        }
+    }
+
+    @Test
+    void oldestTablePushedDown(@TempDir File data) throws IOException {
+        final LeveledCompactionStrategy strategy = new LeveledCompactionStrategy(4, 1, 10, 1024);
+        try (Tables tables = new Tables(data)) {
+            final FileTable oldest = tables.add(1, 300, 400);
+            final FileTable newer = tables.add(1, 0, 100);
+            final FileTable overlapped = tables.add(2, 350, 360);
+            final FileTable untouched = tables.add(2, 0, 10);
+            final FileTable below = tables.add(2, 50, 150);
+
+            final Compaction compaction = strategy.pick(tables.all, Collections.emptySet());
+            assertNotNull(compaction);
+            assertEquals(2, compaction.getLevel());
+            assertEquals(Arrays.asList(oldest, overlapped), compaction.getTables());
+
+            // The next table is tried if the oldest one overlaps a compaction
+            final Compaction next = strategy.pick(tables.all, Collections.singleton(overlapped));
+            assertNotNull(next);
+            assertEquals(newer, next.getTables().get(0));
+            assertEquals(new HashSet<>(Arrays.asList(newer, untouched, below)), new HashSet<>(next.getTables()));
+        }
+    }
+
+    @Test
+    void matchesModel(@TempDir File data) throws IOException {
+        final TreeMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final Random random = new Random(9);
+        for (int round = 0; round < 3; round++) {
+            try (LSMDao dao = new LSMDao(data, config())) {
+                for (int i = 0; i < 20_000; i++) {
+                    final ByteBuffer key = key(random.nextInt(10_000));
+                    if (random.nextInt(8) == 0) {
+                        dao.remove(key);
+                        expected.remove(key);
+                    } else {
+                        final ByteBuffer value = value(random.nextInt());
+                        dao.upsert(key, value);
+                        expected.put(key, value);
+                    }
+                }
+                assertContents(dao, expected);
+            }
+            assertLevelsDisjoint(data);
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertContents(dao, expected);
+            dao.compact();
+            assertContents(dao, expected);
+        }
+        assertLevelsDisjoint(data);
+    }
+
+    @Test
+    void invalidShape() {
+        assertThrows(IllegalArgumentException.class, () -> new LeveledCompactionStrategy(0, 1, 2, 1));
+        assertThrows(IllegalArgumentException.class, () -> new LeveledCompactionStrategy(1, 0, 2, 1));
+        assertThrows(IllegalArgumentException.class, () -> new LeveledCompactionStrategy(1, 1, 1, 1));
+        assertThrows(IllegalArgumentException.class, () -> new LeveledCompactionStrategy(1, 1, 2, 0));
+    }
+
+    private static LSMConfig config() {
+        return new LSMConfig(FLUSH_THRESHOLD)
+                .compactionStrategy(new LeveledCompactionStrategy(4, 64 * 1024, 4, 16 * 1024));
+    }
+
+    private static void assertContents(final LSMDao dao, final TreeMap<ByteBuffer, ByteBuffer> expected)
+            throws IOException {
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+        for (int i = 0; i < 10_000; i += 13) {
+            final ByteBuffer value = expected.get(key(i));
+            if (value == null) {
+                final ByteBuffer key = key(i);
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value, dao.get(key(i)));
+            }
+        }
+    }
+
+    private static void assertLevelsDisjoint(final File data) throws IOException {
+        // Tables of every level below level 0 by their first keys
+        final Map<Integer, TreeMap<ByteBuffer, FileTable>> levels = new TreeMap<>();
+        try (Tables tables = new Tables(data)) {
+            for (final File file : data.listFiles()) {
+                if (file.getName().endsWith("SSTable.dat")) {
+                    final FileTable table = TableMode.FILE_CHANNEL.open(file, tables.handles, tables.blockCache);
+                    if (table.getLevel() > 0 && table.rows() > 0) {
+                        levels.computeIfAbsent(table.getLevel(), level -> new TreeMap<>()).put(table.firstKey(), table);
+                    }
+                }
+            }
+            assertFalse(levels.isEmpty());
+            for (final TreeMap<ByteBuffer, FileTable> level : levels.values()) {
+                ByteBuffer lastKey = null;
+                for (final FileTable table : level.values()) {
+                    assertTrue(lastKey == null || lastKey.compareTo(table.firstKey()) < 0);
+                    lastKey = table.lastKey();
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+
+    private static ByteBuffer value(final int index) {
+        return ByteBuffer.wrap(String.format("value%d", index).getBytes());
+    }
+
+    /**
+     * Tables written straight to the directory, newest first like the Dao lists them.
+     */
+    private static final class Tables implements AutoCloseable {
+        private final File data;
+        private final FileHandleCache handles = new FileHandleCache(16);
+        private final BlockCache blockCache = new BlockCache(0, 4 * 1024);
+        private final List<FileTable> all = new ArrayList<>();
+        private int generation = 1000;
+
+        Tables(final File data) {
+            this.data = data;
+        }
+
+        FileTable add(final int level, final int from, final int to) throws IOException {
+            final List<Cell> cells = new ArrayList<>();
+            for (int i = from; i <= to; i++) {
+                cells.add(new Cell(key(i), Value.of(generation, value(i))));
+            }
+            final File file = new File(data, generation++ + "SSTable.dat");
+            new TableWriter(1024, 10, null, new Compression[]{Compression.NONE})
+                    .write(cells.iterator(), file, level, null);
+            final FileTable table = TableMode.FILE_CHANNEL.open(file, handles, blockCache);
+            all.add(0, table);
+            return table;
+        }
+
+        @Override
+        public void close() throws IOException {
+            blockCache.close();
+            handles.close();
+        }
+    }
+}
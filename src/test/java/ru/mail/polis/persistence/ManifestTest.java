@@ -0,0 +1,258 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The manifest restores the committed set of tables, drops uncommitted files and stays small when rewritten.
+ */
+class ManifestTest {
+    private static final int KEYS = 3_000;
+    private static final long MIN_COMPACTED_SIZE = 1024 * 1024;
+
+    @Test
+    void reopenedWithCommittedTables(@TempDir File data) throws IOException {
+        fill(data);
+        final int tables = tables(data);
+        assertTrue(tables > 1, Integer.toString(tables));
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertFilled(dao);
+            dao.compact();
+            assertFilled(dao);
+        }
+        assertEquals(1, tables(data));
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertFilled(dao);
+        }
+    }
+
+    @Test
+    void uncommittedTablesDeleted(@TempDir File data) throws IOException {
+        fill(data);
+        final int tables = tables(data);
+        // Left by a flush or a compaction, which didn't commit before a crash
+        final File newer = new File(data, "1000SSTable.dat");
+        Files.copy(new File(data, "0SSTable.dat").toPath(), newer.toPath());
+        final File tmp = new File(data, "1001SSTable.tmp");
+        Files.write(tmp.toPath(), new byte[100]);
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertFalse(newer.exists());
+            assertFalse(tmp.exists());
+            assertFilled(dao);
+        }
+        assertEquals(tables, tables(data));
+    }
+
+    @Test
+    void pendingCompactionOutputDeleted(@TempDir File data) throws IOException {
+        fill(data);
+        final int tables = tables(data);
+        final File source = new File(data, "0SSTable.dat");
+        // An output of a compaction, which crashed before its commit, older than a committed flush
+        final File output = new File(data, "1000SSTable.dat");
+        final File flushed = new File(data, "1001SSTable.dat");
+        final BlockCache blockCache = new BlockCache(0, 4 * 1024);
+        try (FileHandleCache handles = new FileHandleCache(4);
+             Manifest manifest = Manifest.read(data)) {
+            manifest.pending(1000);
+            Files.copy(source.toPath(), output.toPath());
+            Files.copy(source.toPath(), flushed.toPath());
+            final FileTable table = TableMode.FILE_CHANNEL.open(flushed, handles, blockCache);
+            manifest.commit(Collections.emptyList(), Collections.singletonList(table));
+            assertTrue(manifest.isObsolete(1000));
+            assertFalse(manifest.isObsolete(1001));
+        } finally {
+            blockCache.close();
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertFalse(output.exists());
+            assertTrue(flushed.exists());
+            assertFilled(dao);
+        }
+        assertEquals(tables + 1, tables(data));
+    }
+
+    @Test
+    void missingManifestCreated(@TempDir File data) throws IOException {
+        fill(data);
+        final File manifest = new File(data, "MANIFEST");
+        Files.delete(manifest.toPath());
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertTrue(manifest.exists());
+            assertFilled(dao);
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertFilled(dao);
+        }
+    }
+
+    @Test
+    void unreadableTableWithoutManifest(@TempDir File data) throws IOException {
+        fill(data);
+        Files.delete(new File(data, "MANIFEST").toPath());
+        final File garbage = new File(data, "1000SSTable.dat");
+        Files.write(garbage.toPath(), new byte[100]);
+        final int tables = tables(data);
+        assertThrows(IOException.class, () -> new LSMDao(data, config()));
+        // Nothing is deleted, so the directory can be repaired
+        assertTrue(garbage.exists());
+        assertEquals(tables, tables(data));
+        assertFalse(new File(data, "MANIFEST").exists());
+    }
+
+    @Test
+    void corruptedManifestRejected(@TempDir File data) throws IOException {
+        fill(data);
+        final File manifest = new File(data, "MANIFEST");
+        try (RandomAccessFile file = new RandomAccessFile(manifest, "rw")) {
+            // A byte of the first record
+            file.seek(12);
+            final int value = file.read();
+            file.seek(12);
+            file.write(value ^ 0xFF);
+        }
+        final int tables = tables(data);
+        assertThrows(IOException.class, () -> new LSMDao(data, config()));
+        assertEquals(tables, tables(data));
+    }
+
+    @Test
+    void tornTailIgnored(@TempDir File data) throws IOException {
+        fill(data);
+        final File manifest = new File(data, "MANIFEST");
+        final long size = manifest.length();
+        // Torn header
+        append(manifest, new byte[]{0, 0, 1});
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertEquals(size, manifest.length());
+            assertFilled(dao);
+        }
+        // Size of a record past the end of the file
+        append(manifest, ByteBuffer.allocate(2 * Integer.BYTES).putInt(Integer.MAX_VALUE).putInt(42).array());
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertFilled(dao);
+            // New records overwrite the tail
+            dao.compact();
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertFilled(dao);
+        }
+        assertEquals(1, tables(data));
+    }
+
+    @Test
+    void rewrittenWhenGrown(@TempDir File data) throws IOException {
+        final BlockCache blockCache = new BlockCache(0, 4 * 1024);
+        try (FileHandleCache handles = new FileHandleCache(4)) {
+            final FileTable first = table(data, 1, handles, blockCache);
+            final FileTable second = table(data, 2, handles, blockCache);
+            final List<FileTable> none = Collections.emptyList();
+            final List<FileTable> added = Collections.singletonList(second);
+            final File file = new File(data, "MANIFEST");
+            try (Manifest manifest = Manifest.create(data, Collections.singletonList(first))) {
+                // Records with two keys of about 1000 bytes each
+                for (int i = 0; i < 1_000; i++) {
+                    if (i % 2 == 0) {
+                        manifest.commit(none, added);
+                    } else {
+                        manifest.commit(added, none);
+                    }
+                    assertTrue(file.length() <= MIN_COMPACTED_SIZE + 4 * 1024, Long.toString(file.length()));
+                }
+                assertTrue(manifest.contains(1));
+                assertFalse(manifest.contains(2));
+            }
+            assertTrue(file.length() < MIN_COMPACTED_SIZE);
+            assertFalse(new File(data, "MANIFEST.tmp").exists());
+
+            try (Manifest manifest = Manifest.read(data)) {
+                final List<Manifest.TableMeta> tables = manifest.tables();
+                assertEquals(1, tables.size());
+                final Manifest.TableMeta meta = tables.get(0);
+                assertEquals(1, meta.generation);
+                assertEquals(first.getLevel(), meta.level);
+                assertEquals(first.sizeInBytes(), meta.size);
+                assertEquals(first.rows(), meta.rows);
+                assertEquals(first.firstKey(), meta.firstKey);
+                assertEquals(first.lastKey(), meta.lastKey);
+                assertTrue(manifest.isObsolete(2));
+                assertTrue(manifest.isObsolete(3));
+                assertFalse(manifest.isObsolete(0));
+            }
+        } finally {
+            blockCache.close();
+        }
+    }
+
+    private static FileTable table(
+            final File data,
+            final int generation,
+            final FileHandleCache handles,
+            final BlockCache blockCache) throws IOException {
+        final File file = new File(data, generation + "SSTable.dat");
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            final ByteBuffer key = ByteBuffer.wrap(String.format("%01000d", generation * 100 + i).getBytes());
+            cells.add(new Cell(key, Value.of(1, key(i))));
+        }
+        new TableWriter(4 * 1024, 10, null, new Compression[]{Compression.NONE})
+                .write(cells.iterator(), file, 0, null);
+        return TableMode.FILE_CHANNEL.open(file, handles, blockCache);
+    }
+
+    private static LSMConfig config() {
+        return new LSMConfig(16 * 1024)
+                .compactionStrategy(new SizeTieredCompactionStrategy(1_000, 1_000, 0.5, 1.5, 0));
+    }
+
+    private static void fill(final File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+        }
+    }
+
+    private static void assertFilled(final LSMDao dao) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(value(i), dao.get(key(i)));
+        }
+    }
+
+    private static void append(final File file, final byte[] bytes) throws IOException {
+        Files.write(file.toPath(), bytes, StandardOpenOption.APPEND);
+    }
+
+    private static int tables(final File data) {
+        int count = 0;
+        for (final File file : data.listFiles()) {
+            if (file.getName().endsWith("SSTable.dat")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+
+    private static ByteBuffer value(final int index) {
+        return ByteBuffer.wrap(("value" + index).getBytes());
+    }
+}
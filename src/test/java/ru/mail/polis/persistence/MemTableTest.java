@@ -0,0 +1,78 @@
+package ru.mail.polis.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Timestamps are taken in increasing order and the memTable keeps the newest one of a key whatever the order of puts.
+ */
+class MemTableTest {
+    private static final int THREADS = 4;
+    private static final int TIMESTAMPS = 100_000;
+
+    @Test
+    void olderValueNeverReplacesNewer() {
+        final MemTable memTable = new MemTable();
+        memTable.put(key(1), Value.of(20, value(20)));
+        final long size = memTable.sizeInBytes();
+        memTable.put(key(1), Value.of(10, value(1_000)));
+        memTable.put(key(1), Value.tombstone(15));
+        assertEquals(20, memTable.get(key(1)).getValue().getTimeStamp());
+        assertEquals(size, memTable.sizeInBytes());
+
+        memTable.put(key(1), Value.tombstone(30));
+        assertTrue(memTable.get(key(1)).getValue().isRemoved());
+        memTable.put(key(1), Value.of(40, value(40)));
+        assertEquals(value(40), memTable.get(key(1)).getValue().getData());
+        assertEquals(size, memTable.sizeInBytes());
+    }
+
+    @Test
+    void timeStampsIncrease() throws Exception {
+        // Timestamps stay above the ones found on disk even if the clock is behind them
+        final long stored = System.currentTimeMillis() * 1_000_000L + 1_000_000_000L;
+        Value.observe(stored);
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<long[]>> futures = new ArrayList<>(THREADS);
+            for (int thread = 0; thread < THREADS; thread++) {
+                final Callable<long[]> task = () -> {
+                    final long[] taken = new long[TIMESTAMPS];
+                    for (int i = 0; i < TIMESTAMPS; i++) {
+                        // Ranges of batches don't overlap
+                        taken[i] = Value.reserve(i % 10 + 1);
+                    }
+                    return taken;
+                };
+                futures.add(executor.submit(task));
+            }
+            for (final Future<long[]> future : futures) {
+                final long[] taken = future.get();
+                assertTrue(taken[0] > stored);
+                for (int i = 1; i < TIMESTAMPS; i++) {
+                    assertTrue(taken[i] >= taken[i - 1] + (i - 1) % 10 + 1, Integer.toString(i));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+
+    private static ByteBuffer value(final int index) {
+        return ByteBuffer.wrap(("value" + index).getBytes());
+    }
+}
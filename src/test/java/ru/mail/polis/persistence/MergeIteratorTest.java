@@ -0,0 +1,130 @@
+package ru.mail.polis.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * The merge returns every key once in order with its newest cell, tombstones are dropped on request.
+ */
+class MergeIteratorTest {
+    private static final int KEYS = 2_000;
+
+    @Test
+    void matchesModel() {
+        final Random random = new Random(24);
+        for (int round = 0; round < 50; round++) {
+            final int sources = 1 + random.nextInt(round % 5 == 0 ? 40 : 8);
+            final List<List<Cell>> tables = new ArrayList<>(sources);
+            final TreeMap<ByteBuffer, Cell> newest = new TreeMap<>();
+            long timeStamp = 0;
+            for (int s = 0; s < sources; s++) {
+                final TreeMap<ByteBuffer, Cell> table = new TreeMap<>();
+                final int cells = random.nextInt(KEYS / sources + 1);
+                for (int i = 0; i < cells; i++) {
+                    // Sources overlap and are not ordered by age
+                    final ByteBuffer key = key(random.nextInt(KEYS));
+                    if (table.containsKey(key)) {
+                        continue;
+                    }
+                    final long version = random.nextInt(1_000) * 1_000_000L + ++timeStamp;
+                    final Value value = random.nextInt(4) == 0 ? Value.tombstone(version) : Value.of(version, key);
+                    final Cell cell = new Cell(key, value);
+                    table.put(key, cell);
+                    final Cell known = newest.get(key);
+                    if (known == null || Cell.COMPARATOR.compare(cell, known) < 0) {
+                        newest.put(key, cell);
+                    }
+                }
+                tables.add(new ArrayList<>(table.values()));
+            }
+            assertMerged(newest, merge(tables, Cell.COMPARATOR, false), false);
+            assertMerged(newest, merge(tables, Cell.COMPARATOR, true), true);
+
+            final List<List<Cell>> reversed = new ArrayList<>(sources);
+            for (final List<Cell> table : tables) {
+                final List<Cell> copy = new ArrayList<>(table);
+                Collections.reverse(copy);
+                reversed.add(copy);
+            }
+            assertMerged(newest.descendingMap(), merge(reversed, Cell.DESCENDING, true), true);
+        }
+    }
+
+    @Test
+    void newestDuplicateWins() {
+        final ByteBuffer key = key(1);
+        final Cell old = new Cell(key, Value.of(1, key(10)));
+        final Cell removed = new Cell(key, Value.tombstone(2));
+        final Cell latest = new Cell(key, Value.of(3, key(30)));
+        final List<List<Cell>> tables = new ArrayList<>();
+        tables.add(Collections.singletonList(old));
+        tables.add(Collections.singletonList(latest));
+        tables.add(Collections.singletonList(removed));
+        final Iterator<Cell> merged = merge(tables, Cell.COMPARATOR, true);
+        assertSame(latest, merged.next());
+        assertFalse(merged.hasNext());
+
+        // A tombstone shadows older cells even when it is skipped
+        tables.remove(1);
+        assertFalse(merge(tables, Cell.COMPARATOR, true).hasNext());
+        final Iterator<Cell> kept = merge(tables, Cell.COMPARATOR, false);
+        assertSame(removed, kept.next());
+        assertFalse(kept.hasNext());
+    }
+
+    @Test
+    void emptySources() {
+        assertFalse(merge(Collections.emptyList(), Cell.COMPARATOR, true).hasNext());
+        final List<List<Cell>> tables = new ArrayList<>();
+        tables.add(Collections.emptyList());
+        tables.add(Collections.singletonList(new Cell(key(1), Value.of(1, key(1)))));
+        tables.add(Collections.emptyList());
+        final Iterator<Cell> merged = merge(tables, Cell.COMPARATOR, true);
+        assertEquals(key(1), merged.next().getKey());
+        assertFalse(merged.hasNext());
+        assertThrows(NoSuchElementException.class, merged::next);
+    }
+
+    private static Iterator<Cell> merge(
+            final List<List<Cell>> tables,
+            final Comparator<Cell> order,
+            final boolean skipRemoved) {
+        final List<Iterator<Cell>> iterators = new ArrayList<>(tables.size());
+        for (final List<Cell> table : tables) {
+            iterators.add(table.iterator());
+        }
+        return new MergeIterator(iterators, order, skipRemoved);
+    }
+
+    private static void assertMerged(
+            final Map<ByteBuffer, Cell> newest,
+            final Iterator<Cell> merged,
+            final boolean skipRemoved) {
+        for (final Cell expected : newest.values()) {
+            if (skipRemoved && expected.getValue().isRemoved()) {
+                continue;
+            }
+            assertSame(expected, merged.next());
+        }
+        assertFalse(merged.hasNext());
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+}
@@ -0,0 +1,193 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Point lookups return the newest version of a key, tombstones included, probing as few tables as possible.
+ */
+class NewestFirstLookupTest {
+    private static final int KEYS = 1_000;
+    private static final int ROUNDS = 6;
+
+    @Test
+    void newestVersionWins(@TempDir File data) throws IOException {
+        final TreeMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int round = 0; round < ROUNDS; round++) {
+            try (LSMDao dao = new LSMDao(data, config())) {
+                for (int i = round; i < KEYS; i += round + 1) {
+                    // Keys removed in this round come back in later ones
+                    if (i % 7 == round) {
+                        dao.remove(key(i));
+                        expected.remove(key(i));
+                    } else {
+                        dao.upsert(key(i), value(round, i));
+                        expected.put(key(i), value(round, i));
+                    }
+                }
+                assertLookups(dao, expected);
+            }
+        }
+        assertTrue(tables(data) >= ROUNDS, Integer.toString(tables(data)));
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertLookups(dao, expected);
+            dao.compact();
+            assertLookups(dao, expected);
+        }
+    }
+
+    @Test
+    void lookupStopsAtNewestTable(@TempDir File data) throws IOException {
+        for (int round = 0; round < ROUNDS; round++) {
+            try (LSMDao dao = new LSMDao(data, config())) {
+                for (int i = 0; i < KEYS; i++) {
+                    dao.upsert(key(i), value(round, i));
+                }
+            }
+        }
+        assertEquals(ROUNDS, tables(data));
+        try (LSMDao dao = new LSMDao(data, config())) {
+            final BlockCache blockCache = dao.getBlockCache();
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(value(ROUNDS - 1, i), dao.get(key(i)));
+            }
+            // A block of the newest table per key instead of a block of every table
+            final long reads = blockCache.hitCount() + blockCache.missCount();
+            assertTrue(reads <= KEYS, Long.toString(reads));
+        }
+    }
+
+    @Test
+    void tombstoneStopsLookup(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(0, i));
+            }
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.remove(key(i));
+            }
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            final BlockCache blockCache = dao.getBlockCache();
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = key(i);
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+            final long reads = blockCache.hitCount() + blockCache.missCount();
+            assertTrue(reads <= KEYS, Long.toString(reads));
+        }
+    }
+
+    @Test
+    void lookupsMatchIteratorUnderFlushes(@TempDir File data) throws Exception {
+        final int keys = 50;
+        // Small memTables, so writers of the same keys keep racing with their switches
+        try (LSMDao dao = new LSMDao(data, config().flushThreshold(4 * 1024))) {
+            final List<Thread> writers = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                final int writer = thread;
+                writers.add(new Thread(() -> {
+                    for (int i = 0; i < 5_000; i++) {
+                        try {
+                            dao.upsert(key(i % keys), value(writer, i));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                }));
+            }
+            for (final Thread writer : writers) {
+                writer.start();
+            }
+            for (final Thread writer : writers) {
+                writer.join();
+            }
+            assertTrue(tables(data) > 1, Integer.toString(tables(data)));
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            for (int i = 0; i < keys; i++) {
+                final Record record = records.next();
+                assertEquals(key(i), record.getKey());
+                assertEquals(record.getValue(), dao.get(key(i)));
+            }
+        }
+    }
+
+    @Test
+    void maxTimeStampOfTable(@TempDir File data) throws IOException {
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            // The largest timestamp is in the middle and belongs to a tombstone
+            final long timeStamp = i == KEYS / 2 ? 1_000_000L : i;
+            cells.add(new Cell(key(i), i == KEYS / 2 ? Value.tombstone(timeStamp) : Value.of(timeStamp, value(0, i))));
+        }
+        final File full = new File(data, "1SSTable.dat");
+        final File empty = new File(data, "2SSTable.dat");
+        final TableWriter writer = new TableWriter(4 * 1024, 10, null, new Compression[]{Compression.NONE});
+        writer.write(cells.iterator(), full, 0, null);
+        writer.write(new ArrayList<Cell>().iterator(), empty, 0, null);
+        final BlockCache blockCache = new BlockCache(0, 4 * 1024);
+        try (FileHandleCache handles = new FileHandleCache(4)) {
+            for (final TableMode mode : TableMode.values()) {
+                assertEquals(1_000_000L, mode.open(full, handles, blockCache).maxTimeStamp());
+                assertEquals(Long.MIN_VALUE, mode.open(empty, handles, blockCache).maxTimeStamp());
+            }
+        } finally {
+            blockCache.close();
+        }
+    }
+
+    private static LSMConfig config() {
+        return new LSMConfig(1024 * 1024)
+                .rowCacheSize(0)
+                .compactionStrategy(new SizeTieredCompactionStrategy(1_000, 1_000, 0.5, 1.5, 0));
+    }
+
+    private static void assertLookups(final LSMDao dao, final TreeMap<ByteBuffer, ByteBuffer> expected)
+            throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = key(i);
+            final ByteBuffer value = expected.get(key);
+            if (value == null) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value, dao.get(key));
+            }
+        }
+    }
+
+    private static int tables(final File data) {
+        int count = 0;
+        for (final File file : data.listFiles()) {
+            if (file.getName().endsWith("SSTable.dat")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+
+    private static ByteBuffer value(final int round, final int index) {
+        return ByteBuffer.wrap(("value" + round + "/" + index).getBytes());
+    }
+}
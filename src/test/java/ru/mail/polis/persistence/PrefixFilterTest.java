@@ -0,0 +1,177 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Range scans inside a single prefix skip tables without the prefix and return the same records.
+ */
+class PrefixFilterTest {
+    private static final int USERS = 100;
+    private static final int ROWS = 200;
+    private static final PrefixExtractor EXTRACTOR = PrefixExtractor.fixedLength(7);
+
+    @Test
+    void fixedLengthPrefix() {
+        assertEquals(bytes("user01:"), EXTRACTOR.prefix(bytes("user01:0001")));
+        assertEquals(bytes("user01:"), EXTRACTOR.prefix(bytes("user01:")));
+        assertNull(EXTRACTOR.prefix(bytes("user01")));
+
+        final ByteBuffer key = bytes("xxuser02:0001");
+        key.position(2);
+        assertEquals(bytes("user02:"), EXTRACTOR.prefix(key));
+        assertEquals(2, key.position());
+
+        assertEquals("fixed:7", EXTRACTOR.name());
+        assertThrows(IllegalArgumentException.class, () -> PrefixExtractor.fixedLength(0));
+    }
+
+    @Test
+    void tableFilterKnowsItsPrefixes(@TempDir File data) throws IOException {
+        final File file = new File(data, "1SSTable.dat");
+        final List<Cell> cells = new ArrayList<>();
+        for (int user = 0; user < USERS; user += 2) {
+            for (int row = 0; row < 10; row++) {
+                cells.add(new Cell(key(user, row), Value.of(1, key(user, row))));
+            }
+        }
+        new TableWriter(4 * 1024, 10, EXTRACTOR, new Compression[]{Compression.NONE})
+                .write(cells.iterator(), file, 0, null);
+        final BlockCache blockCache = new BlockCache(0, 4 * 1024);
+        try (FileHandleCache handles = new FileHandleCache(4)) {
+            final FileTable table = TableMode.FILE_CHANNEL.open(file, handles, blockCache);
+            int falsePositives = 0;
+            for (int user = 0; user < USERS; user++) {
+                final boolean found = table.mightContainPrefix(EXTRACTOR, prefix(user));
+                if (user % 2 == 0) {
+                    assertTrue(found);
+                } else if (found) {
+                    falsePositives++;
+                }
+            }
+            assertTrue(falsePositives < 5, Integer.toString(falsePositives));
+
+            // Filters built by another extractor are not trusted
+            final PrefixExtractor other = new PrefixExtractor() {
+                @NotNull
+                @Override
+                public String name() {
+                    return "other";
+                }
+
+                @Override
+                public ByteBuffer prefix(@NotNull final ByteBuffer key) {
+                    return EXTRACTOR.prefix(key);
+                }
+            };
+            for (int user = 1; user < USERS; user += 2) {
+                assertTrue(table.mightContainPrefix(other, prefix(user)));
+            }
+        } finally {
+            blockCache.close();
+        }
+    }
+
+    @Test
+    void rangeInsidePrefix(@TempDir File data) throws IOException {
+        final TreeMap<ByteBuffer, ByteBuffer> expected = fill(data, config(EXTRACTOR));
+        try (LSMDao dao = new LSMDao(data, config(EXTRACTOR))) {
+            for (int user = 0; user < USERS; user++) {
+                final ByteBuffer from = prefix(user);
+                final ByteBuffer to = Bytes.successor(from);
+                assertRange(expected.subMap(from, to), dao.range(from, to));
+                // Inside the prefix
+                assertRange(expected.subMap(key(user, 50), key(user, 60)), dao.range(key(user, 50), key(user, 60)));
+            }
+            // Across prefixes
+            assertRange(expected.subMap(key(10, 190), key(13, 5)), dao.range(key(10, 190), key(13, 5)));
+            // Shorter than the prefix
+            assertRange(expected.subMap(bytes("user1"), bytes("user2")), dao.range(bytes("user1"), bytes("user2")));
+        }
+    }
+
+    @Test
+    void missingPrefixSkipsTables(@TempDir File data) throws IOException {
+        fill(data, config(EXTRACTOR));
+        final long filtered = blockReadsOfMissingPrefixes(data, config(EXTRACTOR));
+        final long unfiltered = blockReadsOfMissingPrefixes(data, config(null));
+        assertTrue(filtered < unfiltered, filtered + " >= " + unfiltered);
+    }
+
+    private static long blockReadsOfMissingPrefixes(final File data, final LSMConfig config) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config)) {
+            final BlockCache blockCache = dao.getBlockCache();
+            final long before = blockCache.hitCount() + blockCache.missCount();
+            for (int user = 1; user < USERS; user += 10) {
+                final ByteBuffer from = bytes(String.format("user%02dx", user));
+                assertFalse(dao.range(from, Bytes.successor(from)).hasNext());
+            }
+            return blockCache.hitCount() + blockCache.missCount() - before;
+        }
+    }
+
+    /**
+     * Every flushed table holds a few users.
+     */
+    private static TreeMap<ByteBuffer, ByteBuffer> fill(final File data, final LSMConfig config) throws IOException {
+        final TreeMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (LSMDao dao = new LSMDao(data, config)) {
+            for (int user = 0; user < USERS; user++) {
+                for (int row = 0; row < ROWS; row++) {
+                    final ByteBuffer value = bytes("value" + user * row);
+                    dao.upsert(key(user, row), value);
+                    expected.put(key(user, row), value);
+                }
+            }
+        }
+        return expected;
+    }
+
+    private static LSMConfig config(final PrefixExtractor extractor) {
+        return new LSMConfig(64 * 1024)
+                .tableMode(TableMode.FILE_CHANNEL)
+                .prefixExtractor(extractor)
+                .compactionStrategy(new SizeTieredCompactionStrategy(1_000, 1_000, 0.5, 1.5, 0));
+    }
+
+    private static void assertRange(final Map<ByteBuffer, ByteBuffer> expected, final Iterator<Record> records) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static ByteBuffer prefix(final int user) {
+        return bytes(String.format("user%02d:", user));
+    }
+
+    private static ByteBuffer key(final int user, final int row) {
+        return bytes(String.format("user%02d:%04d", user, row));
+    }
+
+    private static ByteBuffer bytes(final String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,167 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Bounded ranges return the same records as a model and read nothing past their upper bound.
+ */
+class RangeTest {
+    private static final int KEYS = 5_000;
+
+    @Test
+    void matchesModel(@TempDir File data) throws IOException {
+        final Random random = new Random(22);
+        final TreeMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < 3 * KEYS; i++) {
+                final int index = random.nextInt(KEYS);
+                if (random.nextInt(5) == 0) {
+                    dao.remove(key(index));
+                    expected.remove(key(index));
+                } else {
+                    dao.upsert(key(index), value(i));
+                    expected.put(key(index), value(i));
+                }
+            }
+            assertRanges(dao, expected, random);
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertRanges(dao, expected, random);
+        }
+    }
+
+    @Test
+    void degenerateBounds(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+            // Empty when from is not below to
+            assertFalse(dao.range(key(10), key(10)).hasNext());
+            assertFalse(dao.range(key(20), key(10)).hasNext());
+            assertFalse(dao.range(key(KEYS), key(KEYS + 10)).hasNext());
+            // Open upper bound
+            final Iterator<Record> tail = dao.range(key(KEYS - 2), null);
+            assertEquals(key(KEYS - 2), tail.next().getKey());
+            assertEquals(key(KEYS - 1), tail.next().getKey());
+            assertFalse(tail.hasNext());
+            // The upper bound is exclusive
+            final Iterator<Record> single = dao.range(key(10), key(11));
+            assertEquals(value(10), single.next().getValue());
+            assertFalse(single.hasNext());
+            final Iterator<Record> head = dao.range(ByteBuffer.allocate(0), key(2));
+            assertEquals(key(0), head.next().getKey());
+            assertEquals(key(1), head.next().getKey());
+            assertFalse(head.hasNext());
+        }
+    }
+
+    @Test
+    void tablesAboveBoundSkipped(@TempDir File data) throws IOException {
+        // Ascending keys, so every table covers its own part of them
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            final BlockCache blockCache = dao.getBlockCache();
+            final long before = blockCache.hitCount() + blockCache.missCount();
+            final Iterator<Record> records = dao.range(key(10), key(20));
+            for (int i = 10; i < 20; i++) {
+                assertEquals(key(i), records.next().getKey());
+            }
+            assertFalse(records.hasNext());
+            final long reads = blockCache.hitCount() + blockCache.missCount() - before;
+            assertTrue(reads <= 2, Long.toString(reads));
+        }
+    }
+
+    @Test
+    void tableIteratorStopsAtBound(@TempDir File data) throws IOException {
+        final File file = new File(data, "1SSTable.dat");
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            cells.add(new Cell(key(2 * i), Value.of(i, value(i))));
+        }
+        new TableWriter(256, 10, null, new Compression[]{Compression.NONE}).write(cells.iterator(), file, 0, null);
+        final BlockCache blockCache = new BlockCache(1024 * 1024, 4 * 1024);
+        try (FileHandleCache handles = new FileHandleCache(4)) {
+            for (final TableMode mode : TableMode.values()) {
+                final FileTable table = mode.open(file, handles, blockCache);
+                final long before = blockCache.hitCount() + blockCache.missCount();
+                // A bound between keys and a bound at a key
+                final Iterator<Cell> between = table.iterator(key(100), key(103));
+                assertEquals(key(100), between.next().getKey());
+                assertEquals(key(102), between.next().getKey());
+                assertFalse(between.hasNext());
+                final Iterator<Cell> at = table.iterator(key(99), key(102));
+                assertEquals(key(100), at.next().getKey());
+                assertFalse(at.hasNext());
+                assertTrue(blockCache.hitCount() + blockCache.missCount() - before <= 4);
+
+                final Iterator<Cell> all = table.iterator(key(-1), key(2 * KEYS));
+                for (int i = 0; i < KEYS; i++) {
+                    assertEquals(key(2 * i), all.next().getKey());
+                }
+                assertFalse(all.hasNext());
+                assertFalse(table.iterator(key(2 * KEYS), key(3 * KEYS)).hasNext());
+            }
+        } finally {
+            blockCache.close();
+        }
+    }
+
+    private static void assertRanges(
+            final LSMDao dao,
+            final TreeMap<ByteBuffer, ByteBuffer> expected,
+            final Random random) throws IOException {
+        for (int round = 0; round < 200; round++) {
+            final int from = random.nextInt(KEYS + 10);
+            final int to = from + random.nextInt(round % 10 == 0 ? KEYS : 50);
+            assertRange(expected.subMap(key(from), key(to)), dao.range(key(from), key(to)));
+        }
+        assertRange(expected, dao.range(ByteBuffer.allocate(0), null));
+    }
+
+    private static void assertRange(final Map<ByteBuffer, ByteBuffer> expected, final Iterator<Record> records) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static LSMConfig config() {
+        return new LSMConfig(16 * 1024)
+                .blockSize(1024)
+                .compactionStrategy(new SizeTieredCompactionStrategy(1_000, 1_000, 0.5, 1.5, 0));
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+
+    private static ByteBuffer value(final int index) {
+        return ByteBuffer.wrap(("value" + index).getBytes());
+    }
+}
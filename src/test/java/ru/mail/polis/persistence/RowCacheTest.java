@@ -0,0 +1,212 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Repeated lookups are served by the row cache, writes invalidate it and frequent keys survive scans.
+ */
+class RowCacheTest {
+    private static final int KEYS = 1_000;
+    private static final int HOT_KEYS = 20;
+
+    @Test
+    void hotKeysServedFromCache(@TempDir File data) throws IOException {
+        fill(data);
+        try (LSMDao dao = new LSMDao(data, config())) {
+            final RowCache rowCache = dao.getRowCache();
+            for (int round = 0; round < 20; round++) {
+                for (int i = 0; i < HOT_KEYS; i++) {
+                    assertEquals(value(i), dao.get(key(i)));
+                }
+            }
+            assertEquals(HOT_KEYS, rowCache.missCount());
+            assertTrue(rowCache.hitRatio() > 0.9, Double.toString(rowCache.hitRatio()));
+            assertTrue(rowCache.sizeInBytes() > 0);
+            assertTrue(dao.memoryUsage() >= rowCache.sizeInBytes());
+
+            // Iterators bypass the cache
+            final long lookups = rowCache.hitCount() + rowCache.missCount();
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(value(i), records.next().getValue());
+            }
+            assertEquals(lookups, rowCache.hitCount() + rowCache.missCount());
+        }
+    }
+
+    @Test
+    void writesInvalidate(@TempDir File data) throws IOException {
+        fill(data);
+        try (LSMDao dao = new LSMDao(data, config())) {
+            final ByteBuffer key = key(1);
+            assertEquals(value(1), dao.get(key));
+            assertEquals(value(1), dao.get(key));
+            dao.upsert(key, value(-1));
+            assertEquals(value(-1), dao.get(key));
+            dao.remove(key);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            // Absent keys are cached too
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            dao.upsert(key, value(-2));
+            assertEquals(value(-2), dao.get(key));
+            assertTrue(dao.getRowCache().hitCount() >= 2);
+        }
+    }
+
+    @Test
+    void racingWritesNeverLeaveStaleRows(@TempDir File data) throws Exception {
+        final int writes = 2_000;
+        try (LSMDao dao = new LSMDao(data, config())) {
+            final AtomicBoolean done = new AtomicBoolean();
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final List<Thread> threads = new ArrayList<>();
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < writes; i++) {
+                        dao.upsert(key(i % HOT_KEYS), counter(i));
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    done.set(true);
+                }
+            }));
+            for (int t = 0; t < 4; t++) {
+                threads.add(new Thread(() -> {
+                    try {
+                        final int[] seen = new int[HOT_KEYS];
+                        while (!done.get()) {
+                            for (int k = 0; k < HOT_KEYS; k++) {
+                                try {
+                                    final int current = dao.get(key(k)).getInt();
+                                    // Rows never go back in time
+                                    assertTrue(current >= seen[k], current + " < " + seen[k]);
+                                    seen[k] = current;
+                                } catch (NoSuchElementException e) {
+                                    assertEquals(0, seen[k]);
+                                }
+                            }
+                        }
+                    } catch (Throwable t1) {
+                        failure.compareAndSet(null, t1);
+                    }
+                }));
+            }
+            for (final Thread thread : threads) {
+                thread.start();
+            }
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+            assertNull(failure.get());
+            for (int k = 0; k < HOT_KEYS; k++) {
+                final int last = writes - HOT_KEYS + k;
+                assertEquals(counter(last), dao.get(key(k)));
+                assertEquals(counter(last), dao.get(key(k)));
+            }
+        }
+    }
+
+    @Test
+    void frequentKeysSurviveScan() {
+        final RowCache cache = new RowCache(64 * 1024);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < HOT_KEYS; i++) {
+                lookup(cache, key(i));
+            }
+        }
+        // Keys read once don't push out the popular ones
+        for (int i = HOT_KEYS; i < 10 * KEYS; i++) {
+            lookup(cache, key(i));
+            assertTrue(cache.sizeInBytes() <= cache.capacity());
+        }
+        int cached = 0;
+        for (int i = 0; i < HOT_KEYS; i++) {
+            if (cache.get(key(i)) != null) {
+                cached++;
+            }
+        }
+        assertTrue(cached >= HOT_KEYS * 3 / 4, Integer.toString(cached));
+    }
+
+    @Test
+    void lookupRacingWriteNotCached() {
+        final RowCache cache = new RowCache(64 * 1024);
+        final ByteBuffer key = key(1);
+        final long version = cache.version(key);
+        cache.invalidate(key);
+        cache.put(key, value(1), version);
+        assertNull(cache.get(key));
+
+        cache.put(key, RowCache.ABSENT, cache.version(key));
+        assertSame(RowCache.ABSENT, cache.get(key));
+        cache.invalidate(key);
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    void disabledAndBoundedCache(@TempDir File data) throws IOException {
+        final RowCache disabled = new RowCache(0);
+        disabled.put(key(1), value(1), disabled.version(key(1)));
+        assertNull(disabled.get(key(1)));
+        assertEquals(0, disabled.sizeInBytes());
+        assertEquals(0.0, disabled.hitRatio());
+
+        // Half of the heap is left to memTables
+        try (LSMDao dao = new LSMDao(data, new LSMConfig(1024 * 1024).rowCacheSize(Long.MAX_VALUE))) {
+            assertTrue(dao.getRowCache().capacity() <= Runtime.getRuntime().maxMemory() / 2);
+        }
+        assertThrows(IllegalArgumentException.class, () -> new LSMConfig(1024).rowCacheSize(-1));
+    }
+
+    private static void lookup(final RowCache cache, final ByteBuffer key) {
+        if (cache.get(key) == null) {
+            cache.put(key, value(0), cache.version(key));
+        }
+    }
+
+    private static LSMConfig config() {
+        return new LSMConfig(64 * 1024)
+                .rowCacheSize(1024 * 1024)
+                .compactionStrategy(new SizeTieredCompactionStrategy(1_000, 1_000, 0.5, 1.5, 0));
+    }
+
+    private static void fill(final File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+        }
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+
+    private static ByteBuffer value(final int index) {
+        return ByteBuffer.wrap(("value" + index).getBytes());
+    }
+
+    private static ByteBuffer counter(final int index) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, index + 1);
+    }
+}
@@ -0,0 +1,203 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tables of similar size are merged together and the tree returns the same data as a plain map.
+ */
+class SizeTieredCompactionTest {
+    private static final long FLUSH_THRESHOLD = 16 * 1024;
+
+    @Test
+    void similarTablesMerged(@TempDir File data) throws IOException {
+        final SizeTieredCompactionStrategy strategy = new SizeTieredCompactionStrategy(3, 32, 0.5, 1.5, 0);
+        try (Tables tables = new Tables(data)) {
+            final FileTable first = tables.add(100);
+            final FileTable large = tables.add(1_000);
+            final FileTable second = tables.add(110);
+            assertNull(strategy.pick(tables.all, Collections.emptySet()));
+
+            final FileTable third = tables.add(90);
+            final Compaction compaction = strategy.pick(tables.all, Collections.emptySet());
+            assertNotNull(compaction);
+            assertEquals(0, compaction.getLevel());
+            assertEquals(new HashSet<>(Arrays.asList(first, second, third)), new HashSet<>(compaction.getTables()));
+
+            // Tables being compacted are left out of buckets
+            assertNull(strategy.pick(tables.all, Collections.singleton(second)));
+            assertFalse(compaction.getTables().contains(large));
+        }
+    }
+
+    @Test
+    void largerBucketPickedWhenSmallIsShort(@TempDir File data) throws IOException {
+        final SizeTieredCompactionStrategy strategy = new SizeTieredCompactionStrategy(2, 32, 0.5, 1.5, 0);
+        try (Tables tables = new Tables(data)) {
+            tables.add(10);
+            final FileTable first = tables.add(1_000);
+            final FileTable second = tables.add(1_100);
+            final Compaction compaction = strategy.pick(tables.all, Collections.emptySet());
+            assertNotNull(compaction);
+            assertEquals(new HashSet<>(Arrays.asList(first, second)), new HashSet<>(compaction.getTables()));
+        }
+    }
+
+    @Test
+    void mergedCountCapped(@TempDir File data) throws IOException {
+        final SizeTieredCompactionStrategy strategy = new SizeTieredCompactionStrategy(2, 3, 0.5, 1.5, 0);
+        try (Tables tables = new Tables(data)) {
+            final List<FileTable> smallest = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                final FileTable table = tables.add(100 + 5 * i);
+                if (i < 3) {
+                    smallest.add(table);
+                }
+            }
+            final Compaction compaction = strategy.pick(tables.all, Collections.emptySet());
+            assertNotNull(compaction);
+            assertEquals(smallest, compaction.getTables());
+        }
+    }
+
+    @Test
+    void smallTablesBucketedTogether(@TempDir File data) throws IOException {
+        try (Tables tables = new Tables(data)) {
+            tables.add(5);
+            tables.add(100);
+            tables.add(1_000);
+            assertNull(new SizeTieredCompactionStrategy(3, 32, 0.5, 1.5, 0)
+                    .pick(tables.all, Collections.emptySet()));
+
+            final Compaction compaction = new SizeTieredCompactionStrategy(3, 32, 0.5, 1.5, 1024 * 1024)
+                    .pick(tables.all, Collections.emptySet());
+            assertNotNull(compaction);
+            assertEquals(3, compaction.getTables().size());
+        }
+    }
+
+    @Test
+    void matchesModel(@TempDir File data) throws IOException {
+        final TreeMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final Random random = new Random(10);
+        for (int round = 0; round < 3; round++) {
+            try (LSMDao dao = new LSMDao(data, config())) {
+                for (int i = 0; i < 20_000; i++) {
+                    final ByteBuffer key = key(random.nextInt(10_000));
+                    if (random.nextInt(8) == 0) {
+                        dao.remove(key);
+                        expected.remove(key);
+                    } else {
+                        final ByteBuffer value = value(random.nextInt());
+                        dao.upsert(key, value);
+                        expected.put(key, value);
+                    }
+                }
+                assertContents(dao, expected);
+            }
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertContents(dao, expected);
+            dao.compact();
+            assertContents(dao, expected);
+        }
+    }
+
+    @Test
+    void invalidShape() {
+        assertThrows(IllegalArgumentException.class, () -> new SizeTieredCompactionStrategy(1, 32, 0.5, 1.5, 0));
+        assertThrows(IllegalArgumentException.class, () -> new SizeTieredCompactionStrategy(4, 3, 0.5, 1.5, 0));
+        assertThrows(IllegalArgumentException.class, () -> new SizeTieredCompactionStrategy(4, 32, 0.0, 1.5, 0));
+        assertThrows(IllegalArgumentException.class, () -> new SizeTieredCompactionStrategy(4, 32, 0.5, 0.9, 0));
+        assertThrows(IllegalArgumentException.class, () -> new SizeTieredCompactionStrategy(4, 32, 0.5, 1.5, -1));
+    }
+
+    private static LSMConfig config() {
+        return new LSMConfig(FLUSH_THRESHOLD)
+                .compactionStrategy(new SizeTieredCompactionStrategy(4, 8, 0.5, 1.5, 32 * 1024));
+    }
+
+    private static void assertContents(final LSMDao dao, final TreeMap<ByteBuffer, ByteBuffer> expected)
+            throws IOException {
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+        for (int i = 0; i < 10_000; i += 13) {
+            final ByteBuffer value = expected.get(key(i));
+            if (value == null) {
+                final ByteBuffer key = key(i);
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value, dao.get(key(i)));
+            }
+        }
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+
+    private static ByteBuffer value(final int index) {
+        return ByteBuffer.wrap(String.format("value%d", index).getBytes());
+    }
+
+    /**
+     * Tables of the given row counts written straight to the directory, newest first like the Dao lists them.
+     */
+    private static final class Tables implements AutoCloseable {
+        private final File data;
+        private final FileHandleCache handles = new FileHandleCache(16);
+        private final BlockCache blockCache = new BlockCache(0, 4 * 1024);
+        private final List<FileTable> all = new ArrayList<>();
+        private int generation = 1000;
+
+        Tables(final File data) {
+            this.data = data;
+        }
+
+        FileTable add(final int rows) throws IOException {
+            final List<Cell> cells = new ArrayList<>();
+            for (int i = 0; i < rows; i++) {
+                cells.add(new Cell(key(i), Value.of(generation, value(i))));
+            }
+            final File file = new File(data, generation++ + "SSTable.dat");
+            new TableWriter(1024, 10, null, new Compression[]{Compression.NONE})
+                    .write(cells.iterator(), file, 0, null);
+            final FileTable table = TableMode.FILE_CHANNEL.open(file, handles, blockCache);
+            all.add(0, table);
+            return table;
+        }
+
+        @Override
+        public void close() throws IOException {
+            blockCache.close();
+            handles.close();
+        }
+    }
+}
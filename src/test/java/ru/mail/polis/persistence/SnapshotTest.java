@@ -0,0 +1,209 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+import ru.mail.polis.Snapshot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Snapshots keep showing the data they were taken at while later writes are flushed and tables are compacted.
+ */
+class SnapshotTest {
+    private static final int KEYS = 2_000;
+    private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    @Test
+    void isolatedFromFlushAndCompaction(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config())) {
+            write(dao, 1);
+            try (Snapshot snapshot = dao.snapshot()) {
+                // Overwrites and removals are flushed to new tables and merged with the old ones
+                write(dao, 2);
+                for (int i = 0; i < KEYS; i += 3) {
+                    dao.remove(key(i));
+                }
+                // Freezes the writes, so they are flushed before the compaction
+                dao.snapshot().close();
+                dao.compact();
+
+                assertVersion(snapshot, 1);
+                assertEquals(value(2, 1), dao.get(key(1)));
+                assertThrows(NoSuchElementException.class, () -> dao.get(key(0)));
+            }
+        }
+    }
+
+    @Test
+    void iteratorOutlivesSnapshot(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config())) {
+            write(dao, 1);
+            final Iterator<Record> records;
+            try (Snapshot snapshot = dao.snapshot()) {
+                records = snapshot.iterator(ByteBuffer.allocate(0));
+                assertEquals(key(0), records.next().getKey());
+            }
+            write(dao, 2);
+            dao.compact();
+            for (int i = 1; i < KEYS; i++) {
+                final Record record = records.next();
+                assertEquals(key(i), record.getKey());
+                assertEquals(value(1, i), record.getValue());
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void closedSnapshotRejected(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config())) {
+            write(dao, 1);
+            final Snapshot snapshot = dao.snapshot();
+            snapshot.close();
+            snapshot.close();
+            assertThrows(IllegalStateException.class, () -> snapshot.get(key(1)));
+            assertThrows(IllegalStateException.class, () -> snapshot.iterator(key(1)));
+            assertThrows(IllegalStateException.class, () -> snapshot.range(key(1), key(2)));
+        }
+    }
+
+    @Test
+    void snapshotsWithoutWritesShareTables(@TempDir File data) throws Exception {
+        try (LSMDao dao = new LSMDao(data, config())) {
+            write(dao, 1);
+            try (Snapshot first = dao.snapshot()) {
+                // The log of the frozen memTable is deleted once it is flushed
+                final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+                while (logs(data).size() > 1 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(1, logs(data).size());
+                final Set<String> logs = logs(data);
+                // Nothing to freeze, so no new log and no new table
+                try (Snapshot second = dao.snapshot(); Snapshot third = dao.snapshot()) {
+                    assertEquals(logs, logs(data));
+                    assertVersion(first, 1);
+                    assertVersion(second, 1);
+                    assertVersion(third, 1);
+                }
+                dao.upsert(key(1), value(2, 1));
+                try (Snapshot fourth = dao.snapshot()) {
+                    assertFalse(logs.equals(logs(data)));
+                    assertEquals(value(2, 1), fourth.get(key(1)));
+                    assertEquals(value(1, 1), first.get(key(1)));
+                }
+            }
+        }
+    }
+
+    @Test
+    void compactedTablesDeletedOnClose(@TempDir File data) throws Exception {
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int round = 0; round < 3; round++) {
+                write(dao, round);
+                dao.snapshot().close();
+            }
+            awaitTables(data, 3);
+            final Set<File> old = files(data);
+            final Snapshot snapshot = dao.snapshot();
+            try {
+                dao.compact();
+                // The snapshot still reads the merged tables
+                for (final File file : old) {
+                    assertTrue(file.exists(), file.toString());
+                }
+                assertVersion(snapshot, 2);
+            } finally {
+                snapshot.close();
+            }
+            awaitTables(data, 1);
+            for (final File file : old) {
+                assertFalse(file.exists(), file.toString());
+            }
+        }
+    }
+
+    private static void awaitTables(final File data, final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (tables(data) != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, tables(data));
+    }
+
+    private static void assertVersion(final Snapshot snapshot, final int version) throws IOException {
+        final Iterator<Record> records = snapshot.iterator(ByteBuffer.allocate(0));
+        for (int i = 0; i < KEYS; i++) {
+            final Record record = records.next();
+            assertEquals(key(i), record.getKey());
+            assertEquals(value(version, i), record.getValue());
+        }
+        assertFalse(records.hasNext());
+        for (int i = 0; i < KEYS; i += 100) {
+            assertEquals(value(version, i), snapshot.get(key(i)));
+            final Iterator<Record> range = snapshot.range(key(i), key(i + 2));
+            assertEquals(value(version, i), range.next().getValue());
+            assertEquals(value(version, i + 1), range.next().getValue());
+            assertFalse(range.hasNext());
+        }
+        assertThrows(NoSuchElementException.class, () -> snapshot.get(key(KEYS)));
+    }
+
+    private static void write(final LSMDao dao, final int version) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            dao.upsert(key(i), value(version, i));
+        }
+    }
+
+    private static LSMConfig config() {
+        // Only explicit compactions
+        return new LSMConfig(1024 * 1024)
+                .compactionStrategy(new SizeTieredCompactionStrategy(1_000, 1_000, 0.5, 1.5, 0));
+    }
+
+    private static Set<String> logs(final File data) {
+        final Set<String> result = new HashSet<>();
+        for (final File file : data.listFiles()) {
+            if (file.getName().endsWith("WAL.log")) {
+                result.add(file.getName());
+            }
+        }
+        return result;
+    }
+
+    private static Set<File> files(final File data) {
+        final Set<File> result = new HashSet<>();
+        for (final File file : data.listFiles()) {
+            if (file.getName().endsWith("SSTable.dat")) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    private static int tables(final File data) {
+        return files(data).size();
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+
+    private static ByteBuffer value(final int version, final int index) {
+        return ByteBuffer.wrap(("value" + version + "/" + index).getBytes());
+    }
+}
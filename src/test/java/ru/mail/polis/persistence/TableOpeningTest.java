@@ -0,0 +1,187 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tables read only their footers when opened, indexes and filters are read on the first access or on warm-up.
+ */
+class TableOpeningTest {
+    private static final int KEYS = 3_000;
+
+    @Test
+    void indexReadOnFirstAccess(@TempDir File data) throws IOException {
+        for (final TableMode mode : TableMode.values()) {
+            final File file = write(data, mode);
+            final BlockCache blockCache = new BlockCache(0, 4 * 1024);
+            try (FileHandleCache handles = new FileHandleCache(4)) {
+                final FileTable table = mode.open(file, handles, blockCache);
+                // Filters changed after the table is opened are the ones used
+                clearBloomFilter(file);
+                for (int i = 0; i < KEYS; i += 100) {
+                    assertNull(table.get(key(i)));
+                }
+            } finally {
+                blockCache.close();
+            }
+        }
+    }
+
+    @Test
+    void warmUpReadsIndex(@TempDir File data) throws IOException {
+        for (final TableMode mode : TableMode.values()) {
+            final File file = write(data, mode);
+            final BlockCache blockCache = new BlockCache(0, 4 * 1024);
+            try (FileHandleCache handles = new FileHandleCache(4)) {
+                final FileTable table = mode.open(file, handles, blockCache);
+                table.warmUp();
+                clearBloomFilter(file);
+                for (int i = 0; i < KEYS; i += 100) {
+                    final Cell cell = table.get(key(i));
+                    assertNotNull(cell);
+                    assertEquals(value(i), cell.getValue().getData());
+                }
+            } finally {
+                blockCache.close();
+            }
+        }
+    }
+
+    @Test
+    void openedInParallel(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+        }
+        assertTrue(tables(data) > 10, Integer.toString(tables(data)));
+        for (final int threads : new int[]{1, 2, 8}) {
+            for (final boolean warmUp : new boolean[]{false, true}) {
+                try (LSMDao dao = new LSMDao(data, config().openThreads(threads).warmUp(warmUp))) {
+                    for (int i = 0; i < KEYS; i++) {
+                        assertEquals(value(i), dao.get(key(i)));
+                    }
+                    final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+                    for (int i = 0; i < KEYS; i++) {
+                        assertEquals(key(i), records.next().getKey());
+                    }
+                    assertFalse(records.hasNext());
+                }
+            }
+        }
+    }
+
+    @Test
+    void closedWhileWarmingUp(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+        }
+        for (int i = 0; i < 10; i++) {
+            new LSMDao(data, config().openThreads(2).warmUp(true)).close();
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertEquals(value(KEYS - 1), dao.get(key(KEYS - 1)));
+        }
+    }
+
+    @Test
+    void unreadableIndexAbortsCompaction(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+        }
+        final int count = tables(data);
+        final File damaged = new File(data, "0SSTable.dat");
+        final byte[] contents = Files.readAllBytes(damaged.toPath());
+        try (LSMDao dao = new LSMDao(data, config())) {
+            // Only the footer is read on open, the compaction fails on the index
+            try (RandomAccessFile raf = new RandomAccessFile(damaged, "rw")) {
+                raf.setLength(FileTable.FOOTER_SIZE);
+            }
+            assertThrows(IOException.class, dao::compact);
+            assertEquals(count, tables(data));
+        }
+        Files.write(damaged.toPath(), contents);
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(value(i), dao.get(key(i)));
+            }
+        }
+    }
+
+    @Test
+    void invalidOpenThreads() {
+        assertThrows(IllegalArgumentException.class, () -> new LSMConfig(1024).openThreads(0));
+        assertThrows(IllegalArgumentException.class, () -> new LSMConfig(1024).openThreads(-1));
+    }
+
+    private static LSMConfig config() {
+        return new LSMConfig(16 * 1024)
+                .compactionStrategy(new SizeTieredCompactionStrategy(1_000, 1_000, 0.5, 1.5, 0));
+    }
+
+    private static File write(final File data, final TableMode mode) throws IOException {
+        final File file = new File(data, mode.ordinal() + 1 + "SSTable.dat");
+        final List<Cell> cells = new ArrayList<>(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            cells.add(new Cell(key(i), Value.of(1, value(i))));
+        }
+        new TableWriter(4 * 1024, 10, null, new Compression[]{Compression.NONE})
+                .write(cells.iterator(), file, 0, null);
+        return file;
+    }
+
+    /**
+     * Zero the bits of the Bloom filter in place, so a filter read afterwards rejects every key.
+     */
+    private static void clearBloomFilter(final File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - FileTable.FOOTER_SIZE);
+            final long indexOffset = raf.readLong();
+            final int indexSize = raf.readInt();
+            final int bloomFilterSize = raf.readInt();
+            assertTrue(bloomFilterSize > Integer.BYTES);
+            raf.seek(indexOffset + indexSize + Integer.BYTES);
+            raf.write(new byte[bloomFilterSize - Integer.BYTES]);
+        }
+    }
+
+    private static int tables(final File data) {
+        int count = 0;
+        for (final File file : data.listFiles()) {
+            if (file.getName().endsWith("SSTable.dat")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+
+    private static ByteBuffer value(final int index) {
+        return ByteBuffer.wrap(("value" + index).getBytes());
+    }
+}
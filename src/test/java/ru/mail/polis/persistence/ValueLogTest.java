@@ -0,0 +1,206 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Large values live in segments of the value log, segments full of garbage are relocated and deleted.
+ */
+class ValueLogTest {
+    private static final int THRESHOLD = 256;
+    private static final int VALUE_SIZE = 1024;
+    private static final long SEGMENT_SIZE = 64 * 1024;
+    private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    @Test
+    void largeValuesSeparated(@TempDir File data) throws IOException {
+        final TreeMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < 500; i++) {
+                // Small values stay in tables
+                final ByteBuffer value = i % 4 == 0 ? value(i, 16) : value(i, VALUE_SIZE);
+                dao.upsert(key(i), value);
+                expected.put(key(i), value);
+            }
+        }
+        assertTrue(size(data, "SSTable.dat") < 500 * VALUE_SIZE / 4);
+        assertTrue(size(data, "ValueLog.dat") >= 375 * VALUE_SIZE);
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertContents(dao, expected);
+            assertEquals(expected.subMap(key(100), key(200)), dao.getAll(expected.subMap(key(100), key(200)).keySet()));
+        }
+    }
+
+    @Test
+    void smallValuesWithoutLog(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config().valueLogThreshold(0))) {
+            for (int i = 0; i < 500; i++) {
+                dao.upsert(key(i), value(i, VALUE_SIZE));
+            }
+        }
+        assertEquals(0, segments(data).size());
+        assertTrue(size(data, "SSTable.dat") >= 500 * VALUE_SIZE);
+    }
+
+    @Test
+    void segmentsRolledBySize(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < 1_000; i++) {
+                dao.upsert(key(i), value(i, VALUE_SIZE));
+            }
+        }
+        final Set<File> segments = segments(data);
+        assertTrue(segments.size() >= 1_000 * VALUE_SIZE / SEGMENT_SIZE, Integer.toString(segments.size()));
+        for (final File segment : segments) {
+            // A segment is closed once a value crosses its size
+            assertTrue(segment.length() < SEGMENT_SIZE + VALUE_SIZE, segment + " " + segment.length());
+        }
+    }
+
+    @Test
+    void garbageSegmentsRelocated(@TempDir File data) throws Exception {
+        final TreeMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < 300; i++) {
+                dao.upsert(key(i), value(i, VALUE_SIZE));
+                expected.put(key(i), value(i, VALUE_SIZE));
+            }
+        }
+        final Set<File> old = segments(data);
+        try (LSMDao dao = new LSMDao(data, config())) {
+            // Two thirds of the old values become garbage, the rest is still live
+            for (int i = 0; i < 300; i++) {
+                if (i % 3 != 0) {
+                    dao.upsert(key(i), value(-i, VALUE_SIZE));
+                    expected.put(key(i), value(-i, VALUE_SIZE));
+                }
+            }
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            // Compactions merge flushed tables only
+            dao.compact();
+
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (!isDeleted(old) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(isDeleted(old));
+            assertContents(dao, expected);
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertContents(dao, expected);
+        }
+    }
+
+    @Test
+    void removedValuesDeleted(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < 300; i++) {
+                dao.upsert(key(i), value(i, VALUE_SIZE));
+            }
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < 300; i++) {
+                dao.remove(key(i));
+            }
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            dao.compact();
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+        // Segments are deleted along with the last table referencing them
+        assertEquals(0, size(data, "ValueLog.dat"));
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(0)));
+        }
+    }
+
+    @Test
+    void invalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new LSMConfig(1024).valueLogThreshold(-1));
+        assertThrows(IllegalArgumentException.class, () -> new LSMConfig(1024).valueLogGarbageRatio(0.0));
+        assertThrows(IllegalArgumentException.class, () -> new LSMConfig(1024).valueLogGarbageRatio(1.5));
+        assertThrows(IllegalArgumentException.class, () -> new LSMConfig(1024).valueLogGarbageRatio(Double.NaN));
+        assertThrows(IllegalArgumentException.class, () -> new LSMConfig(1024).valueLogSegmentSize(0));
+    }
+
+    private static LSMConfig config() {
+        // Only compactions of the value log run in the background
+        return new LSMConfig(64 * 1024)
+                .valueLogThreshold(THRESHOLD)
+                .valueLogGarbageRatio(0.5)
+                .valueLogSegmentSize(SEGMENT_SIZE)
+                .compactionStrategy(new SizeTieredCompactionStrategy(1_000, 1_000, 0.5, 1.5, 0));
+    }
+
+    private static void assertContents(final LSMDao dao, final TreeMap<ByteBuffer, ByteBuffer> expected)
+            throws IOException {
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static boolean isDeleted(final Set<File> files) {
+        for (final File file : files) {
+            if (file.exists()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Set<File> segments(final File data) {
+        final Set<File> result = new HashSet<>();
+        for (final File file : data.listFiles()) {
+            if (file.getName().endsWith("ValueLog.dat")) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    private static long size(final File data, final String suffix) {
+        long size = 0;
+        for (final File file : data.listFiles()) {
+            if (file.getName().endsWith(suffix)) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+
+    private static ByteBuffer value(final int seed, final int size) {
+        final byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) seed);
+        bytes[0] = (byte) (seed >> 8);
+        return ByteBuffer.wrap(bytes);
+    }
+}
@@ -0,0 +1,169 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Acknowledged writes survive a crash in every durability mode, a torn tail of the log is dropped.
+ */
+class WriteAheadLogTest {
+    private static final int KEYS = 1_000;
+
+    @Test
+    void replayAfterCrash(@TempDir File data) throws IOException {
+        for (final Durability durability : Durability.values()) {
+            final File crashed = crash(data, durability);
+            try (LSMDao dao = new LSMDao(crashed, config(durability))) {
+                assertWritten(dao, KEYS);
+                dao.upsert(key(KEYS), value(KEYS));
+            }
+            // Replayed and new writes are kept after a clean close too
+            try (LSMDao dao = new LSMDao(crashed, config(durability))) {
+                assertWritten(dao, KEYS + 1);
+            }
+        }
+    }
+
+    @Test
+    void tornRecordDropped(@TempDir File data) throws IOException {
+        for (final Durability durability : Durability.values()) {
+            final File crashed = crash(data, durability);
+            final File log = log(crashed);
+            try (FileChannel fc = FileChannel.open(log.toPath(), StandardOpenOption.WRITE)) {
+                fc.truncate(fc.size() - 3);
+            }
+            try (LSMDao dao = new LSMDao(crashed, config(durability))) {
+                assertWritten(dao, KEYS - 1);
+                assertThrows(NoSuchElementException.class, () -> dao.get(key(KEYS - 1)));
+            }
+        }
+    }
+
+    @Test
+    void corruptRecordDropped(@TempDir File data) throws IOException {
+        for (final Durability durability : Durability.values()) {
+            final File crashed = crash(data, durability);
+            final File log = log(crashed);
+            try (FileChannel fc = FileChannel.open(log.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                final ByteBuffer last = ByteBuffer.allocate(1);
+                fc.read(last, fc.size() - 1);
+                fc.write(ByteBuffer.wrap(new byte[]{(byte) ~last.get(0)}), fc.size() - 1);
+            }
+            try (LSMDao dao = new LSMDao(crashed, config(durability))) {
+                assertWritten(dao, KEYS - 1);
+                assertThrows(NoSuchElementException.class, () -> dao.get(key(KEYS - 1)));
+            }
+        }
+    }
+
+    @Test
+    void garbageTailIgnored(@TempDir File data) throws IOException {
+        for (final Durability durability : Durability.values()) {
+            final File crashed = crash(data, durability);
+            // Header of a record larger than the rest of the file
+            final ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES + 3)
+                    .putInt(Integer.MAX_VALUE)
+                    .putInt(42)
+                    .put(new byte[]{1, 2, 3})
+                    .flip();
+            Files.write(log(crashed).toPath(), header.array(), StandardOpenOption.APPEND);
+            try (LSMDao dao = new LSMDao(crashed, config(durability))) {
+                assertWritten(dao, KEYS);
+            }
+        }
+    }
+
+    @Test
+    void tornHeaderIgnored(@TempDir File data) throws IOException {
+        for (final Durability durability : Durability.values()) {
+            final File crashed = crash(data, durability);
+            Files.write(log(crashed).toPath(), new byte[]{1, 2, 3}, StandardOpenOption.APPEND);
+            try (LSMDao dao = new LSMDao(crashed, config(durability))) {
+                assertWritten(dao, KEYS);
+            }
+        }
+    }
+
+    @Test
+    void negativeSizeIgnored(@TempDir File data) throws IOException {
+        final File crashed = crash(data, Durability.BATCH);
+        final ByteBuffer tail = ByteBuffer.allocate(2 * Integer.BYTES + 16)
+                .putInt(-16)
+                .putInt(0)
+                .flip();
+        Files.write(log(crashed).toPath(), tail.array(), StandardOpenOption.APPEND);
+        try (LSMDao dao = new LSMDao(crashed, config(Durability.BATCH))) {
+            assertWritten(dao, KEYS);
+        }
+    }
+
+    /**
+     * Write the keys and copy the storage while it is still open, as a killed process leaves it.
+     */
+    private static File crash(final File data, final Durability durability) throws IOException {
+        final File live = new File(data, durability + "-live");
+        final File crashed = new File(data, durability + "-crashed");
+        Files.createDirectory(live.toPath());
+        Files.createDirectory(crashed.toPath());
+        try (LSMDao dao = new LSMDao(live, config(durability))) {
+            for (int i = 0; i < KEYS - 1; i++) {
+                dao.upsert(key(i), value(i));
+            }
+            for (int i = 0; i < KEYS - 1; i += 7) {
+                dao.remove(key(i));
+            }
+            // The last record is an upsert, so tearing it drops the last key
+            dao.upsert(key(KEYS - 1), value(KEYS - 1));
+            for (final File file : live.listFiles()) {
+                Files.copy(file.toPath(), new File(crashed, file.getName()).toPath());
+            }
+        }
+        assertNotNull(log(crashed));
+        return crashed;
+    }
+
+    private static File log(final File dir) {
+        for (final File file : dir.listFiles()) {
+            if (file.getName().endsWith("WAL.log") && file.length() > 0) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private static LSMConfig config(final Durability durability) {
+        // Nothing is flushed, the log holds every write
+        return new LSMConfig(16 * 1024 * 1024).durability(durability);
+    }
+
+    private static void assertWritten(final LSMDao dao, final int keys) throws IOException {
+        for (int i = 0; i < keys; i++) {
+            if (i % 7 == 0 && i < KEYS - 1) {
+                final int removed = i;
+                assertThrows(NoSuchElementException.class, () -> dao.get(key(removed)));
+            } else {
+                assertEquals(value(i), dao.get(key(i)));
+            }
+        }
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+
+    private static ByteBuffer value(final int index) {
+        return ByteBuffer.wrap(String.format("value%d", index * 31).getBytes());
+    }
+}
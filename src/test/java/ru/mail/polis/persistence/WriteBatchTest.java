@@ -0,0 +1,178 @@
+package ru.mail.polis.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+import ru.mail.polis.Snapshot;
+import ru.mail.polis.WriteBatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Batches are applied in order as a whole: snapshots see all of a batch or none of it, so does a replayed log.
+ */
+class WriteBatchTest {
+    private static final int KEYS = 100;
+
+    @Test
+    void lastOperationWins(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, new LSMConfig(1024 * 1024))) {
+            dao.write(new WriteBatch());
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+
+            final WriteBatch batch = new WriteBatch()
+                    .upsert(key(1), value(1))
+                    .upsert(key(2), value(2))
+                    .remove(key(1))
+                    .upsert(key(3), value(3))
+                    .upsert(key(3), value(4))
+                    .remove(key(5))
+                    .upsert(key(2), value(5));
+            assertEquals(7, batch.size());
+            dao.write(batch);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(1)));
+            assertEquals(value(5), dao.get(key(2)));
+            assertEquals(value(4), dao.get(key(3)));
+
+            dao.write(new WriteBatch().upsert(key(1), value(6)).remove(key(2)));
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            assertEquals(value(6), records.next().getValue());
+            assertEquals(value(4), records.next().getValue());
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void batchNotAffectedByLaterChanges(@TempDir File data) throws IOException {
+        final ByteBuffer key = key(1);
+        final ByteBuffer value = value(1);
+        final WriteBatch batch = new WriteBatch().upsert(key, value);
+        // Positions of the buffers passed in don't matter
+        key.position(key.limit());
+        value.position(value.limit());
+        try (LSMDao dao = new LSMDao(data, new LSMConfig(1024 * 1024))) {
+            dao.write(batch);
+            assertEquals(value(1), dao.get(key(1)));
+        }
+    }
+
+    @Test
+    void snapshotsSeeWholeBatches(@TempDir File data) throws Exception {
+        final LSMConfig config = new LSMConfig(64 * 1024);
+        try (LSMDao dao = new LSMDao(data, config)) {
+            final WriteBatch initial = new WriteBatch();
+            for (int i = 0; i < KEYS; i++) {
+                initial.upsert(key(i), value(1));
+            }
+            dao.write(initial);
+            final AtomicBoolean done = new AtomicBoolean();
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final Thread writer = new Thread(() -> {
+                try {
+                    for (int version = 2; !done.get(); version++) {
+                        final WriteBatch batch = new WriteBatch();
+                        for (int i = 0; i < KEYS; i++) {
+                            batch.upsert(key(i), value(version));
+                        }
+                        dao.write(batch);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+            writer.start();
+            int previous = 0;
+            try {
+                for (int i = 0; i < 100; i++) {
+                    try (Snapshot snapshot = dao.snapshot()) {
+                        final Iterator<Record> records = snapshot.iterator(ByteBuffer.allocate(0));
+                        final ByteBuffer first = records.next().getValue();
+                        final int version = first.getInt(first.position());
+                        assertTrue(version >= previous, version + " < " + previous);
+                        previous = version;
+                        for (int k = 1; k < KEYS; k++) {
+                            assertEquals(first, records.next().getValue());
+                            assertEquals(first, snapshot.get(key(k)));
+                        }
+                        assertFalse(records.hasNext());
+                    }
+                }
+            } finally {
+                done.set(true);
+                writer.join();
+            }
+            assertNull(failure.get());
+            assertTrue(previous > 1);
+        }
+    }
+
+    @Test
+    void tornBatchReplayedWhole(@TempDir File data) throws IOException {
+        for (final Durability durability : Durability.values()) {
+            final File live = new File(data, durability + "-live");
+            final File crashed = new File(data, durability + "-crashed");
+            Files.createDirectory(live.toPath());
+            Files.createDirectory(crashed.toPath());
+            // Nothing is flushed, the log holds every batch
+            final LSMConfig config = new LSMConfig(16 * 1024 * 1024).durability(durability);
+            try (LSMDao dao = new LSMDao(live, config)) {
+                final WriteBatch first = new WriteBatch();
+                final WriteBatch second = new WriteBatch();
+                for (int i = 0; i < KEYS; i++) {
+                    first.upsert(key(i), value(1));
+                    second.upsert(key(i), value(2));
+                }
+                second.remove(key(0));
+                dao.write(first);
+                dao.write(second);
+                for (final File file : live.listFiles()) {
+                    Files.copy(file.toPath(), new File(crashed, file.getName()).toPath());
+                }
+            }
+            try (LSMDao dao = new LSMDao(live, config)) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key(0)));
+                for (int i = 1; i < KEYS; i++) {
+                    assertEquals(value(2), dao.get(key(i)));
+                }
+            }
+
+            // The second batch is torn somewhere in the middle
+            for (final File file : crashed.listFiles()) {
+                if (file.getName().endsWith("WAL.log") && file.length() > 0) {
+                    try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                        fc.truncate(fc.size() - KEYS * 5);
+                    }
+                }
+            }
+            try (LSMDao dao = new LSMDao(crashed, config)) {
+                for (int i = 0; i < KEYS; i++) {
+                    assertEquals(value(1), dao.get(key(i)));
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes());
+    }
+
+    private static ByteBuffer value(final int version) {
+        return ByteBuffer.allocate(2 * Integer.BYTES).putInt(0, version).putInt(Integer.BYTES, ~version);
+    }
+}